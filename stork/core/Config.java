@@ -1,6 +1,7 @@
 package stork.core;
 
 import java.io.*;
+import java.util.*;
 
 import stork.ad.*;
 import stork.feather.*;
@@ -25,6 +26,15 @@ public class Config {
   public int max_attempts = 10;
   public int max_history = 10;
 
+  /** Job scheduling policy: "fifo" or "fair". */
+  public String scheduler = "fifo";
+
+  /** Most jobs the fair scheduler runs on one endpoint. 0 means no limit. */
+  public int max_endpoint_jobs = 0;
+
+  /** Fair scheduler weights by user email. Other users have weight 1. */
+  public Map<String,Double> user_weights;
+
   //public String libexec = "libexec";
 
   public String state_file = null;
@@ -38,6 +48,18 @@ public class Config {
 
   public double request_timeout = 5.0;
 
+  /** Threads used to dispatch asynchronous handlers. 0 means per core. */
+  public int dispatcher_threads = 0;
+
+  /** Network transport: "auto", "nio", or "epoll". */
+  public String transport = "auto";
+
+  /** Threads used for network I/O. 0 means per core. */
+  public int transport_threads = 0;
+
+  /** Default socket options for data connections. */
+  public stork.feather.util.TCPOptions tcp;
+
   public String email = "StorkCloud <noreply@storkcloud.org>";
   public String smtp_server = "localhost";
 
@@ -7,6 +7,7 @@ import stork.core.*;
 import stork.core.server.*;
 import stork.core.net.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.util.*;
 import stork.scheduler.*;
 
@@ -34,6 +35,13 @@ public class StorkServer extends Command {
   public void execute(stork.ad.Ad config) {
     execute(config.unmarshal(Config.global));
   } public void execute(Config config) {
+    if (config.dispatcher_threads > 0) Dispatcher.setDefault(
+      new PoolDispatcher("Bell Dispatcher", config.dispatcher_threads));
+    Transport.setDefault(
+      Transport.create(config.transport, config.transport_threads));
+    if (config.tcp != null)
+      TCPOptions.setDefault(config.tcp);
+
     Server s = new Server(config);
     URI[] listen = Config.global.listen;
     URI web_url = Config.global.web_service_url;
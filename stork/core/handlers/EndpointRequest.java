@@ -2,6 +2,7 @@ package stork.core.handlers;
 
 import stork.core.server.*;
 import stork.feather.*;
+import stork.feather.util.*;
 
 /** Request common to many commands that operate on endpoints. */
 public class EndpointRequest extends Request {
@@ -25,6 +26,17 @@ public class EndpointRequest extends Request {
     return validateAndResolve(name).resolve();
   }
 
+  /**
+   * Get the key {@link SessionCache} would lease a session for this endpoint
+   * under, with the given settings, without resolving the endpoint.
+   */
+  public Object sessionKey(int parallelism, int connections,
+                           TCPOptions tcp) {
+    RealEndpoint e = validateAndResolve(null);
+    return SessionCache.key(e.uri.endpointURI(), e.credential, parallelism,
+                            connections, tcp);
+  }
+
   /** Validate the request. */
   public EndpointRequest validate() { return validateAs(null); }
 
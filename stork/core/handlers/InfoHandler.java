@@ -4,6 +4,7 @@ import java.util.*;
 
 import stork.core.server.*;
 import stork.core.*;
+import stork.feather.util.*;
 
 /** Send information about the server. */
 public class InfoHandler extends Handler<InfoRequest> {
@@ -18,6 +19,8 @@ public class InfoHandler extends Handler<InfoRequest> {
     req.ring(new Object() {
       String version = stork.core.Main.version();
       Set<String> commands = req.server.handlers.keySet();
+      String transport = Transport.getDefault().name();
+      int[] event_loop_queues = Transport.getDefault().queueDepths();
     });
   }
 
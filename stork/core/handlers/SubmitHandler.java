@@ -3,6 +3,7 @@ package stork.core.handlers;
 import stork.ad.*;
 import stork.core.server.*;
 import stork.feather.*;
+import stork.optimizers.*;
 import stork.scheduler.*;
 
 /** Handles scheduling jobs. */
@@ -25,6 +26,7 @@ public class SubmitHandler extends Handler<JobRequest> {
 
 class JobRequest extends Request {
   private JobEndpointRequest src, dest;
+  private Job.Options options;
 
   // Hack to get around marshalling limitations.
   private class JobEndpointRequest extends EndpointRequest {
@@ -36,6 +38,8 @@ class JobRequest extends Request {
   public JobRequest validate() {
     src.validateAs("source");
     dest.validateAs("destination");
+    if (options != null)
+      Optimizer.byName(options.optimizer);
     return this;
   }
 
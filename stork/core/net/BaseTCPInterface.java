@@ -7,13 +7,12 @@ import io.netty.buffer.*;
 import io.netty.handler.codec.*;
 import io.netty.channel.*;
 import io.netty.channel.socket.*;
-import io.netty.channel.nio.*;
-import io.netty.channel.socket.nio.*;
 
 import stork.ad.*;
 import stork.core.server.*;
 import stork.feather.*;
 import stork.feather.URI;
+import stork.feather.util.*;
 
 /**
  * A base implementation of {@code StorkInterface} which is based on a TCP
@@ -22,7 +21,6 @@ import stork.feather.URI;
 public abstract class BaseTCPInterface extends StorkInterface {
   protected final URI uri;
   private final SocketAddress address;
-  private static final NioEventLoopGroup acceptor = new NioEventLoopGroup();
 
   /**
    * Create a {@code BaseTCPInterface} for the given server and URI.
@@ -38,9 +36,10 @@ public abstract class BaseTCPInterface extends StorkInterface {
 
   // Initialize the channel and return the address used to bind the channel.
   private SocketAddress initChannel() {
+    Transport t = Transport.getDefault();
     ServerBootstrap sb = new ServerBootstrap();
-    sb.channel(NioServerSocketChannel.class);
-    sb.group(acceptor);
+    sb.channel(t.serverChannel());
+    sb.group(t.acceptor(), t.group());
     sb.childHandler(new ChannelInitializer<SocketChannel>() {
       protected void initChannel(SocketChannel ch) {
         BaseTCPInterface.this.init(ch);
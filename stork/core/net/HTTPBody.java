@@ -92,7 +92,14 @@ public class HTTPBody extends Resource<HTTPRequest,HTTPBody> {
       };
     }
 
+    // File regions can be written straight to the socket.
+    protected boolean acceptsFileSlices() {
+      return true;
+    }
+
     public Bell drain(Slice slice) {
+      if (slice instanceof FileSlice)
+        return session.toNetty(((FileSlice) slice).retain().region());
       ByteBuf buf = slice.asByteBuf();
       buf.retain();
       return session.toNetty(new DefaultHttpContent(buf));
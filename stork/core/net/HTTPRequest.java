@@ -45,8 +45,11 @@ public abstract class HTTPRequest extends Session<HTTPRequest,HTTPBody> {
     return netty.headers().get(name);
   }
 
-  /** Send something back to Netty. */
-  public abstract Bell toNetty(HttpObject obj);
+  /**
+   * Send something back to Netty. This is usually an {@code HttpObject}, but
+   * may also be a {@code FileRegion} for the response body.
+   */
+  public abstract Bell toNetty(Object obj);
 
   /** Force a read on the underlying socket. */
   public abstract void read();
@@ -9,8 +9,6 @@ import io.netty.bootstrap.*;
 import io.netty.buffer.*;
 import io.netty.channel.*;
 import io.netty.channel.socket.*;
-import io.netty.channel.socket.nio.*;
-import io.netty.channel.nio.*;
 import io.netty.handler.codec.*;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.*;
@@ -64,9 +62,10 @@ public class HTTPServer {
 
   // Create and bind an HTTP server to the given socket address.
   private HTTPServer(InetSocketAddress isa) {
+    Transport t = Transport.getDefault();
     ServerBootstrap sb = new ServerBootstrap();
-    sb.channel(NioServerSocketChannel.class);
-    sb.group(new NioEventLoopGroup());
+    sb.channel(t.serverChannel());
+    sb.group(t.acceptor(), t.group());
     sb.childHandler(new ChannelInitializer<SocketChannel>() {
       protected void initChannel(SocketChannel ch) {
         ChannelPipeline pl = ch.pipeline();
@@ -226,7 +225,7 @@ public class HTTPServer {
 
         // Pass to route handler.
         route.handle(request = new HTTPRequest(head) {
-          public synchronized Bell toNetty(HttpObject o) {
+          public synchronized Bell toNetty(Object o) {
             ctx.channel().writeAndFlush(o);
             return pauseBell;
           } public void read() {
@@ -2,6 +2,7 @@ package stork.core.server;
 
 import java.util.*;
 import javax.mail.*;
+import javax.mail.Transport;
 import javax.mail.internet.*;
 import javax.activation.*;
 
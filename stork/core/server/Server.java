@@ -13,6 +13,7 @@ import stork.core.*;
 import stork.core.handlers.*;
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.module.*;
 import stork.scheduler.*;
 import stork.util.*;
@@ -66,7 +67,7 @@ public class Server {
 
   // The need for a type parameter here is a hack to get around
   // ad unmarshalling badness.
-  private class ServerScheduler<J> extends FIFOScheduler {
+  private class ServerScheduler<J> extends PolicyScheduler {
     public Server server() { return Server.this; }
   }
 
@@ -88,6 +89,9 @@ public class Server {
   private transient LinkedBlockingQueue<Request> requests =
     new LinkedBlockingQueue<Request>();
 
+  /** Strand requests are handled on, so they keep their arrival order. */
+  private transient Strand requestStrand = Dispatcher.getDefault().strand();
+
   /** The anonymous user. */
   public ServerUser anonymous = new ServerUser();
 
@@ -120,7 +124,7 @@ public class Server {
       request.ring(new Exception("Invalid command."));
     } else try {
       Log.fine("Enqueuing request: "+Ad.marshal(request));
-      Bell.dispatch(request);
+      requestStrand.dispatch(request);
     } catch (Exception e) {
       // This can happen if the queue is full. Which right now it never should
       // be, but who knows.
@@ -3,10 +3,85 @@ package stork.core.server;
 import java.util.*;
 
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.util.*;
 
+/**
+ * Keeps sessions open so later requests against the same endpoint with the
+ * same credential can skip connecting and authenticating. Sessions handed
+ * out by {@link #take(Resource)} are used by one caller at a time. Sessions
+ * handed out by {@link #lease(Resource)} are shared by every caller holding a
+ * lease, and are closed once they have been idle for {@link #IDLE_TIME}.
+ * Leased sessions are only shared between callers asking for the same
+ * parallelism, connections and TCP options, which should not be changed on a
+ * leased session.
+ */
 public class SessionCache {
+  /** Seconds a leased session is kept open with no leases on it. */
+  public static final double IDLE_TIME = 30;
+
   private Map<Session,Session> map = new HashMap<Session, Session>();
+  private Map<Key,Lease> leases = new HashMap<Key,Lease>();
+
+  // What a leased session is shared by: its endpoint and credential, and the
+  // settings transfers on it use.
+  private static class Key {
+    final URI uri;
+    final Credential credential;
+    final int parallelism, connections;
+    final TCPOptions tcp;
+
+    Key(URI uri, Credential credential, int parallelism, int connections,
+        TCPOptions tcp) {
+      this.uri = uri;
+      this.credential = credential;
+      this.parallelism = Math.max(1, parallelism);
+      this.connections = Math.max(1, connections);
+      this.tcp = (tcp != null) ? tcp : TCPOptions.getDefault();
+    }
+
+    Key(Session session) {
+      this(session.uri, session.credential, session.parallelism(),
+           session.connections(), session.tcp());
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return uri.equals(k.uri) &&
+             (credential == null ? k.credential == null :
+                                   credential.equals(k.credential)) &&
+             parallelism == k.parallelism && connections == k.connections &&
+             tcp.equals(k.tcp);
+    }
+
+    public int hashCode() {
+      return uri.hashCode() +
+             (credential != null ? 17*credential.hashCode() : 0) +
+             7*parallelism + 11*connections + 13*tcp.hashCode();
+    }
+  }
+
+  /**
+   * Get the key a session would be leased under, for the endpoint {@code uri}
+   * with {@code credential} and the given settings. Callers whose keys are
+   * equal may share a leased session. This does not open a session.
+   *
+   * @return An object which is equal to the keys of the same sessions.
+   */
+  public static Object key(URI uri, Credential credential, int parallelism,
+                           int connections, TCPOptions tcp) {
+    return new Key(uri, credential, parallelism, connections, tcp);
+  }
+
+  // A shared session and the number of callers using it.
+  private static class Lease {
+    final Session session;
+    int users;
+    int idle;  // Incremented whenever the session goes idle.
+
+    Lease(Session session) { this.session = session; }
+  }
 
   public synchronized Resource take(Resource resource) {
     Session session = take(resource.session);
@@ -43,4 +118,59 @@ public class SessionCache {
     map.remove(session);
     return session;
   }
+
+  /**
+   * Get {@code resource} selected on a shared session for its endpoint,
+   * credential and settings, opening one if there is none. Each call should
+   * be matched with a call to {@link #release(Session)} with the returned
+   * resource's session.
+   */
+  public synchronized Resource lease(Resource resource) {
+    Key key = new Key(resource.session);
+    Lease lease = leases.get(key);
+    if (lease == null || lease.session.isClosed()) {
+      final Session session = resource.session;
+      leases.put(key, lease = new Lease(session));
+      session.onClose(new Bell() {
+        public void always() { expire(session); }
+      });
+    } else {
+      Log.fine("Sharing session: ", lease.session);
+    }
+    lease.users++;
+    return resource.reselectOn(lease.session);
+  }
+
+  /**
+   * Give up a lease on {@code session}. Once a session has no leases, it is
+   * closed if nobody leases it within {@link #IDLE_TIME}.
+   */
+  public synchronized void release(final Session session) {
+    final Lease lease = leases.get(new Key(session));
+    if (lease == null || lease.session != session || --lease.users > 0)
+      return;
+    final int idle = ++lease.idle;
+    Bell.timerBell(IDLE_TIME).new Promise() {
+      public void done() { closeIdle(lease, idle); }
+    };
+  }
+
+  // Close a session if it hasn't been used since it went idle.
+  private void closeIdle(Lease lease, int idle) {
+    synchronized (this) {
+      if (lease.users > 0 || lease.idle != idle)
+        return;
+      Key key = new Key(lease.session);
+      if (leases.get(key) == lease)
+        leases.remove(key);
+    } lease.session.close();
+  }
+
+  // Forget a session that has closed.
+  private synchronized void expire(Session session) {
+    Key key = new Key(session);
+    Lease lease = leases.get(key);
+    if (lease != null && lease.session == session)
+      leases.remove(key);
+  }
 }
@@ -25,9 +25,14 @@ public class StorkGSSCred extends StorkCred<Bell<GSSCredential>> {
 
   public StorkGSSCred() { super("gss"); }
 
-  /** Lazily instantiate this credential. */
-  public Bell<GSSCredential> data() {
-    return (credential != null) ? credential : initialize();
+  /**
+   * Lazily instantiate this credential. The credential is shared by every
+   * caller, and is only instantiated again if instantiating it failed.
+   */
+  public synchronized Bell<GSSCredential> data() {
+    if (credential == null || credential.isFailed())
+      credential = initialize();
+    return credential;
   }
 
   /**
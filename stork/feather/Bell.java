@@ -2,32 +2,89 @@ package stork.feather;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import stork.feather.util.*;
 
 /**
  * A promise primitive used for stringing together the results of asynchronous
  * operations and executing asynchronous handlers. All handling operations are
- * performed in a separate dispatch thread. It supports callbacks defined in
- * subclasses, chaining of results, deadlines, and back-cancellation.
+ * performed by a {@link Dispatcher}. A {@code Bell} created while a {@link
+ * Strand} is running will dispatch its handlers through that {@code Strand},
+ * otherwise it uses the default {@code Dispatcher}. It supports callbacks
+ * defined in subclasses, chaining of results, deadlines, and
+ * back-cancellation.
  *
  * @param <T> the supertype of objects that can ring this {@code Bell}.
  */
 public class Bell<T> implements Future<T> {
+  /**
+   * The maximum number of nested inline completions on one thread. Past this
+   * depth, completions are dispatched instead to keep the stack bounded.
+   */
+  private static final int MAX_INLINE_DEPTH = 32;
+
+  // Current inline completion depth of each thread.
+  private static final ThreadLocal<int[]> inlineDepth =
+    new ThreadLocal<int[]>() {
+      protected int[] initialValue() { return new int[1]; }
+    };
+
+  /**
+   * The state of this bell. While unrung, this is either {@code null} or the
+   * top {@code Waiter} of a stack of promised bells and waiting threads. Once
+   * rung, this holds the value, {@code NIL} for a {@code null} value, or a
+   * {@code Failure} wrapping the error. It is only changed by CAS, and never
+   * changes again once rung.
+   */
+  private transient volatile Object state;
+
+  private static final AtomicReferenceFieldUpdater<Bell,Object> STATE =
+    AtomicReferenceFieldUpdater.newUpdater(Bell.class, Object.class, "state");
+
+  // Stands in for a null value in the state field.
+  private static final Object NIL = new Object();
+
+  /**
+   * Bells promised after this bell rang but before its handlers and earlier
+   * promises were delivered, as a stack of {@code Waiter}s. Once delivery is
+   * over, this is {@code DELIVERED} and late promises ring right away.
+   */
+  private transient volatile Object late;
+
+  private static final AtomicReferenceFieldUpdater<Bell,Object> LATE =
+    AtomicReferenceFieldUpdater.newUpdater(Bell.class, Object.class, "late");
+
+  // Marks the end of delivery in the late field.
+  private static final Object DELIVERED = new Object();
+
+  // Wraps the error of a failed bell in the state field.
+  private static final class Failure {
+    final Throwable error;
+    Failure(Throwable error) { this.error = error; }
+  }
+
+  // A node in the stack of promised bells and waiting threads.
+  private static final class Waiter {
+    volatile Object item;  // A Bell or a Thread.
+    Waiter next;
+    Waiter(Object item, Waiter next) {
+      this.item = item;
+      this.next = next;
+    }
+  }
+
   // Statically allocated pre-rung bells.
   private final static Bell rungBell = new Bell((Object) null);
   private final static Bell failedBell = new Bell((Throwable) null);
   private final static Bell cancelledBell = new Bell().cancel();
 
-  /** The object held by this bell, once rung. May contain T or Throwable. */
-  private transient Object object;
-  private transient List<Bell<? super T>> promises = Collections.emptyList();
-
-  private static final Dispatcher dispatcher =
-    new Dispatcher("Bell Dispatcher");
+  /** The strand this bell was created on, or null for the default. */
+  private final transient Strand affinity = Dispatcher.affinity();
 
-  // State. 0 = unrung, 1 = thenned, 2 = done, 3 = failed
-  private transient byte state = 0;
+  /** True if this bell's handlers are trivial and may be called inline. */
+  private transient boolean inline = false;
 
   /** Create an unrung {@code Bell}. */
   public Bell() { }
@@ -40,12 +97,15 @@ public class Bell<T> implements Future<T> {
 
   // Get the object as a T.
   private T object() {
-    return (isSuccessful()) ? (T) object : null;
+    Object s = state;
+    return (s == null || s == NIL || s instanceof Waiter ||
+            s instanceof Failure) ? null : (T) s;
   }
 
   // Get the object as a Throwable.
   private Throwable error() {
-    return (isFailed()) ? (Throwable) object : null;
+    Object s = state;
+    return (s instanceof Failure) ? ((Failure) s).error : null;
   }
 
   /**
@@ -83,7 +143,7 @@ public class Bell<T> implements Future<T> {
    * @param object The {@code T} to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring(T object) {
+  public final Bell<T> ring(T object) {
     return ring(object, null);
   }
 
@@ -92,7 +152,7 @@ public class Bell<T> implements Future<T> {
    *
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring() {
+  public final Bell<T> ring() {
     return ring(null, null);
   }
 
@@ -102,68 +162,163 @@ public class Bell<T> implements Future<T> {
    * @param error The {@code Throwable} to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring(Throwable error) {
+  public final Bell<T> ring(Throwable error) {
     return ring(null, (error != null) ? error : new NullPointerException());
   }
 
+  /** Used by the other ring methods. See {@link #resolve(Object,Throwable)}. */
+  private Bell<T> ring(T object, Throwable error) {
+    resolve(object, error);
+    return this;
+  }
+
   /**
    * Used by the other ring methods. If error is not {@code null}, assume
    * failure and ignore {@code object}.
    *
    * @param object The object to ring the {@code Bell} with.
    * @param error The error to ring the {@code Bell} with.
-   * @return This {@code Bell}.
+   * @return {@code true} if this call rang the {@code Bell}.
+   */
+  private boolean resolve(T object, Throwable error) {
+    Object done = (error != null) ? new Failure(error) :
+                  (object != null) ? object : NIL;
+    Object s;
+    do {
+      s = state;
+      if (s != null && !(s instanceof Waiter))
+        return false;
+    } while (!STATE.compareAndSet(this, s, done));
+
+    // Wake waiting threads and reverse the stack into promise order.
+    Waiter head = null, w = (Waiter) s;
+    while (w != null) {
+      Waiter next = w.next;
+      Object item = w.item;
+      if (item instanceof Thread) {
+        LockSupport.unpark((Thread) item);
+      } else if (item != null) {
+        w.next = head;
+        head = w;
+      } w = next;
+    }
+    complete(head);
+    return true;
+  }
+
+  /**
+   * Call this Bell's handlers followed by its promises. The top-level Bell
+   * class has no-op handlers, so only call them if this is a subclass of
+   * Bell. If the handlers are trivial, this happens inline on the calling
+   * thread as long as the inline depth allows it. Otherwise, everything is
+   * dispatched as a single task, so promised bells never ring before the
+   * handlers have finished.
    */
-  private synchronized Bell<T> ring(T object, Throwable error) {
-    if (!isDone()) {
-      state = (error == null) ? (byte) 2 : 3;
-      this.object = (error == null) ? object : error;
-      dispatchHandlers();
-      dispatchPromises(promises);
-      promises = Collections.emptyList();
-      notifyAll();
-    } return this;
-  }
-
-  /**
-   * Dispatch this Bell's handlers. The top-level Bell class has no-op
-   * handlers, so only dispatch if this is a subclass of Bell.
-   */
-  private void dispatchHandlers() {
-    if (getClass() != Bell.class) dispatch(new Runnable() {
-      public void run() {
-        // Call the handlers.
-        if (isFailed()) try {
-          fail(error());
-        } catch (Throwable t) {
-          // Discard.
-        } else try {
-          done(object());
-        } catch (Throwable t) {
-          // Discard.
-        } try {
-          always();
-        } catch (Throwable t) {
-          // Discard.
-        }
-      }
+  private void complete(final Waiter promises) {
+    final boolean handlers = getClass() != Bell.class;
+    if (!handlers && promises == null) {
+      delivered();
+      return;
+    }
+    if ((inline || !handlers) && enterInline()) try {
+      deliver(handlers, promises);
+    } finally {
+      exitInline();
+    } else dispatchHere(new Runnable() {
+      public void run() { deliver(handlers, promises); }
     });
   }
 
-  /** Dispatch a promise to all promised bells. */
-  private <B extends Bell<? super T>> void dispatchPromises(List<B> bells) {
-    if (bells.isEmpty())
+  // Call handlers (if requested) and ring promised bells.
+  private void deliver(boolean handlers, Waiter promises) {
+    if (handlers)
+      callHandlers();
+    for (Waiter w = promises; w != null; w = w.next)
+      ringPromise((Bell) w.item);
+    delivered();
+  }
+
+  // Mark delivery as over, and ring bells promised while it was going on.
+  private void delivered() {
+    Object l = LATE.getAndSet(this, DELIVERED);
+    if (!(l instanceof Waiter))
       return;
+    Waiter head = null, w = (Waiter) l;
+    while (w != null) {
+      Waiter next = w.next;
+      w.next = head;
+      head = w;
+      w = next;
+    } for (w = head; w != null; w = w.next)
+      ringPromise((Bell) w.item);
+  }
+
+  // Ring a single promised bell with this bell's result.
+  private void ringPromise(Bell bell) {
     if (isFailed())
-      dispatch(new DispatchFail<B>(bells, error()));
+      bell.ring(error());
     else
-      dispatch(new DispatchDone<B,T>(bells, object()));
+      bell.ring(object());
+  }
+
+  // Try to enter an inline completion. Returns false if too deep.
+  private static boolean enterInline() {
+    int[] depth = inlineDepth.get();
+    if (depth[0] >= MAX_INLINE_DEPTH)
+      return false;
+    depth[0]++;
+    return true;
+  } private static void exitInline() {
+    inlineDepth.get()[0]--;
+  }
+
+  // Call the handlers.
+  private void callHandlers() {
+    if (isFailed()) try {
+      fail(error());
+    } catch (Throwable t) {
+      // Discard.
+    } else try {
+      done(object());
+    } catch (Throwable t) {
+      // Discard.
+    } try {
+      always();
+    } catch (Throwable t) {
+      // Discard.
+    }
   }
 
-  /** Dispatch a promise to a single bell. */
-  private <B extends Bell<? super T>> void dispatchPromise(B bell) {
-    List<B> bells = Collections.singletonList(bell);
-    dispatchPromises(bells);
+  /**
+   * Ring a promised bell now that this bell is done. If this bell's handlers
+   * and earlier promises have not been delivered yet, leave it for delivery
+   * to ring afterwards.
+   */
+  private void completePromise(final Bell bell) {
+    Object l;
+    do {
+      l = late;
+      if (l == DELIVERED)
+        break;
+    } while (!LATE.compareAndSet(this, l, new Waiter(bell, (Waiter) l)));
+    if (l != DELIVERED)
+      return;
+
+    if (enterInline()) try {
+      ringPromise(bell);
+    } finally {
+      exitInline();
+    } else dispatchHere(new Runnable() {
+      public void run() { ringPromise(bell); }
+    });
+  }
+
+  // Dispatch through the strand this bell has affinity for, if any.
+  private void dispatchHere(Runnable runnable) {
+    if (affinity != null)
+      affinity.dispatch(runnable);
+    else
+      Dispatcher.getDefault().dispatch(runnable);
   }
 
   /**
@@ -175,11 +330,8 @@ public class Bell<T> implements Future<T> {
    * {@code false} otherwise.
    * @see Future#cancel(boolean)
    */
-  public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-    if (isDone())
-      return false;
-    ring(null, new CancellationException());
-    return true;
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return resolve(null, new CancellationException());
   }
 
   /**
@@ -198,34 +350,54 @@ public class Bell<T> implements Future<T> {
    * CancellationException}.
    * @see Future#isCancelled
    */
-  public synchronized boolean isCancelled() {
-    return isFailed() && error() instanceof CancellationException;
-  }
-
-  /** Return {@code true} if the {@code Bell} is unrung. */
-  private synchronized boolean isUnrung() {
-    return state == 0;
+  public boolean isCancelled() {
+    return error() instanceof CancellationException;
   }
 
   /** Return {@code true} if the {@code Bell} has been rung. */
-  public final synchronized boolean isDone() {
-    return state >= 2;
+  public final boolean isDone() {
+    Object s = state;
+    return s != null && !(s instanceof Waiter);
   }
 
   /** Return {@code true} if the {@code Bell} rang successfully. */
-  public final synchronized boolean isSuccessful() {
-    return isDone() && state == 2;
+  public final boolean isSuccessful() {
+    return isDone() && !isFailed();
   }
 
   /** Return {@code true} if the {@code Bell} failed. */
-  public final synchronized boolean isFailed() {
-    return isDone() && state == 3;
+  public final boolean isFailed() {
+    return state instanceof Failure;
+  }
+
+  /**
+   * Push a waiter for the current thread onto the stack. Returns {@code null}
+   * if the bell has already rung.
+   */
+  private Waiter pushThread() {
+    Waiter w = new Waiter(Thread.currentThread(), null);
+    while (true) {
+      Object s = state;
+      if (s != null && !(s instanceof Waiter))
+        return null;
+      w.next = (Waiter) s;
+      if (STATE.compareAndSet(this, s, w))
+        return w;
+    }
   }
 
   /** Wait for the {@code Bell} to be rung, then return the value. */
-  public synchronized T get() throws InterruptedException, ExecutionException {
-    while (!isDone())
-      wait();
+  public T get() throws InterruptedException, ExecutionException {
+    Waiter w = isDone() ? null : pushThread();
+    try {
+      while (!isDone()) {
+        LockSupport.park(this);
+        if (Thread.interrupted())
+          throw new InterruptedException();
+      }
+    } finally {
+      if (w != null) w.item = null;
+    }
     return getOrThrow();
   }
 
@@ -233,12 +405,22 @@ public class Bell<T> implements Future<T> {
    * Wait for the {@code Bell} to be rung up to the specified time, then return the
    * value.
    */
-  public synchronized T get(long timeout, TimeUnit unit)
+  public T get(long timeout, TimeUnit unit)
   throws InterruptedException, ExecutionException, TimeoutException {
-    if (!isDone())
-      unit.timedWait(this, timeout);
-    if (!isDone())
-      throw new TimeoutException();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    Waiter w = isDone() ? null : pushThread();
+    try {
+      while (!isDone()) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0)
+          throw new TimeoutException();
+        LockSupport.parkNanos(this, left);
+        if (Thread.interrupted())
+          throw new InterruptedException();
+      }
+    } finally {
+      if (w != null) w.item = null;
+    }
     return getOrThrow();
   }
 
@@ -258,11 +440,13 @@ public class Bell<T> implements Future<T> {
    * convenient for the caller. It blocks uninterruptably and throws unchecked
    * exceptions.
    */
-  public synchronized T sync() {
-    while (!isDone()) try {
-      wait();
-    } catch (InterruptedException e) {
-      // Ignore it.
+  public T sync() {
+    Waiter w = isDone() ? null : pushThread();
+    while (!isDone()) {
+      LockSupport.park(this);
+      Thread.interrupted();  // Ignore it.
+    } if (w != null) {
+      w.item = null;
     } if (!isFailed()) {
       return object();
     } if (error() instanceof RuntimeException) {
@@ -322,20 +506,20 @@ public class Bell<T> implements Future<T> {
    * @param bell the {@code Bell} to promise to this {@code Bell}.
    * @return The value passed in for {@code bell}.
    */
-  public synchronized <V extends Bell<? super T>> V promise(V bell) {
-    if (bell.isDone()) {
+  public <V extends Bell<? super T>> V promise(V bell) {
+    if (bell.isDone())
       return bell;  // Don't be silly...
-    } if (isDone()) {
-      dispatchPromise(bell);  // We've already rung, dispatch.
-    } else switch (promises.size()) {
-      case 0:  // This is an immutable empty list. Change to singleton.
-        promises = (List) Collections.singletonList(bell);
+    Waiter w = new Waiter(bell, null);
+    while (true) {
+      Object s = state;
+      if (s != null && !(s instanceof Waiter))
         break;
-      case 1:  // This is the singleton. Make a mutable list.
-        promises = new LinkedList<Bell<? super T>>(promises);
-      default:
-        promises.add(bell);
-    } return bell;
+      w.next = (Waiter) s;
+      if (STATE.compareAndSet(this, s, w))
+        return bell;
+    }
+    completePromise(bell);  // We've already rung, ring it now.
+    return bell;
   }
 
   /**
@@ -355,6 +539,18 @@ public class Bell<T> implements Future<T> {
     { Bell.this.promise(this); }
   }
 
+  /**
+   * A {@code Promise} whose handlers only ring other {@code Bell}s, and so
+   * may be called inline. Subclasses must not declare fields, since handlers
+   * may be called before subclass initialization if the parent has rung.
+   */
+  private abstract class InlinePromise extends Bell<T> {
+    {
+      ((Bell) this).inline = true;
+      Bell.this.promise(this);
+    }
+  }
+
   /**
    * A {@code Bell} which is promised to the parent {@code Bell} on
    * instantiation, and performs a conversion using the {@code convert(T)}
@@ -466,7 +662,7 @@ public class Bell<T> implements Future<T> {
    */
   public final <V> Bell<V> as(final V done) {
     final Bell<V> bell = new Bell<V>();
-    this.new Promise() {
+    this.new InlinePromise() {
       public void done() { bell.ring(done); }
       public void fail(Throwable t) { bell.ring(t); }
     };
@@ -482,7 +678,7 @@ public class Bell<T> implements Future<T> {
    */
   public final <V> Bell<V> as(final V done, final V fail) {
     final Bell<V> bell = new Bell<V>();
-    this.new Promise() {
+    this.new InlinePromise() {
       public void done() { bell.ring(done); }
       public void fail() { bell.ring(fail); }
     };
@@ -497,7 +693,7 @@ public class Bell<T> implements Future<T> {
    * @param deadline the time in seconds after call time that the {@code Bell}
    * may remain unresolved.
    */
-  public synchronized Bell<T> deadline(double deadline) {
+  public Bell<T> deadline(double deadline) {
     if (!isDone()) new Task() {
       public void run() { ring(new TimeoutException()); }
     }.dispatch(deadline);
@@ -525,7 +721,7 @@ public class Bell<T> implements Future<T> {
    */
   public Bell<T> onSuccess() {
     final Bell<T> bell = new Bell<T>();
-    new Promise() {
+    new InlinePromise() {
       public void done(T t) { bell.ring(t); }
     };
     return bell;
@@ -537,7 +733,7 @@ public class Bell<T> implements Future<T> {
    */
   public <T> Bell<T> onFail() {
     final Bell<T> bell = new Bell<T>();
-    new Promise() {
+    new InlinePromise() {
       public void fail(Throwable t) { bell.ring(t); }
     };
     return bell;
@@ -563,14 +759,14 @@ public class Bell<T> implements Future<T> {
    */
   public <V> Bell<V> and(final Bell<V> other) {
     final Bell<V> bell = new Bell<V>();
-    new Promise() {
+    new InlinePromise() {
       public void done(T t) {
         other.promise(bell);
       } public void fail(Throwable t) {
         bell.ring(t);
       }
     };
-    other.new Promise() {
+    other.new InlinePromise() {
       public void done(V v) {
         if (Bell.this.isDone()) bell.ring(v);
       } public void fail(Throwable t) {
@@ -605,14 +801,14 @@ public class Bell<T> implements Future<T> {
     if (len == 1) for (Bell b : bells)
       if (b != null) return b;
     return new Bell() {
-      int failed = 0;
+      final AtomicInteger failed = new AtomicInteger();
       {
         final Bell bell = this;
         for (final Bell b : bells) if (b != null) b.new Promise() {
           public void done() {
             bell.ring();
           } public void fail(Throwable t) {
-            if (++failed == len) bell.ring(t);
+            if (failed.incrementAndGet() == len) bell.ring(t);
           }
         };
       }
@@ -644,12 +840,12 @@ public class Bell<T> implements Future<T> {
     if (len == 1) for (Bell b : bells)
       if (b != null) return b;
     return new Bell() {
-      int succeeded = 0;
+      final AtomicInteger succeeded = new AtomicInteger();
       {
         final Bell bell = this;
         for (final Bell b : bells) if (b != null) b.new Promise() {
           public void done() {
-            if (++succeeded == len) bell.ring();
+            if (succeeded.incrementAndGet() == len) bell.ring();
           } public void fail(Throwable t) {
             bell.ring(t);
           }
@@ -721,48 +917,32 @@ public class Bell<T> implements Future<T> {
     });
   }
 
-  /** Put some runnable task on the main dispatch queue. */
+  /**
+   * Put some runnable task on the dispatch queue. If called from a {@link
+   * Strand}, the task is dispatched through the same {@code Strand}.
+   */
   public static void dispatch(Runnable runnable) {
-    dispatcher.dispatch(runnable);
+    Dispatcher.current().dispatch(runnable);
   }
 
-  /** Put some delayed runnable task on the main dispatch queue. */
+  /**
+   * Put some delayed runnable task on the dispatch queue. If called from a
+   * {@link Strand}, the task is dispatched through the same {@code Strand}.
+   */
   public static void dispatch(Runnable runnable, double delay) {
-    dispatcher.dispatch(runnable, delay);
+    Dispatcher.current().dispatch(runnable, delay);
   }
 
   /** A task for the dispatch loop. */
-  private static abstract class Task implements Runnable {
+  private abstract class Task implements Runnable {
     final void dispatch() {
-      dispatcher.dispatch(this);
+      dispatchHere(this);
     } final void dispatch(double delay) {
-      dispatcher.dispatch(this, delay);
+      if (affinity != null)
+        affinity.dispatch(this, delay);
+      else
+        Dispatcher.getDefault().dispatch(this, delay);
     }
     public abstract void run();
   }
 }
-
-/** Dispatch a successful value to the given bells. */
-final class DispatchDone<B extends Bell<? super C>,C> implements Runnable {
-  final C object;
-  final List<B> bells;
-  DispatchDone(List<B> bells, C object) {
-    this.bells = bells;
-    this.object = object;
-  } public void run() {
-    for (B b : bells) b.ring(object);
-  }
-}
-
-/** Dispatch a failure value to the given bells. */
-final class DispatchFail<B extends Bell<?>> implements Runnable {
-  final Throwable error;
-  final List<B> bells;
-  DispatchFail(List<B> bells, Throwable error) {
-    this.bells = bells;
-    this.error = error;
-  } public void run() {
-    for (B b : bells) b.ring(error);
-  }
-}
-
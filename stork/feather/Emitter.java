@@ -26,11 +26,14 @@ public class Emitter<T> extends Bell {
     { pull(); }
     private void pull() {
       Emitter.this.get(new Bell<T>() {
-        public T convert(T t) throws Throwable {
-          each(t);
-          return t;
-        } public void done() {
-          pull();
+        public void done(T t) {
+          if (ForEach.this.isDone()) return;
+          try {
+            each(t);
+          } catch (Throwable e) {
+            ForEach.this.ring(e);
+            return;
+          } pull();
         } public void fail(Throwable t) {
           if (isCancelled())
             ForEach.this.ring();
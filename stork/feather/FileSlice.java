@@ -0,0 +1,170 @@
+package stork.feather;
+
+import java.io.*;
+import java.nio.channels.*;
+
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.util.*;
+
+/**
+ * A {@code Slice} which refers to a region of a file rather than holding its
+ * data in memory. {@code FileSlice}s allow data to be moved between a file
+ * and another channel using {@link FileChannel#transferTo(long, long,
+ * WritableByteChannel)}, so that the bytes never enter the JVM heap.
+ * <p/>
+ * A {@code FileSlice} has no buffer, so its {@link #asByteBuf()} is empty. A
+ * {@code Tap} should only emit {@code FileSlice}s if {@link
+ * Pipe#acceptsFileSlices()} returns {@code true}, and a {@code Sink} which
+ * accepts them must check for them in {@code drain()}.
+ * <p/>
+ * {@code FileSlice}s follow the same reference counting rules as other
+ * {@code Slice}s. Each {@code FileSlice} holds a reference to a shared {@link
+ * Handle}, and the underlying file is closed once the last reference to it
+ * is released.
+ */
+public class FileSlice extends Slice {
+  private final Region region;
+
+  /**
+   * Create a {@code FileSlice} for {@code count} bytes of the file held by
+   * {@code handle}, starting at {@code position}. The offset of the {@code
+   * Slice} will be {@code position}.
+   *
+   * @param handle the {@code Handle} for the file.
+   * @param position the position of the region in the file.
+   * @param count the length of the region in bytes.
+   */
+  public FileSlice(Handle handle, long position, int count) {
+    this(new Region(handle.retain(), position, count), position);
+  }
+
+  private FileSlice(Region region, long offset) {
+    super(Unpooled.EMPTY_BUFFER, offset);
+    this.region = region;
+  }
+
+  /**
+   * A reference counted handle to an open {@code FileChannel}. The channel is
+   * closed when the last reference is released.
+   */
+  public static class Handle extends AbstractReferenceCounted {
+    private final FileChannel channel;
+
+    /**
+     * Create a {@code Handle} which owns {@code channel}.
+     *
+     * @param channel the {@code FileChannel} to share.
+     */
+    public Handle(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /** Get the {@code FileChannel} this {@code Handle} owns. */
+    public FileChannel channel() { return channel; }
+
+    public Handle retain() {
+      super.retain();
+      return this;
+    }
+
+    protected void deallocate() {
+      try {
+        channel.close();
+      } catch (Exception e) {
+        // Ignore.
+      }
+    }
+  }
+
+  // The Netty-facing part of a FileSlice, which also holds its references.
+  private static class Region extends AbstractReferenceCounted
+  implements FileRegion {
+    final Handle handle;
+    final long position;
+    final int count;
+    long transfered = 0;
+
+    Region(Handle handle, long position, int count) {
+      this.handle = handle;
+      this.position = position;
+      this.count = count;
+    }
+
+    public long position() { return position; }
+    public long count() { return count; }
+    public long transfered() { return transfered; }
+
+    public long transferTo(WritableByteChannel target, long position)
+    throws IOException {
+      long n = handle.channel.transferTo(
+        this.position+position, count-position, target);
+      if (n > 0)
+        transfered += n;
+      return n;
+    }
+
+    protected void deallocate() {
+      handle.release();
+    }
+  }
+
+  public int length() {
+    return region.count;
+  }
+
+  /** Get the position of the region in the file. */
+  public long position() {
+    return region.position;
+  }
+
+  public Slice offset(long offset) {
+    return (offset == offset()) ? this : new FileSlice(region, offset);
+  }
+
+  public FileSlice retain() {
+    region.retain();
+    return this;
+  }
+
+  public boolean release() {
+    return region.release();
+  }
+
+  public int refCnt() {
+    return region.refCnt();
+  }
+
+  /**
+   * Get this {@code FileSlice} as a Netty {@code FileRegion} which may be
+   * written to a channel. Writing the region consumes a reference, so the
+   * {@code FileSlice} should be retained first.
+   *
+   * @return A {@code FileRegion} sharing this {@code FileSlice}'s references.
+   */
+  public FileRegion region() {
+    return region;
+  }
+
+  /**
+   * Transfer the whole region to {@code target}. This blocks until all bytes
+   * have been transferred.
+   *
+   * @param target the channel to transfer the region to.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void transferTo(WritableByteChannel target) throws IOException {
+    FileChannel channel = region.handle.channel;
+    long position = region.position, end = position+region.count;
+    while (position < end) {
+      long n = channel.transferTo(position, end-position, target);
+      if (n <= 0 && position >= channel.size())
+        throw new EOFException("File was truncated during transfer.");
+      position += n;
+    }
+  }
+
+  public String toString() {
+    return "FileSlice("+region.position+", "+region.count+")";
+  }
+}
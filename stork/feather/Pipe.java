@@ -1,6 +1,7 @@
 package stork.feather;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A base class for anything which can serve as an element in a proxy transfer
@@ -15,7 +16,9 @@ public class Pipe {
   /** Will ring when this pipe has finished. */
   private final Bell finishBell = new Bell() {
     public void always() {
-      drainBell.new Promise() {
+      // Close the drain chain, so the last drain is the one we wait for.
+      Bell last = drainBell.getAndSet(CLOSED);
+      last.new Promise() {
         public void done() {
           downstream().finish();
         } public void fail(Throwable t) {
@@ -24,8 +27,13 @@ public class Pipe {
       };
     }
   };
-  /** Synchronizes drains. First ring should be by start(). */
-  private Bell drainBell = new Bell();
+  /** Rung by start(), to let the first drain through. */
+  private final Bell startDrain = new Bell();
+  /** Synchronizes drains. Set to CLOSED once finishing. */
+  private final AtomicReference<Bell> drainBell =
+    new AtomicReference<Bell>(startDrain);
+  /** Marks the drain chain of a finished pipe. */
+  private static final Bell CLOSED = new Bell();
 
   /** The orientation of a {@code Pipe} in a pipeline. */
   public static enum Orientation {
@@ -142,7 +150,7 @@ public class Pipe {
   protected synchronized Bell start() throws Exception {
     if (startBell == null) {
       startBell = safeStart();
-      startBell.promise(drainBell);
+      startBell.promise(startDrain);
     }
     return startBell.detach();
   }
@@ -163,6 +171,10 @@ public class Pipe {
    * default implementation is guaranteed never to throw an {@code Exception}.
    * Any {@code Exception} thrown by a downstream {@code Pipe} will be wrapped
    * in a {@code Bell}.
+   * <p/>
+   * Draining a {@code Slice} hands its buffer reference to the pipeline. The
+   * default implementation releases it once the {@code Sink} has finished
+   * with it, or if the pipeline has failed before it could be drained.
    *
    * @param slice a {@code Slice} being drained through the pipeline.
    * @return A {@code Bell} that rings when the pipeline is ready for more
@@ -174,29 +186,68 @@ public class Pipe {
    * some reason known immediately. The default implementation will never
    * throw.
    */
-  protected synchronized Bell drain(final Slice slice) throws Exception {
-    if (finishBell.isDone())
-      throw new IllegalStateException("Pipeline has finished.");
+  protected Bell drain(final Slice slice) throws Exception {
     final Bell next = new Bell();
-    drainBell.new Promise() {
+    Bell last;
+    do {
+      last = drainBell.get();
+      if (last == CLOSED || finishBell.isDone()) {
+        slice.release();
+        throw new IllegalStateException("Pipeline has finished.");
+      }
+    } while (!drainBell.compareAndSet(last, next));
+    last.new Promise() {
       public void done() {
         safeDrain(slice).promise(next);
       } public void fail(Throwable t) {
+        slice.release();
         finish(t);
       }
     };
-    drainBell = next;
     return next.detach();
   }
 
-  // Safe wrapper around downstream.drain().
-  private Bell safeDrain(Slice slice) {
+  // Safe wrapper around downstream.drain(). If downstream is a sink, the
+  // pipeline's reference to the slice is released once the sink is done.
+  private Bell safeDrain(final Slice slice) {
+    Bell bell;
     try {
-      Bell bell = downstream().drain(slice);
-      return (bell != null) ? bell.detach() : Bell.rungBell();
+      bell = downstream().drain(slice);
+      bell = (bell != null) ? bell.detach() : Bell.rungBell();
     } catch (Exception e) {
-      return Bell.wrap(e);
-    }
+      bell = Bell.wrap(e);
+    } if (downstream() instanceof Sink) {
+      if (bell.isDone()) slice.release();
+      else bell.new Promise() {
+        public void always() { slice.release(); }
+      };
+    } return bell;
+  }
+
+  /**
+   * Check whether {@code FileSlice}s may be drained through this {@code
+   * Pipe}. A {@code Tap} which can emit {@link FileSlice}s should check this
+   * once the pipeline has started, and emit ordinary {@code Slice}s if it
+   * returns {@code false}. The default implementation passes the question to
+   * the downstream {@code Pipe}, which is correct for pipes that do not look
+   * at slice contents. Pipes that do should override this.
+   *
+   * @return {@code true} if {@code FileSlice}s may be drained.
+   */
+  protected boolean acceptsFileSlices() {
+    return downstream != null && downstream.acceptsFileSlices();
+  }
+
+  /**
+   * Check if the pipeline downstream of this {@code Pipe} can drain {@code
+   * Slice}s in arbitrary order, placing each according to its {@link
+   * Slice#offset()}. The default implementation passes the question to the
+   * downstream {@code Pipe}.
+   *
+   * @return {@code true} if slices may be drained in arbitrary order.
+   */
+  public boolean random() {
+    return downstream != null && downstream.random();
   }
 
   /**
@@ -217,7 +268,7 @@ public class Pipe {
    * @param error a {@code Throwable} indicating what error occurred, or {@code
    * null} if the transfer finished successfully.
    */
-  protected synchronized void finish(final Throwable error) {
+  protected void finish(final Throwable error) {
     if (error == null)
       finishBell.ring();
     else
@@ -17,6 +17,8 @@ public class ProxyTransfer<S extends Resource<?,S>, D extends Resource<?,D>>
 extends Transfer<S,D> {
   private LinkedList<Pending> queue = new LinkedList<Pending>();
   private Throwable error = null;
+  private volatile Boolean random;  // Set when the first pipeline is built.
+  private volatile int concurrency = 0;  // Overrides the sessions if set.
 
   // A pending transfer and a bell to ring when it starts.
   private static class Pending {
@@ -44,11 +46,45 @@ extends Transfer<S,D> {
   public ProxyTransfer(S source, D destination) {
     super(source, destination);
 
+    // Run the pipeline on the source session's strand, so its handlers keep
+    // their order while other transfers use the rest of the dispatcher.
     onStart().new Promise() {
-      public void done() { transfer(Path.ROOT); }
+      public void done() {
+        source.session.strand().dispatch(new Runnable() {
+          public void run() { transfer(Path.ROOT); }
+        });
+      }
     };
   }
 
+  /**
+   * Get the number of data resources to transfer at once. Unless it has been
+   * set explicitly, this is the smaller of the source and destination
+   * sessions' concurrency, or one if neither session limits it.
+   */
+  public int concurrency() {
+    if (concurrency > 0)
+      return concurrency;
+    int s = source.session.concurrency();
+    int d = destination.session.concurrency();
+    int c = (s < 1) ? d : (d < 1) ? s : Math.min(s, d);
+    return (c < 1) ? 1 : c;
+  }
+
+  /**
+   * Set the number of data resources to transfer at once. Increasing the
+   * level takes effect immediately.
+   *
+   * @param concurrency the number of resources to transfer at once, or zero
+   * to let the sessions decide.
+   * @return This {@code ProxyTransfer}.
+   */
+  public ProxyTransfer<S,D> concurrency(int concurrency) {
+    this.concurrency = (concurrency < 0) ? 0 : concurrency;
+    popTransfers();
+    return this;
+  }
+
   // Check if we're able to start a data transfer according to the configured
   // concurrency level.
   private synchronized boolean canStartDataTransfer() {
@@ -100,7 +136,7 @@ extends Transfer<S,D> {
     final D dest = destination.select(path);
 
     // Stat the source to see what it is.
-    return src.stat().new AsBell<Object>() {
+    return src.stat(false).new AsBell<Object>() {
       public Bell<Object> convert(Stat stat) {
         Bell b = Bell.rungBell();
         if (stat.dir)
@@ -136,7 +172,9 @@ extends Transfer<S,D> {
 
   // Transfer a resource once we know it's a data resource.
   private synchronized Bell transferData(final Path path) {
-    return source.select(path).tap().attach(new Pipe() {
+    resourceStarted();
+    final Sink sink = destination.select(path).sink();
+    Pipe pipe = source.select(path).tap().attach(new Pipe() {
       protected Bell start() throws Exception {
         return super.start();
       } protected Bell drain(Slice slice) throws Exception {
@@ -144,21 +182,41 @@ extends Transfer<S,D> {
         return super.drain(slice);
       } protected void finish(Throwable t) {
         super.finish(t);
-        if (t != null)
+        if (t != null) {
           stop(t);
-        transferEnded(path);
+          transferEnded(path);
+        } else sink.onFinish().new Promise() {
+          // The sink may still be storing what it was given.
+          public void fail(Throwable e) {
+            stop(e);
+          } public void always() {
+            transferEnded(path);
+          }
+        };
       }
-    }).attach(destination.select(path).sink()).tap().start();
+    });
+    pipe.attach(sink);
+    if (random == null)
+      random = pipe.random();
+    return pipe.tap().start();
+  }
+
+  public boolean random() {
+    Boolean r = random;
+    if (r == null)
+      throw new IllegalStateException("Pipeline has not been initialized.");
+    return r;
   }
 
   // Transfer directory listing.
   private synchronized Bell transferList(final Path path) {
     Emitter<String> emitter = source.select(path).list();
-    final Bell bell = new Bell();
     listingStarted(path);
     emitter.new ForEach() {
+      // Start each entry as it arrives, if there is room for it.
       public void each(String name) {
         enqueueTransfer(path.appendLiteral(name), true);
+        popTransfers();
       } public void always() {
         listingEnded(path);
       }
@@ -177,6 +177,22 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   public Bell<Stat> stat() { throw unsupported("stat"); }
 
+  /**
+   * Get metadata for this {@code Resource}, optionally without the listing of
+   * its sub-{@code Resource}s. Callers which only need to know what kind of
+   * {@code Resource} this is, and will use {@link #list()} for the contents,
+   * should pass {@code false}. Implementations for which listing is costly
+   * should override this. The default implementation calls {@link #stat()}.
+   *
+   * @param list whether the listing is needed.
+   * @return (via bell) A {@link Stat} containing resource metadata.
+   * @throws Exception (via bell) if there was an error retrieving metadata for
+   * the {@code Resource}.
+   * @throws UnsupportedOperationException if metadata retrieval is not
+   * supported.
+   */
+  public Bell<Stat> stat(boolean list) { return stat(); }
+
   /**
    * Get a listing of names of sub-{@code Resource}s under this {@code
    * Resource}.
@@ -44,6 +44,18 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
   // If we've already started initializing, this will be non-null.
   private volatile Bell initializeBell;
 
+  // Serializes handlers for pipelines on this session. Created on demand.
+  private volatile Strand strand;
+
+  // Number of parallel streams to use for data transfers, where supported.
+  private volatile int parallelism = 1;
+
+  // Number of connections to the endpoint to use for concurrent transfers.
+  private volatile int connections = 1;
+
+  // Socket options for data connections, or null to use the default.
+  private volatile TCPOptions tcp;
+
   // Rung on close. Avoid letting this leak out.
   private final Bell<S> onClose = new Bell<S>() {
     public void always() { Session.this.cleanup(); }
@@ -116,6 +128,110 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
     } return initializeBell.as(this);
   }
 
+  /**
+   * Get the {@code Strand} through which work on this {@code Session} should
+   * be dispatched. {@code Bell}s created by tasks running on this {@code
+   * Strand} will run their handlers in order on the same {@code Strand},
+   * while other {@code Session}s proceed in parallel.
+   *
+   * @return The {@code Strand} associated with this {@code Session}.
+   */
+  public final Strand strand() {
+    Strand s = strand;
+    if (s == null) synchronized (this) {
+      if ((s = strand) == null)
+        s = strand = Dispatcher.getDefault().strand();
+    } return s;
+  }
+
+  /**
+   * Get the number of parallel data streams transfers through this {@code
+   * Session} should use. This is a hint, and implementations which cannot
+   * stripe data over several connections will use one.
+   *
+   * @return The number of parallel streams to use for data transfers.
+   */
+  public final int parallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Set the number of parallel data streams transfers through this {@code
+   * Session} should use.
+   *
+   * @param parallelism the number of streams. Values less than one are
+   * treated as one.
+   * @return This {@code Session}.
+   */
+  public final S parallelism(int parallelism) {
+    this.parallelism = (parallelism < 1) ? 1 : parallelism;
+    return (S) this;
+  }
+
+  /**
+   * Get the number of connections to the endpoint this {@code Session} may
+   * use for transferring several {@code Resource}s at once. This is a hint,
+   * and implementations which multiplex transfers over a single connection
+   * may ignore it.
+   *
+   * @return The maximum number of connections to use for data transfers.
+   */
+  public final int connections() {
+    return connections;
+  }
+
+  /**
+   * Set the number of connections to the endpoint this {@code Session} may
+   * use for transferring several {@code Resource}s at once.
+   *
+   * @param connections the number of connections. Values less than one are
+   * treated as one.
+   * @return This {@code Session}.
+   */
+  public final S connections(int connections) {
+    this.connections = (connections < 1) ? 1 : connections;
+    return (S) this;
+  }
+
+  /**
+   * Get the socket options this {@code Session} should use for the
+   * connections it opens to transfer data. This is a hint, and
+   * implementations which do not manage their own sockets will ignore it.
+   *
+   * @return The {@code TCPOptions} for data connections.
+   */
+  public final TCPOptions tcp() {
+    TCPOptions t = tcp;
+    return (t != null) ? t : TCPOptions.getDefault();
+  }
+
+  /**
+   * Set the socket options this {@code Session} should use for data
+   * connections opened from now on.
+   *
+   * @param tcp the {@code TCPOptions} to use, or {@code null} to use the
+   * process-wide default.
+   * @return This {@code Session}.
+   */
+  public final S tcp(TCPOptions tcp) {
+    this.tcp = tcp;
+    return (S) this;
+  }
+
+  /**
+   * Get the number of data {@code Resource}s this {@code Session} can
+   * usefully transfer at once. A {@code ProxyTransfer} uses the smaller of
+   * its endpoints' values, ignoring values less than one, which indicate the
+   * {@code Session} does not limit concurrency. The default implementation
+   * returns one.
+   *
+   * @return The number of data transfers to run through this {@code Session}
+   * at once, or a value less than one if there is no limit.
+   */
+  public int concurrency() {
+    return 1;
+  }
+
   /**
    * Prepare the {@code Session} to perform operations on its {@code
    * Resource}s. The exact nature of this preparation varies from
@@ -57,4 +57,32 @@ public abstract class Sink<D extends Resource> extends Pipe {
   protected abstract Bell drain(Slice slice) throws Exception;
 
   protected abstract void finish(Throwable t);
+
+  /**
+   * Get a {@code Bell} which rings once everything drained into this {@code
+   * Sink} has been stored, or fails if it could not be. Sinks which are still
+   * writing when {@link #finish(Throwable)} returns should override this, so
+   * that the transfer waits for them and fails if they do. The default
+   * implementation returns a rung {@code Bell}.
+   */
+  protected Bell onFinish() {
+    return Bell.rungBell();
+  }
+
+  /**
+   * Check whether this {@code Sink} writes {@code Slice}s at their offsets,
+   * so that they may be drained in arbitrary order. The default
+   * implementation returns {@code false}.
+   */
+  public boolean random() {
+    return false;
+  }
+
+  /**
+   * Check whether this {@code Sink} can drain {@link FileSlice}s. The default
+   * implementation returns {@code false}.
+   */
+  protected boolean acceptsFileSlices() {
+    return false;
+  }
 }
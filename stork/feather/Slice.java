@@ -10,11 +10,37 @@ import io.netty.util.*;
  * by a {@link Tap}, and is the fundamental unit of data transfer in a proxy
  * pipeline. Slices encapsulate a byte buffer and optionally an offset
  * indicating the location of the data within the originating resource.
+ * <p/>
+ * The buffer underlying a {@code Slice} is reference counted. A newly created
+ * {@code Slice} holds one reference, which is handed to the pipeline when the
+ * {@code Slice} is drained. The {@link Pipe} that drains a {@code Slice} into
+ * a {@link Sink} releases that reference once the {@code Bell} returned by the
+ * {@code Sink} rings. A {@code Sink} which needs the data after that point
+ * must {@link #retain()} the {@code Slice}, and {@link #release()} it when it
+ * is done. Netty write operations consume a reference, so a {@code Sink}
+ * writing a {@code Slice}'s buffer to a Netty channel must retain it first.
+ * <p/>
+ * {@code Tap}s should allocate buffers with {@link #allocate(int)}, which
+ * draws direct buffers from a shared pool. Setting the {@code
+ * feather.leakDetection} system property to one of {@code simple}, {@code
+ * advanced}, or {@code paranoid} enables Netty's leak detection for pooled
+ * buffers, which is useful when running tests.
  */
 public class Slice {
   private final long offset;
   private final ByteBuf buffer;
 
+  /** The allocator used for buffers allocated by Feather. */
+  private static final ByteBufAllocator ALLOCATOR =
+    PooledByteBufAllocator.DEFAULT;
+
+  static {
+    String level = System.getProperty("feather.leakDetection");
+    if (level != null)
+      ResourceLeakDetector.setLevel(
+        ResourceLeakDetector.Level.valueOf(level.toUpperCase()));
+  }
+
   /**
    * An empty slice with no specified offset.
    */
@@ -90,6 +116,56 @@ public class Slice {
     this.offset = slice.offset;
   }
 
+  /**
+   * Allocate a pooled, direct {@code Slice} with an unspecified offset. The
+   * returned {@code Slice} is empty, and data should be written to its
+   * underlying {@code ByteBuf}.
+   *
+   * @param capacity the initial capacity of the buffer in bytes.
+   * @return A new {@code Slice} backed by a pooled direct buffer.
+   */
+  public static Slice allocate(int capacity) {
+    return new Slice(ALLOCATOR.directBuffer(capacity));
+  }
+
+  /**
+   * Get the {@code ByteBufAllocator} Feather allocates pooled buffers from.
+   *
+   * @return The shared pooled {@code ByteBufAllocator}.
+   */
+  public static ByteBufAllocator allocator() {
+    return ALLOCATOR;
+  }
+
+  /**
+   * Increment the reference count of the underlying buffer.
+   *
+   * @return This {@code Slice}.
+   */
+  public Slice retain() {
+    buffer.retain();
+    return this;
+  }
+
+  /**
+   * Decrement the reference count of the underlying buffer, returning it to
+   * its pool if the count reaches zero.
+   *
+   * @return {@code true} if the buffer was deallocated.
+   */
+  public boolean release() {
+    return buffer.release();
+  }
+
+  /**
+   * Get the reference count of the underlying buffer.
+   *
+   * @return The reference count of the underlying buffer.
+   */
+  public int refCnt() {
+    return buffer.refCnt();
+  }
+
   /**
    * Return the length of the payload in bytes, or -1 if unknown. Specifically,
    * this is the length of the plaintext bytes represented by this slice, which
@@ -149,7 +225,10 @@ public class Slice {
    * @return The data as a byte array.
    */
   public final byte[] asBytes() {
-    return buffer.hasArray() ? buffer.array() : asBytes(new byte[length()]);
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 &&
+        buffer.readerIndex() == 0 && buffer.array().length == length())
+      return buffer.array();
+    return asBytes(new byte[length()]);
   }
 
   /**
@@ -161,7 +240,8 @@ public class Slice {
    * @return The {@code byte[]} passed in as {@code array}.
    */
   public final byte[] asBytes(byte[] array) {
-    buffer.getBytes(0, array);
+    buffer.getBytes(buffer.readerIndex(), array, 0,
+                    Math.min(array.length, length()));
     return array;
   }
 
@@ -28,6 +28,8 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
   private Throughput throughput = new Throughput();
 
   private boolean startCalled = false;
+  // Rings when the next data resource starts, and is then replaced.
+  private Bell<Transfer<S,D>> nextResource = new Bell<Transfer<S,D>>();
   private final Bell onStart = new Bell() {
     public void done() {
       if (!Transfer.this.isDone())
@@ -170,6 +172,29 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
     return this;
   }
 
+  /**
+   * Used by subclasses to note that a data resource is starting to transfer.
+   * This should be called before the resource's pipeline is started, so that
+   * anything the pipeline reads from the sessions is read after it.
+   */
+  protected final void resourceStarted() {
+    Bell<Transfer<S,D>> bell;
+    synchronized (this) {
+      bell = nextResource;
+      nextResource = new Bell<Transfer<S,D>>();
+    } bell.ring(this);
+  }
+
+  /**
+   * Return a {@code Bell} which rings the next time a data resource starts
+   * to transfer.
+   *
+   * @return A {@code Bell} which rings when the next data resource starts.
+   */
+  public final synchronized Bell<Transfer<S,D>> onNextResource() {
+    return nextResource.detach();
+  }
+
   /**
    * Check if the pipeline is capable of draining {@code Slice}s in arbitrary
    * order. The return value of this method should remain constant across
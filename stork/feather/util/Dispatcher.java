@@ -1,55 +1,143 @@
 package stork.feather.util;
 
-import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * A dispatch loop used internally. The dispatch loop maintains a timer thread
- * that will be destroyed when there are no dispatched tasks.
+ * A dispatch loop used internally to execute {@code Bell} handlers and other
+ * asynchronous tasks. This class defines the pluggable interface Feather uses
+ * for dispatching work, and maintains the process-wide default {@code
+ * Dispatcher} along with a shared timer wheel for delayed tasks.
+ * <p/>
+ * The default implementation is chosen by the {@code feather.dispatcher}
+ * system property. A value of {@code "pool"} (the default) selects a {@link
+ * PoolDispatcher} backed by a work-stealing pool, while {@code "serial"}
+ * selects a {@link SerialDispatcher} which runs everything on a single thread.
+ * The number of pool threads may be set with {@code
+ * feather.dispatcher.threads}.
+ * <p/>
+ * Tasks which must execute in order relative to each other should be
+ * dispatched through a {@link Strand}, obtained from {@link #strand()}.
  */
-public class Dispatcher {
-  private String name;
-  private long count;
-  private Timer timer;
-
-  /** Create an unnamed {@code Dispatcher}. */
-  public Dispatcher() { this(null); }
-
-  /** Create a {@code Dispatcher} with the given name. */
-  public Dispatcher(String name) { this.name = name; }
-
-  // Wrap a runnable for safety.
-  private TimerTask wrap(final Runnable r) {
-    return new TimerTask() {
-      public void run() {
-        try {
-          r.run();
-        } catch (Exception e) {
-          // Ignore.
-        } finally {
-          dispatchFinished();
-        }
-      }
-    };
+public abstract class Dispatcher implements Executor {
+  private static volatile Dispatcher defaultDispatcher;
+
+  // The strand whose task is executing on the current thread, if any.
+  private static final ThreadLocal<Strand> currentStrand =
+    new ThreadLocal<Strand>();
+
+  // Timer wheel used to implement delayed dispatches.
+  private static final TimerWheel wheel =
+    new TimerWheel("Bell Timer", 10, 512);
+
+  /**
+   * Get the process-wide default {@code Dispatcher}. This will be created
+   * according to the {@code feather.dispatcher} system property when first
+   * called.
+   *
+   * @return The default {@code Dispatcher}.
+   */
+  public static Dispatcher getDefault() {
+    Dispatcher d = defaultDispatcher;
+    if (d == null) synchronized (Dispatcher.class) {
+      if ((d = defaultDispatcher) == null)
+        d = defaultDispatcher = createDefault();
+    } return d;
+  }
+
+  /**
+   * Replace the process-wide default {@code Dispatcher}. Tasks already
+   * dispatched to the previous default are unaffected.
+   *
+   * @param dispatcher the new default {@code Dispatcher}.
+   * @throws NullPointerException if {@code dispatcher} is {@code null}.
+   */
+  public static synchronized void setDefault(Dispatcher dispatcher) {
+    if (dispatcher == null)
+      throw new NullPointerException("dispatcher");
+    defaultDispatcher = dispatcher;
+  }
+
+  // Create the default dispatcher based on system properties.
+  private static Dispatcher createDefault() {
+    String type = System.getProperty("feather.dispatcher", "pool");
+    if (type.equalsIgnoreCase("serial"))
+      return new SerialDispatcher("Bell Dispatcher");
+    int threads = Integer.getInteger("feather.dispatcher.threads", 0);
+    return new PoolDispatcher("Bell Dispatcher", threads);
+  }
+
+  /**
+   * Get the {@code Strand} executing on the current thread. This is used to
+   * give tasks created by a strand's task affinity for that strand.
+   *
+   * @return The {@code Strand} currently executing a task on this thread, or
+   * {@code null} if this thread is not running a strand's task.
+   */
+  public static Strand affinity() {
+    return currentStrand.get();
+  }
+
+  /**
+   * Get the {@code Dispatcher} tasks created on the current thread should be
+   * dispatched to. This is the current {@code Strand} if there is one, or the
+   * default {@code Dispatcher} otherwise.
+   *
+   * @return The {@code Dispatcher} for the current thread.
+   */
+  public static Dispatcher current() {
+    Strand s = currentStrand.get();
+    return (s != null) ? s : getDefault();
+  }
+
+  // Used by Strand to mark which strand the current thread is running.
+  static Strand enter(Strand strand) {
+    Strand old = currentStrand.get();
+    currentStrand.set(strand);
+    return old;
+  } static void leave(Strand old) {
+    currentStrand.set(old);
   }
 
   /** Schedule {@code runnable} to be executed as soon as possible. */
-  public synchronized void dispatch(final Runnable runnable) {
-    dispatch(runnable, 0);
+  public abstract void dispatch(Runnable runnable);
+
+  /**
+   * Schedule {@code runnable} to be executed after a delay. The default
+   * implementation places the task on a shared timer wheel, and dispatches it
+   * through this {@code Dispatcher} when it expires.
+   *
+   * @param runnable the task to run.
+   * @param delay the delay in seconds.
+   */
+  public void dispatch(final Runnable runnable, double delay) {
+    if (delay <= 0) {
+      dispatch(runnable);
+    } else wheel.schedule(new Runnable() {
+      public void run() { dispatch(runnable); }
+    }, (long) (delay*1E9));
+  }
+
+  /** Equivalent to {@link #dispatch(Runnable)}. */
+  public final void execute(Runnable runnable) {
+    dispatch(runnable);
   }
 
-  /** Schedule {@code runnable} to be executed after a delay. */
-  public synchronized void dispatch(Runnable runnable, double delay) {
-    if (timer == null)
-      timer = new Timer(name == null ? "Dispatcher" : name);
-    timer.schedule(wrap(runnable), (long)(delay*1E3));
-    count++;
+  /**
+   * Create a new {@code Strand} which executes tasks serially on this {@code
+   * Dispatcher}.
+   *
+   * @return A new {@code Strand} backed by this {@code Dispatcher}.
+   */
+  public Strand strand() {
+    return new Strand(this);
   }
 
-  /** Called when a dispatch has completed. */
-  private synchronized void dispatchFinished() {
-    if (--count == 0) {
-      timer.cancel();
-      timer = null;
+  /** Run {@code runnable}, discarding anything it throws. */
+  protected static void runSafely(Runnable runnable) {
+    try {
+      runnable.run();
+    } catch (Throwable t) {
+      // Ignore.
     }
   }
 }
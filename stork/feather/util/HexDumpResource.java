@@ -57,7 +57,6 @@ class HexDumpSink extends Sink<HexDumpResource> {
     //destination().out.println(slice.length());
     total += slice.length();
     HexDumpResource.throughput.update(slice.length());
-    slice.asByteBuf().release();
     return null;
   }
 
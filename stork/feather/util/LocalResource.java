@@ -3,6 +3,10 @@ package stork.feather.util;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.*;
+
+import io.netty.buffer.*;
+import io.netty.util.internal.*;
 
 import stork.feather.*;
 
@@ -142,11 +146,29 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
 
 class LocalTap extends Tap<LocalResource> {
   final File file = source().file();
-  private volatile Bell<?> pause = Bell.rungBell();
-  private RandomAccessFile raf;
+  private FileSlice.Handle handle;
   private FileChannel channel;
   private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
+  private boolean zeroCopy = false, mapped = false;
+  private MappedWindow map;  // The current window in mmap mode.
+
+  // Bells for slices which have been drained but not consumed by the sink.
+  private final Queue<Bell> inflight = new LinkedList<Bell>();
+  // Measured sink throughput, used to size chunks and the read-ahead window.
+  private final Throughput throughput = new Throughput();
+  private volatile int chunkSize = MIN_CHUNK, window = MIN_WINDOW;
+
+  // Bounds for the chunk size and the number of slices in flight.
+  private static final int MIN_CHUNK = 1 << 16, MAX_CHUNK = 1 << 23;
+  private static final int MIN_WINDOW = 2, MAX_WINDOW = 16;
+  private static final long MAX_BUFFERED = 1 << 25;
+  // Seconds of sink throughput to read at once, and to keep in flight.
+  private static final double CHUNK_TIME = .02, READ_AHEAD_TIME = .25;
+
+  // Size of regions emitted when the pipeline accepts file slices.
+  private static final int REGION_SIZE = 1 << 20;
+  // Size of the windows mapped in mmap mode.
+  private static final long MAP_SIZE = 1 << 26;
 
   // State of the current transfer.
   public LocalTap(LocalResource root) { super(root); }
@@ -160,31 +182,28 @@ class LocalTap extends Tap<LocalResource> {
       throw new RuntimeException("Resource is a directory");
 
     // Set up state.
-    raf = new RandomAccessFile(file, "r");
-    channel = raf.getChannel();
+    channel = new RandomAccessFile(file, "r").getChannel();
+    handle = new FileSlice.Handle(channel);
     remaining = file.length();
 
     return bell.new Promise() {
-      public void done() { doRead(); }
+      public void done() {
+        long threshold = source().session.mmapThreshold();
+        zeroCopy = acceptsFileSlices();
+        mapped = !zeroCopy && threshold > 0 && remaining >= threshold;
+        doRead();
+      }
     };
   }
 
   public void doRead() {
-    pause.new As<Void>() {
+    readAhead().new As<Void>() {
       public Void convert(Object o) throws Exception {
-        long len = remaining < chunkSize ? remaining : chunkSize;
-        ByteBuffer buffer = ByteBuffer.allocate((int) len);
-        len = channel.read(buffer);
-
-        if (len >= 0) {
-          buffer.rewind();
-          Slice slice = new Slice(buffer);
-          pause = drain(slice);
-          offset += len;
-          remaining -= len;
-        } else {
-          remaining = 0;
-        }
+        Slice slice =
+          zeroCopy ? readRegion() :
+          mapped   ? readMapped() : readBuffer();
+        if (slice != null)
+          emit(slice);
 
         if (remaining > 0)
           doRead();
@@ -197,27 +216,207 @@ class LocalTap extends Tap<LocalResource> {
     };
   }
 
-  protected void finish(Throwable t) {
+  // Return a bell which rings when there is room in the read-ahead window.
+  private Bell<?> readAhead() {
+    synchronized (inflight) {
+      while (!inflight.isEmpty() && inflight.peek().isSuccessful())
+        inflight.poll();
+      Bell head = inflight.peek();
+      if (head != null && (head.isFailed() || inflight.size() >= window))
+        return head;
+      return Bell.rungBell();
+    }
+  }
+
+  // Drain a slice, and measure the sink when it has been consumed.
+  private void emit(Slice slice) {
+    final int len = slice.length();
+    Bell bell = drain(slice);
+    synchronized (inflight) {
+      inflight.add(bell);
+    }
+    bell.new Promise() {
+      public void done() {
+        throughput.update(len);
+        adapt();
+      }
+    };
+  }
+
+  // Resize chunks and the read-ahead window based on sink throughput.
+  private void adapt() {
+    double rate = throughput.value();
+    int chunk = Integer.highestOneBit((int) Math.min(rate*CHUNK_TIME, MAX_CHUNK));
+    chunk = Math.max(chunk, MIN_CHUNK);
+    int w = (int) Math.ceil(rate*READ_AHEAD_TIME/chunk);
+    w = (int) Math.min(w, MAX_BUFFERED/chunk);
+    chunkSize = chunk;
+    window = Math.max(MIN_WINDOW, Math.min(w, MAX_WINDOW));
+  }
+
+  // Emit the next chunk of the file as a region, without reading it.
+  private Slice readRegion() {
+    int len = (int) Math.min(remaining, Math.max(chunkSize, REGION_SIZE));
+    Slice slice = new FileSlice(handle, offset, len);
+    offset += len;
+    remaining -= len;
+    return slice;
+  }
+
+  // Slice the next chunk out of the mapped window, mapping a new one first if
+  // the current window has been used up.
+  private Slice readMapped() throws Exception {
+    if (map == null || offset >= map.end) {
+      if (map != null)
+        map.release();
+      map = null;
+      long size = Math.min(remaining, MAP_SIZE);
+      map = new MappedWindow(
+        channel.map(FileChannel.MapMode.READ_ONLY, offset, size), offset);
+    }
+
+    int len = (int) Math.min(chunkSize, map.end-offset);
+    Slice slice = map.slice(offset, len);
+    offset += len;
+    remaining -= len;
+    return slice;
+  }
+
+  /**
+   * A mapped window of the file. Slices of the window share its reference
+   * count, and the window is unmapped once the tap and every slice have
+   * released it.
+   */
+  private static class MappedWindow extends WrappedByteBuf {
+    final MappedByteBuffer mapping;
+    final long start, end;
+
+    MappedWindow(MappedByteBuffer mapping, long start) {
+      super(Unpooled.wrappedBuffer(mapping));
+      this.mapping = mapping;
+      this.start = start;
+      this.end = start+mapping.capacity();
+    }
+
+    // Get a retained slice of the window for the given file region.
+    Slice slice(long offset, int length) {
+      ByteBuf buf = slice((int) (offset-start), length).retain();
+      return new Slice(buf, offset);
+    }
+
+    // Derived buffers must refer back to this window, not the wrapped one.
+    public ByteBuf slice() {
+      return slice(readerIndex(), readableBytes());
+    } public ByteBuf slice(int index, int length) {
+      return new SlicedByteBuf(this, index, length);
+    } public ByteBuf readSlice(int length) {
+      ByteBuf slice = slice(readerIndex(), length);
+      skipBytes(length);
+      return slice;
+    } public ByteBuf duplicate() {
+      return new DuplicatedByteBuf(this);
+    }
+
+    // Netty's read-only wrapper sets the limit of these to the length rather
+    // than the end, so sockets would see the wrong bytes.
+    public ByteBuffer nioBuffer() {
+      return nioBuffer(readerIndex(), readableBytes());
+    } public ByteBuffer nioBuffer(int index, int length) {
+      ByteBuffer b = mapping.duplicate();
+      b.position(index).limit(index+length);
+      return b.slice();
+    } public ByteBuffer[] nioBuffers() {
+      return nioBuffers(readerIndex(), readableBytes());
+    } public ByteBuffer[] nioBuffers(int index, int length) {
+      return new ByteBuffer[] { nioBuffer(index, length) };
+    }
+
+    public boolean release() {
+      return release(1);
+    } public boolean release(int decrement) {
+      if (!super.release(decrement))
+        return false;
+      PlatformDependent.freeDirectBuffer(mapping);
+      return true;
+    }
+  }
+
+  // Read the next chunk of the file into a pooled buffer.
+  private Slice readBuffer() throws Exception {
+    int len = (int) Math.min(remaining, chunkSize);
+    Slice slice = Slice.allocate(len);
     try {
-      raf.close();
-      channel.close();
-    } catch (Exception e) { }
+      len = slice.asByteBuf().writeBytes(channel, len);
+    } catch (Exception e) {
+      slice.release();
+      throw e;
+    }
+
+    if (len < 0) {
+      slice.release();
+      remaining = 0;
+      return null;
+    }
+
+    slice = slice.offset(offset);
+    offset += len;
+    remaining -= len;
+    return slice;
+  }
+
+  // The file is closed once every emitted region has been released.
+  protected void finish(Throwable t) {
+    if (handle != null)
+      handle.release();
+    if (map != null)
+      map.release();
+    handle = null;
+    map = null;
     super.finish(t);
   }
 }
 
+/**
+ * A sink which writes each slice at its offset, so slices may arrive in any
+ * order. Slices without an offset are appended after the furthest byte
+ * written so far.
+ */
 class LocalSink extends Sink<LocalResource> {
   final File file = destination().file();
   private RandomAccessFile raf;
   private FileChannel channel;
-  private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
+  private long offset = 0;
 
   // State of the current transfer.
   public LocalSink(LocalResource root) { super(root); }
 
   public Bell start() {
-    return new ThreadBell(destination().session.executor) {
+    return sourceSize().new AsBell<Object>() {
+      public Bell<Object> convert(Long size) {
+        return open(size);
+      }
+    };
+  }
+
+  // Get the size of the source, or -1 if it cannot be determined.
+  private Bell<Long> sourceSize() {
+    try {
+      Bell<Stat> stat = source().stat();
+      return stat.new As<Long>() {
+        public Long convert(Stat stat) {
+          return stat.file ? stat.size : -1;
+        } public Long convert(Throwable t) {
+          return -1L;
+        }
+      };
+    } catch (Exception e) {
+      return new Bell<Long>(-1L);
+    }
+  }
+
+  // Open the file, preallocating it to the source size if it is known.
+  private Bell<Object> open(final long size) {
+    return new ThreadBell<Object>(destination().session.executor) {
       public Object run() throws Exception {
         if (file.exists()) {
           if (!file.canWrite())
@@ -229,18 +428,37 @@ class LocalSink extends Sink<LocalResource> {
         // Set up state.
         raf = new RandomAccessFile(file, "rw");
         channel = raf.getChannel();
-        remaining = file.length();
+        if (size >= 0)
+          raf.setLength(size);
 
         return null;
       }
     }.start();
   }
 
+  public boolean random() {
+    return true;
+  }
+
+  protected boolean acceptsFileSlices() {
+    return true;
+  }
+
   public Bell drain(final Slice slice) {
     return new ThreadBell(destination().session.executor) {
       public Object run() throws Exception {
-        channel.write(slice.asByteBuf().nioBuffer());
-        slice.asByteBuf().release();
+        long position = (slice.offset() >= 0) ? slice.offset() : offset;
+        offset = Math.max(offset, position+slice.length());
+
+        if (slice instanceof FileSlice) {
+          channel.position(position);
+          ((FileSlice) slice).transferTo(channel);
+          return null;
+        }
+
+        ByteBuffer buffer = slice.asByteBuffer();
+        while (buffer.hasRemaining())
+          position += channel.write(buffer, position);
         return null;
       }
     }.start();
@@ -21,6 +21,7 @@ public class LocalSession extends Session<LocalSession,LocalResource> {
   final ScheduledThreadPoolExecutor executor =
     new ScheduledThreadPoolExecutor(1);
   final Path path;
+  private volatile long mmapThreshold = -1;
 
   /** Create a {@code LocalSession} at the system root. */
   public LocalSession() { this(Path.ROOT); }
@@ -36,6 +37,31 @@ public class LocalSession extends Session<LocalSession,LocalResource> {
     this.path = path;
   }
 
+  /**
+   * Set the size at which taps memory-map files rather than reading them.
+   * Mapped files are read in windows, which are unmapped once every {@code
+   * Slice} taken from them has been released. This only applies if the
+   * pipeline does not accept {@link FileSlice}s, which are cheaper still.
+   *
+   * @param size the minimum size of files to map, or a non-positive number
+   * to disable memory-mapping. It is disabled by default.
+   * @return This {@code LocalSession}.
+   */
+  public LocalSession mmapThreshold(long size) {
+    mmapThreshold = size;
+    return this;
+  }
+
+  /** Get the size at which taps memory-map files. */
+  public long mmapThreshold() {
+    return mmapThreshold;
+  }
+
+  // The file system does not limit the number of files open at once.
+  public int concurrency() {
+    return 0;
+  }
+
   public LocalResource select(Path path) {
     return new LocalResource(this, path);
   }
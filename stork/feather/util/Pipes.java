@@ -94,6 +94,10 @@ public final class Pipes {
         return null;
       }
 
+      protected boolean acceptsFileSlices() {
+        return false;
+      }
+
       public void finish(Throwable t) {
         ByteBuf[] array = list.toArray(new ByteBuf[0]);
         ByteBuf buf = Unpooled.wrappedBuffer(array);
@@ -107,7 +111,9 @@ public final class Pipes {
   }
 
   /**
-   * A {@code Sink} which receives and aggregates {@code Slice}s.
+   * A {@code Sink} which receives and aggregates {@code Slice}s. The
+   * aggregated {@code Slice} holds a reference to every drained buffer, and
+   * should be released by whoever consumes it.
    */
   public static class AggregatorSink extends Sink {
     private Bell<Slice> bell = new Bell<Slice>();
@@ -118,7 +124,7 @@ public final class Pipes {
     public Bell<Slice> bell() { return bell; }
 
     public Bell drain(Slice slice) {
-      list.add(slice.asByteBuf());
+      list.add(slice.asByteBuf().retain());
       return null;
     }
 
@@ -149,9 +155,9 @@ public final class Pipes {
  * View a Tap as an InputStream.
  */
 class PipeInputStream extends InputStream {
-  /** Queue of buffers received. */
-  private LinkedBlockingDeque<ByteBuffer> buffers =
-    new LinkedBlockingDeque<ByteBuffer>();
+  /** Queue of buffers received. Each holds a reference until read out. */
+  private LinkedBlockingDeque<ByteBuf> buffers =
+    new LinkedBlockingDeque<ByteBuf>();
   /** Ring on read. */
   private Bell readBell = new Bell();
   /** True when tap has finished. */
@@ -186,9 +192,9 @@ class PipeInputStream extends InputStream {
    * Save the slice and hold until it has been read out.
    */
   private synchronized Bell handleDrain(Slice slice) {
-    ByteBuffer buf = slice.asByteBuffer();
-    if (buf.remaining() > 0)
-      buffers.add(slice.asByteBuffer());
+    ByteBuf buf = slice.asByteBuf();
+    if (buf.isReadable())
+      buffers.add(buf.duplicate().retain());
     return readBell.detach();
   }
 
@@ -217,12 +223,14 @@ class PipeInputStream extends InputStream {
 
     // Keep taking buffers and filling b until done.
     while (!isDone() && total < len) try {
-      ByteBuffer buf = buffers.take();
-      int size = Math.min(len-total, buf.remaining());
-      buf.get(b, off+total, size);
+      ByteBuf buf = buffers.take();
+      int size = Math.min(len-total, buf.readableBytes());
+      buf.readBytes(b, off+total, size);
       total += size;
-      if (buf.hasRemaining())
+      if (buf.isReadable())
         buffers.addFirst(buf);
+      else
+        buf.release();
     } catch (InterruptedException e) {
       break;
     }
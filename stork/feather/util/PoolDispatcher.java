@@ -0,0 +1,74 @@
+package stork.feather.util;
+
+import java.util.concurrent.*;
+
+/**
+ * A {@code Dispatcher} backed by a work-stealing {@link ForkJoinPool}. Tasks
+ * dispatched from outside the pool are spread across all worker threads, and
+ * idle workers steal queued tasks from busy ones. The pool runs in
+ * asynchronous (FIFO) mode, which is better suited for event-style tasks that
+ * are never joined. Worker threads are daemons.
+ * <p/>
+ * This dispatcher provides no ordering guarantees between tasks. Use a {@link
+ * Strand} for tasks which must run in order.
+ */
+public class PoolDispatcher extends Dispatcher {
+  private final ForkJoinPool pool;
+
+  /** Create a {@code PoolDispatcher} with one thread per processor. */
+  public PoolDispatcher() { this(null, 0); }
+
+  /**
+   * Create a {@code PoolDispatcher} with the given thread name prefix and
+   * number of threads.
+   *
+   * @param name the name prefix for worker threads, or {@code null}.
+   * @param threads the number of worker threads. If this is less than one,
+   * one thread per available processor will be used.
+   */
+  public PoolDispatcher(String name, int threads) {
+    if (threads < 1)
+      threads = Runtime.getRuntime().availableProcessors();
+    pool = new ForkJoinPool(threads, factory(name), null, true);
+  }
+
+  // Create a factory for named daemon worker threads.
+  private static ForkJoinPool.ForkJoinWorkerThreadFactory factory(
+      final String name) {
+    return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread t =
+          ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName((name == null ? "Dispatcher" : name)+"-"+t.getPoolIndex());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  public void dispatch(Runnable runnable) {
+    pool.execute(new Task(runnable));
+  }
+
+  // Wraps a task directly, so the pool does not need to adapt it.
+  private static final class Task extends ForkJoinTask<Void> {
+    private final Runnable runnable;
+    Task(Runnable runnable) { this.runnable = runnable; }
+    public Void getRawResult() { return null; }
+    protected void setRawResult(Void v) { }
+    protected boolean exec() {
+      runSafely(runnable);
+      return true;
+    }
+  }
+
+  /** Get the number of worker threads in the pool. */
+  public int parallelism() {
+    return pool.getParallelism();
+  }
+
+  /** Get an estimate of the number of tasks waiting to be executed. */
+  public long queuedTasks() {
+    return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+  }
+}
@@ -0,0 +1,52 @@
+package stork.feather.util;
+
+import java.util.*;
+
+/**
+ * A {@code Dispatcher} which executes every task on a single timer thread.
+ * The thread will be destroyed when there are no dispatched tasks. This is
+ * mostly useful for debugging, as it guarantees tasks never run concurrently.
+ */
+public class SerialDispatcher extends Dispatcher {
+  private String name;
+  private long count;
+  private Timer timer;
+
+  /** Create an unnamed {@code SerialDispatcher}. */
+  public SerialDispatcher() { this(null); }
+
+  /** Create a {@code SerialDispatcher} with the given name. */
+  public SerialDispatcher(String name) { this.name = name; }
+
+  // Wrap a runnable for safety.
+  private TimerTask wrap(final Runnable r) {
+    return new TimerTask() {
+      public void run() {
+        try {
+          runSafely(r);
+        } finally {
+          dispatchFinished();
+        }
+      }
+    };
+  }
+
+  public void dispatch(Runnable runnable) {
+    dispatch(runnable, 0);
+  }
+
+  public synchronized void dispatch(Runnable runnable, double delay) {
+    if (timer == null)
+      timer = new Timer(name == null ? "Dispatcher" : name);
+    timer.schedule(wrap(runnable), (long)(delay*1E3));
+    count++;
+  }
+
+  /** Called when a dispatch has completed. */
+  private synchronized void dispatchFinished() {
+    if (--count == 0) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+}
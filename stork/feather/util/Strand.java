@@ -0,0 +1,69 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A {@code Dispatcher} which executes tasks one at a time, in the order they
+ * were dispatched, on top of another {@code Dispatcher}. A {@code Strand}
+ * never occupies more than one thread of its parent at once, so many strands
+ * can share a work-stealing pool while each keeps its own tasks ordered.
+ * <p/>
+ * While a strand's task is running, {@link Dispatcher#affinity()} returns that
+ * strand. {@code Bell}s created during that time will dispatch their handlers
+ * through the same strand.
+ */
+public class Strand extends Dispatcher {
+  /** Maximum tasks to run before yielding the parent thread. */
+  private static final int BATCH = 64;
+
+  private final Dispatcher parent;
+  private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  // Runs queued tasks on the parent dispatcher.
+  private final Runnable drainer = new Runnable() {
+    public void run() { drainQueue(); }
+  };
+
+  /**
+   * Create a {@code Strand} which runs its tasks on {@code parent}.
+   *
+   * @param parent the {@code Dispatcher} to run tasks on.
+   * @throws NullPointerException if {@code parent} is {@code null}.
+   */
+  public Strand(Dispatcher parent) {
+    if (parent == null)
+      throw new NullPointerException("parent");
+    this.parent = parent;
+  }
+
+  public void dispatch(Runnable runnable) {
+    queue.add(runnable);
+    schedule();
+  }
+
+  // Make sure a drainer is scheduled if there are tasks.
+  private void schedule() {
+    if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+      parent.dispatch(drainer);
+  }
+
+  // Run a batch of tasks, then reschedule if there is more work.
+  private void drainQueue() {
+    Strand old = enter(this);
+    try {
+      for (int i = 0; i < BATCH; i++) {
+        Runnable r = queue.poll();
+        if (r == null)
+          break;
+        runSafely(r);
+      }
+    } finally {
+      leave(old);
+      scheduled.set(false);
+      schedule();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package stork.feather.util;
+
+import io.netty.channel.*;
+
+/**
+ * Socket options applied to the TCP connections a {@code Session} opens for
+ * data transfers. Fields which are zero or {@code false} leave the system
+ * default in place. Sizes are in bytes.
+ * <p/>
+ * The process-wide default is read from {@code feather.tcp.*} system
+ * properties named after the fields, e.g. {@code feather.tcp.send_buffer}.
+ * <p/>
+ * On high bandwidth-delay paths, the kernel socket buffers bound the TCP
+ * window, and so the throughput of each connection. They should be at least
+ * the bandwidth-delay product of the path.
+ */
+public class TCPOptions {
+  private static volatile TCPOptions defaultOptions;
+
+  /** Kernel send buffer size (SO_SNDBUF). */
+  public int send_buffer = 0;
+  /** Kernel receive buffer size (SO_RCVBUF). */
+  public int receive_buffer = 0;
+  /** Disable Nagle's algorithm (TCP_NODELAY). */
+  public boolean nodelay = false;
+  /** Coalesce partial frames until uncorked (TCP_CORK). Only with epoll. */
+  public boolean cork = false;
+  /** Pending write bytes below which a channel becomes writable again. */
+  public int low_water_mark = 0;
+  /** Pending write bytes above which a channel stops being writable. */
+  public int high_water_mark = 0;
+
+  /**
+   * Get the process-wide default {@code TCPOptions}. This will be created from
+   * system properties when first called.
+   *
+   * @return The default {@code TCPOptions}.
+   */
+  public static TCPOptions getDefault() {
+    TCPOptions o = defaultOptions;
+    if (o == null) synchronized (TCPOptions.class) {
+      if ((o = defaultOptions) == null)
+        o = defaultOptions = fromProperties();
+    } return o;
+  }
+
+  /**
+   * Replace the process-wide default {@code TCPOptions}. Sessions which have
+   * been given their own options are unaffected.
+   *
+   * @param options the new default {@code TCPOptions}.
+   * @throws NullPointerException if {@code options} is {@code null}.
+   */
+  public static synchronized void setDefault(TCPOptions options) {
+    if (options == null)
+      throw new NullPointerException("options");
+    defaultOptions = options;
+  }
+
+  // Read the default options from system properties.
+  private static TCPOptions fromProperties() {
+    TCPOptions o = new TCPOptions();
+    o.send_buffer = Integer.getInteger("feather.tcp.send_buffer", 0);
+    o.receive_buffer = Integer.getInteger("feather.tcp.receive_buffer", 0);
+    o.nodelay = Boolean.getBoolean("feather.tcp.nodelay");
+    o.cork = Boolean.getBoolean("feather.tcp.cork");
+    o.low_water_mark = Integer.getInteger("feather.tcp.low_water_mark", 0);
+    o.high_water_mark = Integer.getInteger("feather.tcp.high_water_mark", 0);
+    return o;
+  }
+
+  /**
+   * Apply these options to a channel. This should be done when the channel
+   * is initialized, before it connects, so that the buffer sizes are taken
+   * into account when the TCP window is negotiated. Options the channel does
+   * not support are ignored.
+   *
+   * @param channel the {@code Channel} to configure.
+   * @return {@code channel}.
+   */
+  public <C extends Channel> C apply(C channel) {
+    ChannelConfig c = channel.config();
+    if (send_buffer > 0)
+      c.setOption(ChannelOption.SO_SNDBUF, send_buffer);
+    if (receive_buffer > 0)
+      c.setOption(ChannelOption.SO_RCVBUF, receive_buffer);
+    if (nodelay)
+      c.setOption(ChannelOption.TCP_NODELAY, true);
+    if (cork && CORK != null)
+      c.setOption(CORK, true);
+    // Set the marks in whichever order keeps the low mark below the high one.
+    if (high_water_mark >= c.getWriteBufferLowWaterMark()) {
+      if (high_water_mark > 0)
+        c.setWriteBufferHighWaterMark(high_water_mark);
+      if (low_water_mark > 0)
+        c.setWriteBufferLowWaterMark(low_water_mark);
+    } else {
+      if (low_water_mark > 0)
+        c.setWriteBufferLowWaterMark(low_water_mark);
+      if (high_water_mark > 0)
+        c.setWriteBufferHighWaterMark(high_water_mark);
+    } return channel;
+  }
+
+  // TCP_CORK is specific to the epoll transport, so look it up reflectively.
+  private static final ChannelOption<Boolean> CORK = cork();
+
+  private static ChannelOption<Boolean> cork() {
+    try {
+      return (ChannelOption<Boolean>)
+        Class.forName("io.netty.channel.epoll.EpollChannelOption")
+             .getField("TCP_CORK").get(null);
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof TCPOptions)) return false;
+    TCPOptions t = (TCPOptions) o;
+    return send_buffer == t.send_buffer &&
+           receive_buffer == t.receive_buffer &&
+           nodelay == t.nodelay && cork == t.cork &&
+           low_water_mark == t.low_water_mark &&
+           high_water_mark == t.high_water_mark;
+  }
+
+  public int hashCode() {
+    return send_buffer + 31*receive_buffer + 961*low_water_mark +
+           29791*high_water_mark + (nodelay ? 2 : 0) + (cork ? 1 : 0);
+  }
+
+  public String toString() {
+    return "sndbuf="+send_buffer+" rcvbuf="+receive_buffer+
+           " nodelay="+nodelay+" cork="+cork+
+           " watermarks="+low_water_mark+"/"+high_water_mark;
+  }
+}
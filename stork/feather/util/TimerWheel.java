@@ -0,0 +1,112 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A hashed timer wheel used by {@code Dispatcher} to implement delayed tasks.
+ * Scheduling and expiring a task are constant-time operations, at the cost of
+ * timer resolution being limited to the tick duration. The wheel is driven by
+ * a single daemon thread which sleeps while the wheel is empty. Expired tasks
+ * should be short; they are generally trampolines into a {@code Dispatcher}.
+ */
+class TimerWheel {
+  private final long tick;
+  private final List<Entry>[] buckets;
+  private long base;       // Time of tick zero, in nanoseconds.
+  private long ticks = 0;  // Number of ticks processed.
+  private int count = 0;   // Number of pending tasks.
+  private Thread thread;
+  private final String name;
+
+  // A scheduled task and the number of wheel turns left until it expires.
+  private static class Entry {
+    final Runnable runnable;
+    long rounds;
+    Entry(Runnable runnable, long rounds) {
+      this.runnable = runnable;
+      this.rounds = rounds;
+    }
+  }
+
+  /**
+   * Create a {@code TimerWheel}.
+   *
+   * @param name the name of the driving thread.
+   * @param tick the tick duration, in milliseconds.
+   * @param size the number of buckets in the wheel.
+   */
+  TimerWheel(String name, long tick, int size) {
+    this.name = name;
+    this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+    buckets = new List[size];
+    for (int i = 0; i < size; i++)
+      buckets[i] = new LinkedList<Entry>();
+  }
+
+  /** Run {@code runnable} on the wheel thread after {@code delay} nanos. */
+  synchronized void schedule(Runnable runnable, long delay) {
+    long now = System.nanoTime();
+    if (count++ == 0) {
+      // The wheel was idle. Pretend it has been ticking all along.
+      base = now - ticks*tick;
+      if (thread == null)
+        start();
+      notifyAll();
+    }
+    long target = (now - base + delay + tick - 1) / tick;
+    if (target <= ticks)
+      target = ticks+1;
+    long rounds = (target-ticks-1) / buckets.length;
+    buckets[(int) (target % buckets.length)].add(new Entry(runnable, rounds));
+  }
+
+  // Start the thread that drives the wheel.
+  private void start() {
+    thread = new Thread(name) {
+      public void run() { turn(); }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Advance the wheel forever, running expired tasks.
+  private void turn() {
+    List<Runnable> expired = new ArrayList<Runnable>();
+    while (true) {
+      try {
+        advance(expired);
+      } catch (InterruptedException e) {
+        continue;
+      } for (Runnable r : expired) try {
+        r.run();
+      } catch (Throwable t) {
+        // Ignore.
+      } expired.clear();
+    }
+  }
+
+  // Wait for the next tick and collect whatever expires in it.
+  private synchronized void advance(List<Runnable> expired)
+  throws InterruptedException {
+    while (true) {
+      if (count == 0) {
+        wait();
+        continue;
+      } long sleep = base+(ticks+1)*tick-System.nanoTime();
+      if (sleep <= 0)
+        break;
+      TimeUnit.NANOSECONDS.timedWait(this, sleep);
+    }
+    ticks++;
+    Iterator<Entry> it = buckets[(int) (ticks % buckets.length)].iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (e.rounds-- > 0)
+        continue;
+      it.remove();
+      count--;
+      expired.add(e.runnable);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package stork.feather.util;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import io.netty.channel.*;
+import io.netty.channel.nio.*;
+import io.netty.channel.socket.nio.*;
+import io.netty.util.concurrent.*;
+
+/**
+ * The event loops and channel types used for network I/O. Modules and server
+ * interfaces should bootstrap their channels through the process-wide default
+ * {@code Transport}, rather than creating event loop groups of their own, so
+ * that the number of I/O threads in the process is bounded and tunable.
+ * <p/>
+ * The default implementation is chosen by the {@code feather.transport}
+ * system property. A value of {@code "auto"} (the default) selects the native
+ * epoll transport if it is present on the classpath and usable on this
+ * platform, and NIO otherwise. {@code "nio"} and {@code "epoll"} select one
+ * explicitly. The number of I/O threads may be set with {@code
+ * feather.transport.threads}; a value less than one means one per processor.
+ * <p/>
+ * The epoll transport is loaded reflectively, so Feather does not depend on
+ * it being available at compile time.
+ */
+public class Transport {
+  private static volatile Transport defaultTransport;
+  private static volatile Transport nioTransport;
+
+  private static final String EPOLL = "io.netty.channel.epoll.";
+
+  private final String name;
+  private final EventLoopGroup group;
+  private final EventLoopGroup acceptor;
+  private final Class<? extends Channel> socketChannel;
+  private final Class<? extends ServerChannel> serverChannel;
+
+  /**
+   * Create a {@code Transport} using NIO with the given number of threads.
+   *
+   * @param threads the number of I/O threads. If this is less than one, one
+   * thread per available processor will be used.
+   */
+  public Transport(int threads) {
+    threads = threads(threads);
+    name = "nio";
+    group = new NioEventLoopGroup(threads, factory("I/O"));
+    acceptor = new NioEventLoopGroup(1, factory("Acceptor"));
+    socketChannel = NioSocketChannel.class;
+    serverChannel = NioServerSocketChannel.class;
+  }
+
+  // Create an epoll transport reflectively. Throws if it is unavailable.
+  private Transport(int threads, String type) throws Exception {
+    if (!(Boolean) Class.forName(EPOLL+"Epoll")
+        .getMethod("isAvailable").invoke(null))
+      throw new UnsupportedOperationException("epoll is not available.");
+    threads = threads(threads);
+    Constructor<?> c = Class.forName(EPOLL+"EpollEventLoopGroup")
+      .getConstructor(int.class, ThreadFactory.class);
+    name = type;
+    group = (EventLoopGroup) c.newInstance(threads, factory("I/O"));
+    acceptor = (EventLoopGroup) c.newInstance(1, factory("Acceptor"));
+    socketChannel = Class.forName(EPOLL+"EpollSocketChannel")
+      .asSubclass(Channel.class);
+    serverChannel = Class.forName(EPOLL+"EpollServerSocketChannel")
+      .asSubclass(ServerChannel.class);
+  }
+
+  private static int threads(int threads) {
+    if (threads < 1)
+      threads = Runtime.getRuntime().availableProcessors();
+    return threads;
+  }
+
+  private static ThreadFactory factory(String name) {
+    return new DefaultThreadFactory("Transport "+name);
+  }
+
+  /**
+   * Get the process-wide default {@code Transport}. This will be created
+   * according to the {@code feather.transport} system property when first
+   * called.
+   *
+   * @return The default {@code Transport}.
+   */
+  public static Transport getDefault() {
+    Transport t = defaultTransport;
+    if (t == null) synchronized (Transport.class) {
+      if ((t = defaultTransport) == null)
+        t = defaultTransport = createDefault();
+    } return t;
+  }
+
+  /**
+   * Replace the process-wide default {@code Transport}. This should be done
+   * before any channels are created, as channels already bootstrapped through
+   * the previous default keep using its event loops.
+   *
+   * @param transport the new default {@code Transport}.
+   * @throws NullPointerException if {@code transport} is {@code null}.
+   */
+  public static synchronized void setDefault(Transport transport) {
+    if (transport == null)
+      throw new NullPointerException("transport");
+    defaultTransport = transport;
+  }
+
+  /**
+   * Get a {@code Transport} which is guaranteed to use NIO. This is for code
+   * which depends on NIO channel implementations directly. It is the default
+   * {@code Transport} if that uses NIO.
+   *
+   * @return A {@code Transport} using NIO.
+   */
+  public static Transport nio() {
+    Transport t = getDefault();
+    if (t.isNio())
+      return t;
+    if ((t = nioTransport) == null) synchronized (Transport.class) {
+      if ((t = nioTransport) == null)
+        t = nioTransport = new Transport(1);
+    } return t;
+  }
+
+  // Create the default transport based on system properties.
+  private static Transport createDefault() {
+    String type = System.getProperty("feather.transport", "auto");
+    int threads = Integer.getInteger("feather.transport.threads", 0);
+    return create(type, threads);
+  }
+
+  /**
+   * Create a {@code Transport} of the given type.
+   *
+   * @param type {@code "epoll"}, {@code "nio"}, or {@code "auto"} to use
+   * epoll where available and NIO otherwise.
+   * @param threads the number of I/O threads. If this is less than one, one
+   * thread per available processor will be used.
+   * @return A new {@code Transport}.
+   * @throws IllegalArgumentException if {@code type} is not recognized.
+   * @throws RuntimeException if {@code type} is {@code "epoll"} and it is not
+   * available.
+   */
+  public static Transport create(String type, int threads) {
+    if (type == null || type.equalsIgnoreCase("auto")) try {
+      return new Transport(threads, "epoll");
+    } catch (Throwable t) {
+      return new Transport(threads);
+    } if (type.equalsIgnoreCase("nio")) {
+      return new Transport(threads);
+    } if (type.equalsIgnoreCase("epoll")) try {
+      return new Transport(threads, "epoll");
+    } catch (Exception e) {
+      throw new RuntimeException("Could not load epoll transport.", e);
+    } throw new IllegalArgumentException("Unknown transport: "+type);
+  }
+
+  /** Get the name of this transport: {@code "nio"} or {@code "epoll"}. */
+  public String name() { return name; }
+
+  /** Check if this transport uses NIO. */
+  public boolean isNio() { return name.equals("nio"); }
+
+  /** Get the event loop group client and child channels should use. */
+  public EventLoopGroup group() { return group; }
+
+  /** Get the event loop group server channels should accept with. */
+  public EventLoopGroup acceptor() { return acceptor; }
+
+  /** Get the socket channel class for this transport. */
+  public Class<? extends Channel> socketChannel() { return socketChannel; }
+
+  /** Get the server socket channel class for this transport. */
+  public Class<? extends ServerChannel> serverChannel() {
+    return serverChannel;
+  }
+
+  /** Get the number of I/O threads in the group. */
+  public int threads() {
+    return group.children().size();
+  }
+
+  /**
+   * Get the number of tasks waiting to run on each event loop in the group.
+   * A loop with a persistently deep queue is falling behind.
+   *
+   * @return The queue depth of each event loop.
+   */
+  public int[] queueDepths() {
+    Set<EventExecutor> loops = group.children();
+    int[] depths = new int[loops.size()];
+    int i = 0;
+    for (EventExecutor e : loops) {
+      if (e instanceof SingleThreadEventExecutor)
+        depths[i] = ((SingleThreadEventExecutor) e).pendingTasks();
+      i++;
+    } return depths;
+  }
+
+  public String toString() {
+    return name+" ("+threads()+" threads) "+Arrays.toString(queueDepths());
+  }
+}
@@ -1,15 +1,37 @@
 package stork.module.dropbox;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import io.netty.buffer.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import com.dropbox.core.v2.files.*;
+import com.dropbox.core.v2.DbxDownloadStyleBuilder;
 import com.dropbox.core.DbxDownloader;
 import stork.feather.*;
 import stork.feather.errors.*;
 import stork.feather.util.*;
+import stork.util.*;
 
 public class DbxResource extends Resource<DbxSession, DbxResource> {
+  // Uploads are sent in chunks of this size. Dropbox prefers multiples of 4 MB.
+  static final int CHUNK_SIZE = 4 * 1024 * 1024;
+  // How many chunks a sink may have waiting to be sent.
+  static final int MAX_CHUNKS = 4;
+  // Files at least this big are downloaded in ranges when possible.
+  static final long MIN_RANGED = 8 * 1024 * 1024;
+  // The most each download read gathers into a slice.
+  static final int BUFFER_SIZE = 64 * 1024;
+  // How many slices each download may have in flight.
+  static final int WINDOW = 8;
+
+  // Downloads block while waiting for their slices to drain, so they get
+  // their own threads rather than tying up the session executor.
+  private static final ExecutorService downloads =
+    Executors.newCachedThreadPool(new DefaultThreadFactory("Dropbox", true));
+
   DbxResource(DbxSession session, Path path) {
     super(session, path);
   }
@@ -121,62 +143,224 @@ public class DbxResource extends Resource<DbxSession, DbxResource> {
     return new DbxSink();
   }
 
+  /**
+   * Downloads the file in one request, or as several byte ranges at once if
+   * the file is large and the sink can take slices in any order. Each
+   * download keeps a bounded number of slices in flight.
+   */
   private class DbxTap extends Tap<DbxResource> {
+    private volatile boolean stopped = false;
+    private int running;
+
     protected DbxTap() { super(DbxResource.this); }
 
     protected Bell start(Bell bell) {
-      return new ThreadBell() {
-        public Object run() throws Exception {
-          /*Issue #25
-		  	Modified by: Dhruva Kumar Srinivasa
-			Comments: Dropbox v2 API returns a DbxDownloader instance. Call download on the DbxDownloader object, passing an output stream as a parameter*/
-          DbxDownloader<FileMetadata> downloader = session.client.files().download(
-                  source().path.toString());
-          downloader.download(asOutputStream());
-          //End changes for Issue #21
-          finish();
-          return null;
-        } public void fail(Throwable t) {
-          finish();
+      Bell<DbxResource> ready = ((Bell<?>) bell).and(initialize());
+      if (!random() || session.parallelism() <= 1) {
+        return ready.new Promise() {
+          public void done() { startDownloads(-1); }
+          public void fail(Throwable t) { finish(t); }
+        };
+      }
+
+      // Find out whether the file is worth splitting.
+      return new ThreadBell<Long>(DbxSession.executor) {
+        public Long run() throws Exception {
+          Metadata m = session.client.files().getMetadata(path.toString());
+          if (!(m instanceof FileMetadata))
+            throw new NotFound();
+          return ((FileMetadata) m).getSize();
         }
-      }.startOn(initialize().and(bell));
+      }.startOn(ready).new Promise() {
+        public void done(Long size) { startDownloads(size); }
+        public void fail(Throwable t) { finish(t); }
+      };
+    }
+
+    // Start downloading the file, in ranges if size is known and large.
+    private synchronized void startDownloads(long size) {
+      if (size < MIN_RANGED) {
+        running = 1;
+        downloads.execute(new Download(0, -1));
+        return;
+      }
+
+      int n = session.parallelism();
+      long chunk = (size + n - 1) / n;
+      List<Download> list = new ArrayList<Download>();
+      for (long off = 0; off < size; off += chunk)
+        list.add(new Download(off, Math.min(chunk, size-off)));
+      running = list.size();
+      for (Download d : list)
+        downloads.execute(d);
+    }
+
+    // Called when a download has finished, successfully or not.
+    private synchronized void downloadDone(Throwable t) {
+      if (stopped)
+        return;
+      if (t != null) {
+        stopped = true;
+        finish(t);
+      } else if (--running == 0) {
+        finish();
+      }
+    }
+
+    // Downloads a range of the file, or all of it if length is negative.
+    private class Download implements Runnable {
+      final long start, length;
+
+      Download(long start, long length) {
+        this.start = start;
+        this.length = length;
+      }
+
+      public void run() {
+        DbxDownloader<FileMetadata> downloader = null;
+        Deque<Bell> window = new ArrayDeque<Bell>();
+        Throwable error = null;
+
+        try {
+          DbxDownloadStyleBuilder<FileMetadata> builder =
+            session.client.files().downloadBuilder(path.toString());
+          if (length >= 0)
+            builder = builder.range(start, length);
+          downloader = builder.start();
+          InputStream in = downloader.getInputStream();
+
+          long pos = start;
+          while (!stopped) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len = fill(in, buf);
+            if (len <= 0)
+              break;
+            ByteBuf data = Unpooled.wrappedBuffer(buf, 0, len);
+            window.add(drain(new Slice(data, pos)));
+            pos += len;
+
+            // Only wait once the window is full.
+            if (window.size() >= WINDOW)
+              window.poll().sync();
+          } while (!window.isEmpty()) {
+            window.poll().sync();
+          } if (!stopped && length >= 0 && pos != start+length) {
+            throw new IOException("Range ended early at "+pos);
+          }
+        } catch (Throwable t) {
+          error = t;
+        } finally {
+          if (downloader != null)
+            downloader.close();
+        }
+
+        downloadDone(error);
+      }
     }
   }
 
+  // Read into buf until it is full or the stream ends.
+  private static int fill(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    while (len < buf.length) {
+      int n = in.read(buf, len, buf.length-len);
+      if (n < 0)
+        break;
+      len += n;
+    } return len;
+  }
+
+  /**
+   * Uploads the file through an upload session. Data is gathered into
+   * chunks, and further chunks are gathered while earlier ones are sent,
+   * until {@link #MAX_CHUNKS} are waiting. The finished session is committed
+   * in a batch with other uploads through the same session.
+   */
   private class DbxSink extends Sink<DbxResource> {
-    private UploadUploader upload;
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    private long offset = 0;  // Where the buffered chunk starts.
+    // Rings with the upload session id once every chunk so far is sent.
+    private Bell<String> sent = Bell.wrap((String) null);
+    private final LinkedList<Bell<String>> chunks =
+      new LinkedList<Bell<String>>();
+    // Rings once the file is committed, or fails if it could not be.
+    private final Bell<FileMetadata> committed = new Bell<FileMetadata>();
 
     protected DbxSink() { super(DbxResource.this); }
 
     protected Bell<?> start() {
-      return initialize().and((Bell<Stat>)source().stat()).new As<Void>() {
-        public Void convert(Stat stat) throws Exception {
-          upload = session.client.files().upload(
-                  destination().path.toString());
-          return null;
-        } public void fail(Throwable t) {
-          finish(t);
+      return initialize();
+    }
+
+    protected synchronized Bell drain(Slice slice) {
+      if (sent.isFailed())
+        return sent;
+      ByteBuf buf = slice.asByteBuf();
+      try {
+        buf.getBytes(buf.readerIndex(), chunk, buf.readableBytes());
+      } catch (IOException e) {
+        return new Bell(e);
+      } if (chunk.size() < CHUNK_SIZE) {
+        return null;
+      }
+
+      send();
+      while (!chunks.isEmpty() && chunks.peek().isDone())
+        chunks.poll();
+      if (chunks.size() < MAX_CHUNKS)
+        return null;
+      return chunks.get(chunks.size()-MAX_CHUNKS);
+    }
+
+    // Send the buffered chunk once the ones before it have been sent. Chunks
+    // of a session must be appended in order.
+    private void send() {
+      final byte[] data = chunk.toByteArray();
+      final long off = offset;
+      offset += data.length;
+      chunk.reset();
+
+      sent = sent.new AsBell<String>() {
+        public Bell<String> convert(final String id) {
+          return new ThreadBell<String>(DbxSession.executor) {
+            public String run() throws Exception {
+              InputStream in = new ByteArrayInputStream(data);
+              if (id == null) {
+                return session.client.files().uploadSessionStart()
+                  .uploadAndFinish(in).getSessionId();
+              }
+              session.client.files().uploadSessionAppendV2(
+                new UploadSessionCursor(id, off)).uploadAndFinish(in);
+              return id;
+            }
+          }.start();
         }
       };
+      chunks.add(sent);
     }
 
-    protected Bell drain(final Slice slice) {
-      return new ThreadBell<Void>() {
-        public Void run() throws Exception {
-          upload.getOutputStream().write(slice.asBytes());
-          return null;
+    protected synchronized void finish(Throwable t) {
+      // An upload session which is never committed just expires.
+      if (t != null) {
+        committed.ring(t);
+        return;
+      }
+      if (chunk.size() > 0 || offset == 0)
+        send();
+
+      final long size = offset;
+      sent.new AsBell<FileMetadata>() {
+        public Bell<FileMetadata> convert(String id) {
+          return session.commit(new UploadSessionFinishArg(
+            new UploadSessionCursor(id, size),
+            new CommitInfo(path.toString())));
         }
-      }.start();
+      }.promise(committed);
     }
 
-    protected void finish(Throwable t) {
-      try {
-        upload.finish();
-      } catch (Exception e) {
-        // Ignore...?
-      } finally {
-        upload.close();
-      }
+    // The file only exists once its upload session is committed.
+    protected Bell onFinish() {
+      return committed;
     }
   }
 }
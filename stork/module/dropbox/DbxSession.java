@@ -1,17 +1,50 @@
 package stork.module.dropbox;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.v2.*;
+import com.dropbox.core.v2.files.*;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import stork.cred.*;
 import stork.feather.*;
 import stork.feather.errors.*;
+import stork.feather.util.*;
+import stork.util.*;
 
 public class DbxSession extends Session<DbxSession, DbxResource> {
+  // The most uploads to commit in one batch. Dropbox allows 1000.
+  static final int BATCH_SIZE = 100;
+  // How long to wait for more uploads before committing a batch, in seconds.
+  static final double BATCH_DELAY = .5;
+  // Requests are independent HTTP calls, so several files may be in flight.
+  static final int FILES_PER_CONNECTION = 4;
+
+  /** Runs the SDK's blocking calls for all sessions. */
+  static final ExecutorService executor = Executors.newFixedThreadPool(16,
+    new DefaultThreadFactory("Dropbox", true));
+
   DbxClientV2 client;
+  private final DbxRequestConfig config;
+
+  // Uploads waiting to be committed, and the bells to ring when they are.
+  private List<UploadSessionFinishArg> batch;
+  private List<Bell<FileMetadata>> batchBells;
 
   public DbxSession(URI uri, Credential cred) {
+    this(uri, cred, DbxRequestConfig.newBuilder("StorkCloud").build());
+  }
+
+  /**
+   * Create a session whose client uses {@code config}, for example to send
+   * requests through a different {@code HttpRequestor}.
+   */
+  public DbxSession(URI uri, Credential cred, DbxRequestConfig config) {
     super(uri, cred);
+    this.config = config;
   }
 
   public DbxResource select(Path path) {
@@ -22,12 +55,84 @@ public class DbxSession extends Session<DbxSession, DbxResource> {
     // If an OAuth token is provided, use it.
     if (credential instanceof StorkOAuthCred) {
       StorkOAuthCred oauth = (StorkOAuthCred) credential;
-      DbxRequestConfig config =
-        DbxRequestConfig.newBuilder("StorkCloud").build();
       client = new DbxClientV2(config, oauth.data());
       return Bell.wrap(this);
     }
 
     throw new AuthenticationRequired("oauth");
   }
+
+  public int concurrency() {
+    return connections() * FILES_PER_CONNECTION;
+  }
+
+  /**
+   * Commit a finished upload session. Commits are collected and sent in
+   * batches, so many small files cost only a few requests. Files wait for
+   * their commit before they are done, so a batch is also sent once as many
+   * files as may be in flight at once are waiting.
+   *
+   * @return (via bell) The metadata of the committed file.
+   */
+  synchronized Bell<FileMetadata> commit(UploadSessionFinishArg arg) {
+    Bell<FileMetadata> bell = new Bell<FileMetadata>();
+    if (batch == null) {
+      batch = new ArrayList<UploadSessionFinishArg>();
+      batchBells = new ArrayList<Bell<FileMetadata>>();
+      Bell.dispatch(new Runnable() {
+        public void run() { flush(); }
+      }, BATCH_DELAY);
+    }
+    batch.add(arg);
+    batchBells.add(bell);
+    if (batch.size() >= Math.min(BATCH_SIZE, concurrency()))
+      flush();
+    return bell;
+  }
+
+  // Send the current batch, if there is one.
+  private synchronized void flush() {
+    if (batch == null)
+      return;
+    final List<UploadSessionFinishArg> args = batch;
+    final List<Bell<FileMetadata>> bells = batchBells;
+    batch = null;
+    batchBells = null;
+
+    new ThreadBell<UploadSessionFinishBatchResult>(executor) {
+      public UploadSessionFinishBatchResult run() throws Exception {
+        UploadSessionFinishBatchLaunch launch =
+          client.files().uploadSessionFinishBatch(args);
+        if (launch.isComplete())
+          return launch.getCompleteValue();
+        if (!launch.isAsyncJobId())
+          throw new RuntimeException("Unexpected batch commit response.");
+
+        // Poll the job until it is done.
+        String job = launch.getAsyncJobIdValue();
+        while (true) {
+          UploadSessionFinishBatchJobStatus status =
+            client.files().uploadSessionFinishBatchCheck(job);
+          if (status.isComplete())
+            return status.getCompleteValue();
+          Thread.sleep((long) (BATCH_DELAY*1000));
+        }
+      } public void done(UploadSessionFinishBatchResult result) {
+        List<UploadSessionFinishBatchResultEntry> entries =
+          result.getEntries();
+        for (int i = 0; i < bells.size(); i++) {
+          UploadSessionFinishBatchResultEntry e =
+            (i < entries.size()) ? entries.get(i) : null;
+          if (e != null && e.isSuccess())
+            bells.get(i).ring(e.getSuccessValue());
+          else
+            bells.get(i).ring(new RuntimeException("Commit failed: "+
+              ((e == null) ? "no result" : e.getFailureValue())));
+        }
+      } public void fail(Throwable t) {
+        for (Bell<FileMetadata> b : bells)
+          b.ring(t);
+      }
+    }.start();
+  }
 }
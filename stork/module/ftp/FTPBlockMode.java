@@ -0,0 +1,105 @@
+package stork.module.ftp;
+
+import io.netty.buffer.*;
+import io.netty.channel.*;
+
+import stork.feather.*;
+
+/**
+ * Framing for GridFTP extended block mode (MODE E). Each block on a data
+ * connection starts with a 17-byte header made of a descriptor byte, a 64-bit
+ * byte count, and a 64-bit offset into the file. This is what allows data to
+ * be striped across parallel connections and arrive in any order.
+ */
+final class FTPBlockMode {
+  private FTPBlockMode() { }
+
+  /** Length of a block header. */
+  static final int HEADER = 17;
+
+  // Descriptor flags.
+  static final int EOR     = 128;  // End of record (unused).
+  static final int EOF     = 64;   // Offset field holds the EOD count.
+  static final int ERRORS  = 32;   // Block is suspected to contain errors.
+  static final int RESTART = 16;   // Block is a restart marker.
+  static final int EOD     = 8;    // Last block on this connection.
+  static final int CLOSE   = 4;    // Sender will close this connection.
+
+  /** Create a block header. */
+  static ByteBuf header(int descriptor, long count, long offset) {
+    ByteBuf buf = Unpooled.buffer(HEADER, HEADER);
+    buf.writeByte(descriptor);
+    buf.writeLong(count);
+    buf.writeLong(offset);
+    return buf;
+  }
+
+  /**
+   * Reads blocks from a single data connection. Block payloads are passed on
+   * as {@code Slice}s positioned at their offsets, without copying. Subclasses
+   * are told when the connection's data has ended, and when the sender has
+   * announced the number of connections to expect.
+   */
+  static abstract class Reader extends ChannelHandlerAdapter {
+    private final ByteBuf header = Unpooled.buffer(HEADER, HEADER);
+    private int descriptor;
+    private long remaining = 0, offset;
+
+    /** Called with each piece of block data received. */
+    protected abstract void data(Slice slice);
+
+    /** Called when a connection has ended its data. */
+    protected abstract void endOfData();
+
+    /** Called when the sender announces the number of connections. */
+    protected abstract void endOfFile(long count);
+
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ByteBuf buf = (ByteBuf) msg;
+      try {
+        while (buf.isReadable()) {
+          if (remaining == 0 && !readHeader(buf))
+            break;
+          if (remaining > 0)
+            readData(buf);
+          if (remaining == 0)
+            endOfBlock();
+        }
+      } finally {
+        buf.release();
+      }
+    }
+
+    // Accumulate header bytes. Returns true once the header is complete.
+    private boolean readHeader(ByteBuf buf) {
+      buf.readBytes(header, Math.min(header.writableBytes(),
+                                     buf.readableBytes()));
+      if (header.isWritable())
+        return false;
+      descriptor = header.readUnsignedByte();
+      remaining = header.readLong();
+      offset = header.readLong();
+      header.clear();
+      if ((descriptor & EOF) != 0)
+        endOfFile(offset);
+      return true;
+    }
+
+    // Pass on as much of the current block as is available.
+    private void readData(ByteBuf buf) {
+      int n = (int) Math.min(remaining, buf.readableBytes());
+      ByteBuf data = buf.readSlice(n);
+      if ((descriptor & (RESTART | EOF)) == 0)
+        data(new Slice(data.retain(), offset));
+      offset += n;
+      remaining -= n;
+    }
+
+    // Handle the descriptor once the block has been fully read.
+    private void endOfBlock() {
+      if ((descriptor & EOD) != 0)
+        endOfData();
+      descriptor = 0;
+    }
+  }
+}
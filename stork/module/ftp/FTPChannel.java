@@ -7,9 +7,7 @@ import java.nio.charset.*;
 import io.netty.bootstrap.*;
 import io.netty.channel.*;
 import io.netty.buffer.*;
-import io.netty.channel.nio.*;
 import io.netty.channel.socket.*;
-import io.netty.channel.socket.nio.*;
 import io.netty.handler.codec.*;
 import io.netty.handler.codec.string.*;
 import io.netty.handler.codec.base64.Base64;
@@ -22,6 +20,7 @@ import org.gridforum.jgss.*;
 import stork.feather.*;
 import stork.feather.errors.*;
 import stork.feather.URI;
+import stork.feather.util.*;
 import stork.util.*;
 
 /**
@@ -40,9 +39,6 @@ public class FTPChannel {
 
   private final Bell<Void> onClose = new Bell<Void>();
 
-  // FIXME: We should use something system-wide.
-  static EventLoopGroup group = new NioEventLoopGroup(1);
-
   // Used for GSS authentication.
   private final String host;
 
@@ -86,9 +82,13 @@ public class FTPChannel {
 
     Bell<Character> mode = new Bell<Character>('S');
     Bell<Character> type = new Bell<Character>('A');
+    Bell<Boolean> blockMode;  // Whether MODE E was accepted, once asked.
 
     // Whether or not we prefer to put the server in passive mode.
     boolean preferPassive = true;
+
+    // Socket options for data channels.
+    volatile TCPOptions tcp = TCPOptions.getDefault();
   }
 
   // Deferred commands
@@ -119,8 +119,9 @@ public class FTPChannel {
       Protocol.ftp : Protocol.valueOf(proto.toLowerCase());
     if (port <= 0) port = data.protocol.port;
 
+    Transport t = Transport.getDefault();
     Bootstrap b = new Bootstrap();
-    b.group(group).channel(NioSocketChannel.class).handler(new Initializer());
+    b.group(t.group()).channel(t.socketChannel()).handler(new Initializer());
 
     if (host != null)
       data.future = b.connect(host, port);
@@ -790,8 +791,7 @@ public class FTPChannel {
    * @return The data type after this command.
    */
   public synchronized Bell<Character> type(char t) {
-    return data.type =
-      new Command("TYPE", t).expectComplete().as(t).or(data.type);
+    return data.type = change(new Command("TYPE", t), t, data.type);
   }
 
   /**
@@ -799,8 +799,49 @@ public class FTPChannel {
    * @return The transfer mode after this command.
    */
   public synchronized Bell<Character> mode(char m) {
-    return data.mode =
-      new Command("MODE", m).expectComplete().as(m).or(data.mode);
+    return data.mode = change(new Command("MODE", m), m, data.mode);
+  }
+
+  // Ring with value if cmd succeeds, or with the previous setting if it
+  // doesn't. Bell.or() can't be used here, since it would ring with the
+  // previous setting before the server has replied.
+  private Bell<Character> change(Command cmd, final char value,
+                                 final Bell<Character> previous) {
+    return cmd.expectComplete().new AsBell<Character>() {
+      public Bell<Character> convert(Reply r) {
+        return new Bell<Character>(value);
+      } public Bell<Character> convert(Throwable t) {
+        return previous;
+      }
+    };
+  }
+
+  /**
+   * Check if the server supports extended block mode, and can therefore
+   * transfer data over parallel connections. The server is asked the first
+   * time this is called, by trying to switch to it, and the answer is kept
+   * for the life of the connection. Data channels which don't want extended
+   * block mode switch back on their own.
+   *
+   * @return A {@code Bell} which rings with whether the server accepted
+   * {@code MODE E}.
+   */
+  public synchronized Bell<Boolean> supportsExtendedBlockMode() {
+    if (data.blockMode == null)
+      data.blockMode = mode('E').new As<Boolean>() {
+        public Boolean convert(Character m) { return m == 'E'; }
+        public Boolean convert(Throwable t) { return false; }
+      };
+    return data.blockMode;
+  }
+
+  /**
+   * Set the socket options used by data channels opened from now on.
+   *
+   * @param options the {@code TCPOptions} to apply to data connections.
+   */
+  public void dataOptions(TCPOptions options) {
+    data.tcp = options;
   }
 
   /** Negotiate a passive mode data channel. */
@@ -819,13 +860,15 @@ public class FTPChannel {
    * synchronicity has been issued. Commands written to any other channels
    * during this time will have their commands deferred and sent after the
    * channel has been unlocked.
+   * <p/>
+   * Control changes hands as soon as the preceding commands have been
+   * written, without waiting for their replies, so commands issued through
+   * consecutive locks are pipelined.
    */
   public class Lock extends FTPChannel {
     public Lock() {
       super(FTPChannel.this);
-      FTPChannel.this.new Command(null) {
-        public void done() { Lock.this.assumeControl(); }
-      };
+      FTPChannel.this.handOff(this);
     }
 
     /** The channel may not be locked through a locked view. */
@@ -835,9 +878,7 @@ public class FTPChannel {
 
     /** Give control back to the parent channel. */
     public void unlock() {
-      new Command(null) {
-        public void done() { FTPChannel.this.assumeControl(); }
-      };
+      handOff(FTPChannel.this);
     }
 
     protected void finalize() {
@@ -846,9 +887,18 @@ public class FTPChannel {
     }
   }
 
+  // Give control to another view once everything issued through this view so
+  // far has been written.
+  void handOff(FTPChannel view) {
+    synchronized (data) {
+      new Deferred(view).send();
+    }
+  }
+
   // This is called whenever it's the the channel's turn to become the channel
-  // owner.
-  protected synchronized void assumeControl() {
+  // owner. This only synchronizes on the shared state, since it may be called
+  // while another view is issuing commands.
+  protected void assumeControl() {
     synchronized (data) {
       Log.finer(data.owner.hashCode()+" -> "+hashCode());
       data.owner = this;
@@ -878,14 +928,19 @@ public class FTPChannel {
     final Command cmd;
     final Object verb;
     final Object[] args;
+    final FTPChannel handOff;  // If set, give this view control instead.
 
     Deferred(Command c, Object v, Object[] a) {
-      cmd = c; verb = v; args = a;
+      cmd = c; verb = v; args = a; handOff = null;
+    } Deferred(FTPChannel view) {
+      cmd = null; verb = null; args = null; handOff = view;
     } void send() {
       // If we're not the owner, defer the command. Otherwise, send it.
       if (data.owner != FTPChannel.this) {
         deferred.add(this);
         Log.finer(FTPChannel.this.hashCode()+": Deferring "+this);
+      } else if (handOff != null) {
+        handOff.assumeControl();
       } else {
         addHandler(cmd);
         if (verb != null) channel().writeAndFlush(this);
@@ -894,6 +949,8 @@ public class FTPChannel {
     }
 
     public String toString() {
+      if (handOff != null)
+        return "(hand off)";
       if (verb == null)
         return "(sync)";
       StringBuilder sb = new StringBuilder(verb.toString());
@@ -989,19 +1046,16 @@ public class FTPChannel {
    * Lock}, but handles its own unlocking.
    */
   public class DataChannel extends Lock {
-    private Bell<SocketChannel> dc;
+    private Bell<Channel> dc;
     private volatile boolean read = false;
     private ChannelHandlerContext context;
     private Bell writeBell;  // Ring when we can write again.
-    private Bell lastSend = Bell.rungBell();
+    private volatile ChannelFuture lastWrite;  // Close after this is done.
+    final TCPOptions tcp = FTPChannel.this.data.tcp;
 
     // Ring this to close the channel.
     private final Bell<DataChannel> onClose = new Bell<DataChannel>() {
-      public void always() {
-        dc.cancel().new Promise() {
-          public void done(SocketChannel ch) { ch.close(); }
-        };
-      }
+      public void always() { disconnect(isSuccessful()); }
     };
 
     public DataChannel(char type) {
@@ -1011,46 +1065,86 @@ public class FTPChannel {
     public DataChannel(char type, boolean preferPassive) {
       FTPChannel.this.super();
       type(type);
-      dc = preferPassive ? tryPassiveThenActive() : tryActiveThenPassive();
-      dc.new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel c) {
-          return init().as(c);
+      if (!isMode('S'))
+        mode('S');
+      if (preferPassive)
+        connect(tryPassive(), true);
+      else
+        connect(tryActiveThenPassive(), false);
+    }
+
+    // Used by subclasses which establish their own connections. The subclass
+    // must call connect() once it has started doing so.
+    DataChannel() {
+      FTPChannel.this.super();
+    }
+
+    // Issue init() once dc is connected, or right away if the commands which
+    // set up dc have already been written and init() can be pipelined behind
+    // them. Either way, the lock is given up as soon as init() has been
+    // issued, so that the next transfer's commands can be pipelined as well.
+    final void connect(Bell<Channel> bell, final boolean pipeline) {
+      dc = bell;
+      if (pipeline)
+        begin();
+      dc.new Promise() {
+        public void done() {
+          if (!pipeline) begin();
         } public void fail(Throwable t) {
           close(t);
-        } public void always() {
-          DataChannel.super.unlock();
+          if (!pipeline) DataChannel.super.unlock();
         }
       };
     }
 
-    private Bell<SocketChannel> tryPassiveThenActive() {
-      return tryPassive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel ch) {
-          return Bell.wrap(ch);
-        } public Bell<SocketChannel> convert(Throwable t) {
-          return tryActive();
+    // Issue the transfer command and give up the lock.
+    private void begin() {
+      init().new Promise() {
+        public void fail(Throwable t) { close(t); }
+      };
+      DataChannel.super.unlock();
+    }
+
+    // Check if the transfer mode is known to be m.
+    boolean isMode(char m) {
+      return data.mode.isSuccessful() && data.mode.sync() == m;
+    }
+
+    // Close the underlying connection once the channel has been closed. If
+    // the channel closed normally, let any pending writes finish first. A
+    // small transfer can complete before the connection bell has rung, so
+    // only cancel the connection if the channel failed.
+    void disconnect(final boolean success) {
+      (success ? dc : dc.cancel()).new Promise() {
+        public void done(Channel ch) {
+          ChannelFuture last = lastWrite;
+          if (success && last != null)
+            last.addListener(ChannelFutureListener.CLOSE);
+          else
+            ch.close();
         }
       };
     }
 
-    private Bell<SocketChannel> tryActiveThenPassive() {
-      return tryActive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel ch) {
+    private Bell<Channel> tryActiveThenPassive() {
+      return tryActive().new AsBell<Channel>() {
+        public Bell<Channel> convert(Channel ch) {
           return Bell.wrap(ch);
-        } public Bell<SocketChannel> convert(Throwable t) {
+        } public Bell<Channel> convert(Throwable t) {
           return tryPassive();
         }
       };
     }
 
-    private Bell<SocketChannel> tryPassive() {
-      return passive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(FTPHostPort hp) {
+    private Bell<Channel> tryPassive() {
+      return passive().new AsBell<Channel>() {
+        public Bell<Channel> convert(FTPHostPort hp) {
+          Transport t = Transport.getDefault();
           Bootstrap b = new Bootstrap();
-          b.group(FTPChannel.group).channel(NioSocketChannel.class);
+          b.group(t.group()).channel(t.socketChannel());
           b.handler(new ChannelInitializer<SocketChannel>() {
             public void initChannel(SocketChannel ch) throws Exception {
-              ch.config().setConnectTimeoutMillis(timeout);
+              tcp.apply(ch).config().setConnectTimeoutMillis(timeout);
               ch.pipeline().addLast(new SliceHandler());
             }
           });
@@ -1059,18 +1153,19 @@ public class FTPChannel {
       };
     }
 
-    private Bell<SocketChannel> tryActive() {
-      return new Bell<SocketChannel>(new RuntimeException("TODO"));
+    private Bell<Channel> tryActive() {
+      return new Bell<Channel>(new RuntimeException("TODO"));
     }
 
     // Make a future into a bell that reverse cancels.
-    private Bell<SocketChannel> futureToBell(final ChannelFuture cf) {
-      return new Bell<SocketChannel>() {
+    Bell<Channel> futureToBell(final ChannelFuture cf) {
+      return new Bell<Channel>() {
         {
           cf.addListener(new GenericFutureListener<ChannelFuture>() {
             public void operationComplete(ChannelFuture f) {
               try {
-                ring((SocketChannel) f.channel());
+                f.sync();
+                ring(f.channel());
               } catch (Exception e) {
                 ring(e);
               }
@@ -1083,7 +1178,7 @@ public class FTPChannel {
     }
 
     // Handle incoming data chunks and forward to handler.
-    // TODO: Mode E, encryption, pause/resume.
+    // TODO: Encryption.
     class SliceHandler extends ChannelHandlerAdapter {
       public void channelRead(ChannelHandlerContext ctx, Object msg) {
         receive(new Slice((ByteBuf) msg));
@@ -1165,16 +1260,230 @@ public class FTPChannel {
     /** Close the channel with a failure. */
     public final void close(Throwable t) { onClose.ring(t); }
 
-    /** Subclasses use this to handle slices. */
+    /**
+     * Subclasses use this to handle slices. The subclass takes ownership of
+     * the {@code Slice}, and must drain or release it.
+     */
     public void receive(Slice slice) { }
 
-    /** Send a slice through the data channel. */
-    public synchronized Bell send(final Slice slice) {
-      return lastSend = dc.new Promise() {
-        public void done(SocketChannel ch) {
-          ch.writeAndFlush(slice.asByteBuf());
+    /**
+     * Send a slice through the data channel. {@code FileSlice}s are written
+     * as file regions, avoiding a copy through the heap.
+     */
+    public synchronized Bell send(Slice slice) {
+      final Object msg = (slice instanceof FileSlice) ?
+        ((FileSlice) slice).retain().region() : slice.asByteBuf().retain();
+      Bell sent = dc.new Promise() {
+        public void done(Channel ch) {
+          lastWrite = ch.writeAndFlush(msg);
+        } public void fail(Throwable t) {
+          ReferenceCountUtil.release(msg);
+        }
+      };
+      return (writeBell == null) ? sent : sent.and(writeBell);
+    }
+  }
+
+  /**
+   * A data channel which uses extended block mode (MODE E) to stripe data
+   * across several parallel connections. Each block carries its offset, so
+   * slices received through this channel may arrive out of order and should
+   * only be drained into a sink which supports random access. Since MODE E
+   * requires the sender to establish the connections, this channel listens
+   * for the server when receiving, and connects to it when sending.
+   */
+  public class ExtendedDataChannel extends DataChannel {
+    private final int streams;
+    private final boolean sending;
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private ChannelFuture[] pending;  // The last write on each connection.
+    private volatile boolean read = false;
+    private int paused = 0;       // Number of bells reading is paused for.
+    private int next = 0;         // The connection to send on next.
+    private long offset = 0;      // The offset of the next unpositioned slice.
+    private int ended = 0;        // Number of connections which sent EOD.
+    private long expected = -1;   // Number of EODs to expect, once known.
+
+    /**
+     * Create a data channel with {@code streams} parallel connections.
+     *
+     * @param streams the number of parallel connections to use.
+     * @param sending whether data will be sent through this channel.
+     */
+    public ExtendedDataChannel(int streams, boolean sending) {
+      this.streams = Math.max(1, streams);
+      this.sending = sending;
+      type('I');
+      if (!isMode('E'))
+        mode('E');
+      if (sending)
+        connect(connectAll(), true);
+      else
+        connect(listen(), false);
+    }
+
+    // Listen for the server's connections, and tell it where to find us.
+    private Bell<Channel> listen() {
+      new Command("OPTS", "RETR Parallelism="+
+                  streams+","+streams+","+streams+";");
+      Transport t = Transport.getDefault();
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(t.acceptor(), t.group()).channel(t.serverChannel());
+      // Accepted sockets take their receive window from the listener.
+      b.handler(new ChannelInitializer<Channel>() {
+        public void initChannel(Channel ch) throws Exception {
+          tcp.apply(ch);
+        }
+      });
+      b.childHandler(new ChannelInitializer<SocketChannel>() {
+        public void initChannel(SocketChannel ch) throws Exception {
+          added(tcp.apply(ch));
+          ch.pipeline().addLast(new BlockHandler());
+        }
+      });
+      InetSocketAddress local =
+        (InetSocketAddress) FTPChannel.this.channel().localAddress();
+      return futureToBell(b.bind(local.getAddress(), 0)).new AsBell<Channel>() {
+        public Bell<Channel> convert(Channel server) {
+          InetSocketAddress addr = (InetSocketAddress) server.localAddress();
+          return new Command("PORT", new FTPHostPort(addr))
+            .expectComplete().as(server);
+        }
+      };
+    }
+
+    // Open all of the connections to a passive server.
+    private Bell<Channel> connectAll() {
+      return passive().new AsBell<Channel>() {
+        public Bell<Channel> convert(FTPHostPort hp) {
+          final Bell<Channel> bell = new Bell<Channel>();
+          Transport t = Transport.getDefault();
+          Bootstrap b = new Bootstrap();
+          b.group(t.group()).channel(t.socketChannel());
+          b.handler(new ChannelInitializer<SocketChannel>() {
+            public void initChannel(SocketChannel ch) throws Exception {
+              tcp.apply(ch).config().setConnectTimeoutMillis(timeout);
+            }
+          });
+          for (int i = 0; i < streams; i++)
+            futureToBell(b.connect(hp.getAddr())).new Promise() {
+              public void done(Channel ch) {
+                if (added(ch) == streams)
+                  bell.ring(channels.get(0));
+              } public void fail(Throwable t) {
+                bell.ring(t);
+              }
+            };
+          return bell;
+        }
+      };
+    }
+
+    // Register a connection. Returns the number of connections so far.
+    private synchronized int added(Channel ch) {
+      if (onClose().isDone())
+        ch.close();
+      ch.config().setAutoRead(read);
+      channels.add(ch);
+      return channels.size();
+    }
+
+    // Reads blocks from one of the server's connections.
+    class BlockHandler extends FTPBlockMode.Reader {
+      protected void data(Slice slice) {
+        receive(slice);
+      } protected void endOfData() {
+        synchronized (ExtendedDataChannel.this) { ended++; }
+        checkComplete();
+      } protected void endOfFile(long count) {
+        synchronized (ExtendedDataChannel.this) { expected = count; }
+        checkComplete();
+      } public void channelInactive(ChannelHandlerContext ctx) {
+        if (!checkComplete()) synchronized (ExtendedDataChannel.this) {
+          channels.remove(ctx.channel());
+          if (channels.isEmpty())
+            ExtendedDataChannel.this.close(
+              new RuntimeException("Data connections closed early."));
+        }
+      }
+    }
+
+    // Close the channel if all the data has been received.
+    private boolean checkComplete() {
+      synchronized (this) {
+        if (expected < 0 || ended < expected)
+          return false;
+      } close();
+      return true;
+    }
+
+    public synchronized DataChannel pauseUntil(Bell bell) {
+      if (bell != null && !bell.isDone()) {
+        if (paused++ == 0)
+          stop();
+        bell.new Promise() {
+          public void done() { resume(); }
+          public void fail(Throwable t) { close(t); }
+        };
+      } return this;
+    }
+
+    // Undo a pause, and start reading if nothing else is pausing.
+    private synchronized void resume() {
+      if (--paused == 0)
+        start();
+    }
+
+    public synchronized void start() {
+      read = true;
+      for (Channel ch : channels)
+        ch.config().setAutoRead(true);
+    }
+
+    public synchronized void stop() {
+      read = false;
+      for (Channel ch : channels)
+        ch.config().setAutoRead(false);
+    }
+
+    /**
+     * Send a slice as a block on the next connection. The returned bell rings
+     * when the connection after that one has finished its last write.
+     */
+    public synchronized Bell send(Slice slice) {
+      if (pending == null)
+        pending = new ChannelFuture[channels.size()];
+      long off = (slice.offset() >= 0) ? slice.offset() : offset;
+      offset = off+slice.length();
+
+      Channel ch = channels.get(next);
+      ch.write(FTPBlockMode.header(0, slice.length(), off));
+      if (slice instanceof FileSlice)
+        pending[next] = ch.writeAndFlush(((FileSlice) slice).retain().region());
+      else
+        pending[next] = ch.writeAndFlush(slice.asByteBuf().retain());
+
+      next = (next+1) % channels.size();
+      return (pending[next] == null) ?
+        Bell.rungBell() : futureToBell(pending[next]);
+    }
+
+    // When sending, end the data on each connection before closing it.
+    synchronized void disconnect(boolean success) {
+      if (!sending)
+        super.disconnect(success);
+      for (int i = 0; i < channels.size(); i++) {
+        Channel ch = channels.get(i);
+        if (success && sending) {
+          if (i == 0)
+            ch.write(FTPBlockMode.header(FTPBlockMode.EOF, 0, channels.size()));
+          ch.writeAndFlush(FTPBlockMode.header(
+            FTPBlockMode.EOD | FTPBlockMode.CLOSE, 0, 0)
+          ).addListener(ChannelFutureListener.CLOSE);
+        } else {
+          ch.close();
         }
-      }.and(writeBell);
+      } channels.clear();
     }
   }
 
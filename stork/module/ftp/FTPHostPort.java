@@ -30,6 +30,14 @@ public class FTPHostPort {
     }
   }
 
+  // Used to create a PORT argument for a local listening socket.
+  public FTPHostPort(InetSocketAddress addr) {
+    if (!(addr.getAddress() instanceof Inet4Address))
+      throw new RuntimeException("PORT requires an IPv4 address.");
+    bytes = Arrays.copyOf(addr.getAddress().getAddress(), 6);
+    port = addr.getPort();
+  }
+
   // Get the host/port as a socket address.
   public SocketAddress getAddr() {
     try {
@@ -2,10 +2,10 @@ package stork.module.ftp;
 
 import java.text.*;
 import java.util.*;
-import java.util.regex.*;
 import java.io.*;
 
 import io.netty.buffer.*;
+import io.netty.util.*;
 
 import stork.feather.*;
 import stork.module.*;
@@ -20,11 +20,17 @@ import stork.util.*;
  * This parser will return a tree root that has its name set if and only if
  * information about the listed directory was able to be retrieved from the
  * listing results.
+ * <p/>
+ * Listing data is parsed line by line as it is written, and each entry is
+ * passed to {@link #entry(Stat)} as soon as its line is complete. By default
+ * entries are collected into the root's file list, but subclasses may handle
+ * them as they arrive instead, so that huge listings need not be held in
+ * memory.
  */
 public class FTPListParser extends Bell<Stat> {
-  private String data = null;
   private int list_type;
-  private StringBuilder sb = new StringBuilder();
+  // Bytes of the line being read, which has not been terminated yet.
+  private ByteArrayOutputStream line = new ByteArrayOutputStream();
   protected Stat root;
   private List<Stat> files = new LinkedList<Stat>();
 
@@ -43,18 +49,6 @@ public class FTPListParser extends Bell<Stat> {
     return name == null || name.equals(".") || name.equals("..");
   }
 
-  // Split the data so that each entry can be parsed individually. Only
-  // feed this thing complete lines.
-  private static Pattern line_pattern =
-    Pattern.compile("[\\s\\00]*([^\\n\\r\\00]+)");
-  private void parseData(CharSequence data) {
-    Matcher m = line_pattern.matcher(data);
-
-    // Keep finding lines.
-    while (m.find())
-      parseLine(m.group(1));
-  }
-
   // Parse a single line.
   public void parseLine(String line) {
     Stat stat = parseEntry(line);
@@ -63,7 +57,15 @@ public class FTPListParser extends Bell<Stat> {
     if (stat.name.equals("."))
       root.copy(stat);
     else if (!ignoreName(stat.name))
-      files.add(stat);
+      entry(stat);
+  }
+
+  /**
+   * Called with each entry of the listing as it is parsed. The default
+   * implementation adds it to the files of the root.
+   */
+  protected void entry(Stat stat) {
+    files.add(stat);
   }
 
   // Set the name of the root.
@@ -79,38 +81,36 @@ public class FTPListParser extends Bell<Stat> {
 
   // Finalize the parser and get the sorted ads. Any more calls to this
   // thing will exhibit undefined behavior.
-  public void finish() {
+  public synchronized void finish() {
     // Parse any buffered data.
-    if (sb.length() > 0) {
-      parseData(sb);
-      sb = null;
-    } ring(root.setFiles(files));
+    endLine();
+    ring(root.setFiles(files));
   }
 
-  // Write a byte buffer to the file, decode as string, scan for newlines, and
-  // feed lines through parser. Presumably we're reading data where newlines
-  // are one byte so just look for newline characters.
-  public void write(ByteBuf b) {
-    byte[] bytes;
-    if (b.hasArray())
-      bytes = b.array();
+  // Scan a buffer for line ends, and feed complete lines through the parser.
+  // Only the unterminated end of the data is kept between writes.
+  public synchronized void write(ByteBuf b) {
+    for (int i = b.readerIndex(); i < b.writerIndex(); i++)
+      write(b.getByte(i));
+  } public synchronized void write(byte[] b) {
+    for (byte c : b)
+      write(c);
+  } private void write(byte c) {
+    if (c == '\n' || c == '\r' || c == 0)
+      endLine();
     else
-      b.getBytes(0, bytes = new byte[b.readableBytes()]);
-    write(bytes);
-  } public void write(byte[] b) {
-    // Find last newline and chomp it, then buffer the rest.
-    int o;
-    out: for (o = b.length-1; o >= 0; o--) switch (b[0]) {
-      case '\r':
-      case '\n': break out;
-    } if (o >= 0) {  // If we found something...
-      parseData(sb.append(new String(b, 0, o+1)));
-      sb = new StringBuilder();
-      if (o != b.length-1)
-        sb.append(new String(b, o+1, b.length-o));
-    } else {  // Otherwise buffer the string.
-      sb.append(new String(b));
-    }
+      line.write(c);
+  }
+
+  // Parse the buffered line, if there is one.
+  private void endLine() {
+    if (line.size() == 0)
+      return;
+    String s = new String(line.toByteArray(), CharsetUtil.UTF_8);
+    line.reset();
+    s = s.replaceFirst("^\\s+", "");
+    if (!s.isEmpty())
+      parseLine(s);
   }
 
   // Parse a line from the listing.
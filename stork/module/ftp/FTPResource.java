@@ -16,21 +16,14 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
     super(session, path);
   }
 
+  // Entries are emitted as the listing arrives, rather than collected.
   public synchronized Emitter<String> list() {
-    return new Emitter<String>() {{
-      final Emitter e = this;
-      stat(true).new Promise() {
-        public void done(Stat s) {
-          String[] names = new String[s.files.length];
-          for (int i = 0; i < s.files.length; i++)
-            names[i] = s.files[i].name;
-          e.emitAll(names);
-          e.ring();
-        } public void fail(Throwable t) {
-          e.ring(t);
-        }
-      };
-    }};
+    final Emitter<String> emitter = new Emitter<String>();
+    stat(true, emitter).new Promise() {
+      public void done()            { emitter.ring(); }
+      public void fail(Throwable t) { emitter.ring(t); }
+    };
+    return emitter;
   }
 
   public synchronized Bell<Stat> stat() {
@@ -38,7 +31,14 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
   }
 
   // Pass true if listing is necessary.
-  private synchronized Bell<Stat> stat(final boolean list) {
+  public synchronized Bell<Stat> stat(boolean list) {
+    return stat(list, null);
+  }
+
+  // If emitter is given, the names of listed entries are emitted through it
+  // as they are parsed, and are not included in the returned Stat.
+  private synchronized Bell<Stat> stat(final boolean list,
+                                       final Emitter<String> emitter) {
     return initialize().new AsBell<Stat>() {
       private FTPChannel channel = null;
 
@@ -150,10 +150,20 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
         char hint = cmd.toString().startsWith("M") ? 'M' : 0;
         final Bell<Stat> tb = this;
         final FTPListParser parser = new FTPListParser(hint) {
-          public void done(Stat stat) {
+          // Once names have been emitted, don't retry with another command.
+          volatile boolean emitted = false;
+
+          protected void entry(Stat stat) {
+            if (emitter == null) {
+              super.entry(stat);
+            } else {
+              emitted = true;
+              emitter.emit(stat.name);
+            }
+          } public void done(Stat stat) {
             fixStat(Bell.wrap(stat)).promise(tb);
           } public void fail(Throwable t) {
-            if (t instanceof NotFound)
+            if (t instanceof NotFound || emitted)
               tb.ring(t);
             else
               tryCommand(cmd.next());
@@ -190,25 +200,43 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
             }
           };
 
-        // Otherwise we're doing a data channel listing.
+        // Otherwise we're doing a data channel listing. The listing is only
+        // complete once the data channel has closed and the server has also
+        // replied to the command, since it may close the data channel and
+        // then report a failure. Whether it succeeded is up to the reply.
         else channel.new DataChannel('A') {
           // Need to detect an empty listing response.
-          boolean gotNothing = true;
+          volatile boolean gotNothing = true;
+          // Rings with the reply. This is set by init(), which may be called
+          // before the fields of this class are initialized.
+          private Bell replied;
           {
             start();
             onClose().new Promise() {
               public void always() {
-                if (gotNothing)
-                  parser.ring(new NotFound());
-                parser.finish();
+                replied().new Promise() {
+                  public void done() {
+                    if (gotNothing)
+                      parser.ring(new NotFound());
+                    parser.finish();
+                  } public void fail(Throwable t) {
+                    parser.ring(t);
+                  }
+                };
               }
             };
           }
-          public Bell init() {
-            return new Command(cmd, makePath()).expectComplete();
+          private synchronized Bell replied() {
+            if (replied == null)
+              replied = new Bell();
+            return replied;
+          } public Bell init() {
+            return new Command(cmd, makePath()).expectComplete()
+              .promise(replied());
           } public void receive(Slice slice) {
             gotNothing = false;
-            parser.write(slice.asBytes());
+            parser.write(slice.asByteBuf());
+            slice.release();
           }
         };
       }
@@ -271,6 +299,7 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
  * An FTP {@code Tap} which manages data channels autonomonously.
  */
 class FTPTap extends Tap<FTPResource> {
+  private Bell<FTPChannel> channel;
   private FTPChannel.DataChannel dc;
 
   public FTPTap(FTPResource resource) { super(resource); }
@@ -279,50 +308,142 @@ class FTPTap extends Tap<FTPResource> {
     final Bell<Object> returnBell = new Bell<Object>();
     bell.and(source().initialize()).new Promise() {
       public void done() {
-        dc = source().session.channel.new DataChannel('I') {
-          public Bell init() {
-            String path = source().makePath();
-            return new Command("RETR", path).expectComplete();
-          } public void receive(Slice slice) {
-            pauseUntil(drain(slice));
+        channel = source().session.acquire();
+        channel.new Promise() {
+          public void done(FTPChannel ch) {
+            retrieve(ch).new AsBell<FTPChannel.DataChannel>() {
+              public Bell<FTPChannel.DataChannel> convert(
+                  FTPChannel.DataChannel dc) {
+                return dc.onConnect();
+              }
+            }.promise(returnBell);
+          } public void fail(Throwable t) {
+            source().session.release(channel);
+            returnBell.ring(t);
           }
         };
-        dc.start();
-        dc.onConnect().promise(returnBell);
-        dc.onClose().new Promise() {
-          public void done()            { finish();  }
-          public void fail(Throwable t) { finish(t); }
-        };
+      } public void fail(Throwable t) {
+        returnBell.ring(t);
       }
     };
     return returnBell;
   }
+
+  // Start retrieving the file through the given control channel. Blocks may
+  // arrive out of order, so only stripe into random sinks.
+  private Bell<FTPChannel.DataChannel> retrieve(final FTPChannel ch) {
+    final int streams = source().session.parallelism();
+    ch.dataOptions(source().session.tcp());
+
+    Bell<Boolean> extended = (streams > 1 && random()) ?
+      ch.supportsExtendedBlockMode() : new Bell<Boolean>(false);
+    return extended.new As<FTPChannel.DataChannel>() {
+      public FTPChannel.DataChannel convert(Boolean extended) {
+        return retrieve(ch, extended ? streams : 1);
+      }
+    };
+  }
+
+  private FTPChannel.DataChannel retrieve(FTPChannel ch, int streams) {
+    if (streams > 1)
+      dc = ch.new ExtendedDataChannel(streams, false) {
+        public Bell init() {
+          String path = source().makePath();
+          return new Command("RETR", path).expectComplete();
+        } public void receive(Slice slice) {
+          pauseUntil(drain(slice));
+        }
+      };
+    else dc = ch.new DataChannel('I') {
+      public Bell init() {
+        String path = source().makePath();
+        return new Command("RETR", path).expectComplete();
+      } public void receive(Slice slice) {
+        pauseUntil(drain(slice));
+      }
+    };
+    dc.start();
+    dc.onClose().new Promise() {
+      public void done()            { finish();  }
+      public void fail(Throwable t) { finish(t); }
+      public void always() { source().session.release(channel); }
+    };
+    return dc;
+  }
 }
 
 /**
  * An FTP {@code Sink} which manages data channels autonomonously.
  */
 class FTPSink extends Sink<FTPResource> {
+  private Bell<FTPChannel> channel;
   private FTPChannel.DataChannel dc;
   public FTPSink(FTPResource resource) { super(resource); }
 
   protected Bell start() {
-    return destination().initialize().new AsBell<FTPChannel.DataChannel>() {
-      public Bell<FTPChannel.DataChannel> convert(FTPResource r) {
-        dc = destination().session.channel.new DataChannel('I') {
-          public Bell init() {
-            String path = destination().makePath();
-            return new Command("STOR", path).expectComplete();
-          }
-        };
+    return destination().initialize().new AsBell<FTPChannel>() {
+      public Bell<FTPChannel> convert(FTPResource r) {
+        return channel = destination().session.acquire();
+      }
+    }.new AsBell<FTPChannel.DataChannel>() {
+      public Bell<FTPChannel.DataChannel> convert(FTPChannel ch) {
+        return store(ch);
+      }
+    }.new AsBell<FTPChannel.DataChannel>() {
+      public Bell<FTPChannel.DataChannel> convert(FTPChannel.DataChannel dc) {
         return dc.onConnect();
+      } public void fail(Throwable t) {
+        if (channel != null && dc == null)
+          destination().session.release(channel);
+      }
+    };
+  }
+
+  // Start storing the file through the given control channel.
+  private Bell<FTPChannel.DataChannel> store(final FTPChannel ch) {
+    final int streams = destination().session.parallelism();
+    ch.dataOptions(destination().session.tcp());
+
+    Bell<Boolean> extended = (streams > 1) ?
+      ch.supportsExtendedBlockMode() : new Bell<Boolean>(false);
+    return extended.new As<FTPChannel.DataChannel>() {
+      public FTPChannel.DataChannel convert(Boolean extended) {
+        return store(ch, extended ? streams : 1);
       }
     };
   }
 
+  private FTPChannel.DataChannel store(FTPChannel ch, int streams) {
+    if (streams > 1)
+      dc = ch.new ExtendedDataChannel(streams, true) {
+        public Bell init() {
+          String path = destination().makePath();
+          return new Command("STOR", path).expectComplete();
+        }
+      };
+    else dc = ch.new DataChannel('I') {
+      public Bell init() {
+        String path = destination().makePath();
+        return new Command("STOR", path).expectComplete();
+      }
+    };
+    dc.onClose().new Promise() {
+      public void always() { destination().session.release(channel); }
+    };
+    return dc;
+  }
+
   public Bell drain(final Slice slice) {
     return dc.send(slice);
   }
 
-  public void finish(Throwable t) { dc.close(); }
+  // The data channel carries raw bytes, so file regions can be sent as-is.
+  protected boolean acceptsFileSlices() {
+    return true;
+  }
+
+  public void finish(Throwable t) {
+    if (dc != null)
+      dc.close();
+  }
 }
@@ -1,5 +1,7 @@
 package stork.module.ftp;
 
+import java.util.*;
+
 import io.netty.buffer.*;
 
 import org.ietf.jgss.*;
@@ -18,6 +20,26 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
   FTPChannel channel;  // The connection to the FTP server.
   boolean mlstOptsAreSet = false;  // Whether we sent OPT MLST.
 
+  // The number of files whose commands may be pipelined on a channel.
+  static final int PIPELINE_DEPTH = 4;
+
+  // Control channels data transfers may use, starting with the main channel.
+  private final List<Pooled> pool = new ArrayList<Pooled>();
+  private Pooled main;  // The main channel's entry in the pool.
+
+  // A control channel in the pool, and the number of transfers using it.
+  private class Pooled {
+    FTPChannel raw;
+    Bell<FTPChannel> channel;
+    int transfers = 0;
+    boolean dead = false;  // Whether the channel should no longer be used.
+
+    Pooled(FTPChannel raw, Bell<FTPChannel> channel) {
+      this.raw = raw;
+      this.channel = channel;
+    }
+  }
+
   /**
    * Establish an {@code FTPSession} with the endpoint described by {@code uri}
    * and the authentication factor {@code cred}.
@@ -31,16 +53,25 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
   }
 
   public Bell<FTPSession> initialize() {
+    // Initialize connection to server.
+    channel = new FTPChannel(uri);
+
+    // If the channel is closed by the server, finalize the session.
+    closeWhen(channel.onClose());
+
+    Bell<FTPChannel> bell = authenticate(channel);
+    synchronized (this) {
+      pool.add(main = new Pooled(channel, bell));
+    } return bell.as(this);
+  }
+
+  // Authenticate a newly opened channel. The returned bell rings with the
+  // channel once it is ready to be used.
+  private Bell<FTPChannel> authenticate(final FTPChannel channel) {
     return new Bell() {{
       String user = "anonymous";
       String pass = "stork@storkcloud.org";
 
-      // Initialize connection to server.
-      channel = new FTPChannel(uri);
-
-      // If the channel is closed by the server, finalize the session.
-      closeWhen(channel.onClose());
-
       // Pull userinfo from URI.
       if (uri.username() != null)
         user = uri.username();
@@ -49,7 +80,8 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
 
       final String finalPass = pass;
 
-      // Act depending on the credential type.
+      // Act depending on the credential type. GSS credentials are only
+      // instantiated once, and shared by all of the session's channels.
       if (credential == null) {
         channel.authorize(user, pass).promise(this);
       } else if (credential instanceof StorkGSSCred) {
@@ -76,13 +108,99 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
         // Unsupported credential. Try anonymous auth.
         channel.authorize(user, pass).promise(this);
       }
-    }}.as(FTPSession.this).new Promise() {
+    }}.new Promise() {
       public void done() { channel.new Command("DCAU N"); }
+    }.as(channel);
+  }
+
+  /**
+   * Get a control channel to run a data transfer on. If every channel in the
+   * pool is busy and there are fewer than {@link #connections()} of them, a
+   * new channel is opened. Otherwise, the least busy channel is used. The
+   * main channel also runs metadata commands, which would wait behind a
+   * transfer, so it counts as busy. If no channel in the pool can be used at
+   * all, a new one is opened. Each call should be matched with a call to
+   * {@link #release(Bell)}.
+   *
+   * @return A {@code Bell} which rings with the channel to use.
+   */
+  synchronized Bell<FTPChannel> acquire() {
+    Pooled best = null;
+    int live = 0;
+    for (Pooled p : pool) if (!p.dead) {
+      live++;
+      if (best == null || load(p) < load(best))
+        best = p;
+    } if (best == null || load(best) > 0 && live < connections())
+      best = open();
+    best.transfers++;
+    return best.channel;
+  }
+
+  // How busy a channel is, for choosing one to transfer on.
+  private int load(Pooled p) {
+    return (p == main) ? p.transfers+1 : p.transfers;
+  }
+
+  /**
+   * Release a channel obtained from {@link #acquire()}.
+   *
+   * @param channel the {@code Bell} returned by {@code acquire()}.
+   */
+  synchronized void release(Bell<FTPChannel> channel) {
+    for (Pooled p : pool) if (p.channel == channel) {
+      if (--p.transfers <= 0 && p.dead)
+        pool.remove(p);
+      return;
+    }
+  }
+
+  // Open an additional channel for the pool. If it cannot be opened,
+  // transfers waiting on it fall back to the main channel.
+  private Pooled open() {
+    final FTPChannel ch = new FTPChannel(uri);
+    final Bell<FTPChannel> bell = authenticate(ch);
+    final Pooled p = new Pooled(ch, bell.new AsBell<FTPChannel>() {
+      public Bell<FTPChannel> convert(FTPChannel ch) {
+        return bell;
+      } public Bell<FTPChannel> convert(Throwable t) {
+        return fallback(t);
+      }
+    });
+    pool.add(p);
+    bell.new Promise() {
+      public void fail(Throwable t) { ch.close(); }
+    };
+    ch.onClose().new Promise() {
+      public void always() { discard(p); }
     };
+    return p;
+  }
+
+  // The channel to use instead of one which could not be opened.
+  private synchronized Bell<FTPChannel> fallback(Throwable t) {
+    if (main == null || main.dead)
+      return new Bell<FTPChannel>(t);
+    return main.channel;
+  }
+
+  // Stop handing out a channel, and drop it once nothing is using it.
+  private synchronized void discard(Pooled p) {
+    p.dead = true;
+    if (p.transfers <= 0)
+      pool.remove(p);
+  }
+
+  // Transfers on a control channel are pipelined, so it pays to have the next
+  // few files' commands queued behind the current one on each channel.
+  public int concurrency() {
+    return connections() * PIPELINE_DEPTH;
   }
 
   public void cleanup() {
     channel.close();
+    for (Pooled p : new ArrayList<Pooled>(pool))
+      p.raw.close();
   }
 
   // These methods are used by list() in FTPResource. Different FTP servers
@@ -1,226 +1,329 @@
 package stork.module.http;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.*;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.util.concurrent.GenericFutureListener;
 import stork.feather.Bell;
-import stork.feather.Path;
 import stork.feather.URI;
-import stork.module.http.HTTPResource.HTTPTap;
+import stork.feather.util.TCPOptions;
+import stork.feather.util.Transport;
 
 /**
- * Sets up {@link HTTPChannel} for a {@link HTTPSession}. It also maintains
- * multiple states for the session.
+ * Maintains a pool of connections to the host of a {@link HTTPSession}, and
+ * issues requests for the session through it.
  * <p>
- * {@code Test state}: Collects connection information before initializing
- * the connection. Represented by a {@link Bell}, which rings after the 
- * test phase is complete.
- * <p>
- * {@code Connect state}: Be able to start downloading {@link HTTPResource}
- * requests. Represented by a {@link Bell}, which rings when the test
- * phase is passed, and the connection has been fully established.
+ * {@code Connect state}: Represented by a {@link Bell} which rings once the
+ * host has answered a first request, following redirects to other hosts.
  * <p>
  * {@code Close state}: Rings when this {@link HTTPSession} is asked to get
- * closed.
+ * closed. All connections are closed, and waiting requests fail.
  * <p>
- * {@code Keep-alive state}: Tells whether the connection can always be
- * open. If this session is able to keep alive, its {@link HTTPChannel}
- * would be kept open until a {@code close} method is called. Otherwise,
- * its {@link HTTPChannel} would be reset for each new {@link HTTPTap} task
- * extracted from the queue waited in this local {@code HTTPBuilder}.
+ * A request is sent on an idle connection if there is one. Otherwise, a new
+ * connection is opened if there are fewer than {@link #maxConnections()}.
+ * If pipelining is enabled, {@code GET} and {@code HEAD} requests may also be
+ * queued behind {@code HEAD} requests on a busy connection, so that statting
+ * many resources does not wait a round trip for a connection per request.
+ * Otherwise the request waits for a connection to free up. Connections idle
+ * for {@link #IDLE_TIMEOUT} seconds are closed.
  */
 public class HTTPBuilder {
+  /** Seconds before an idle connection is closed. */
+  public static final int IDLE_TIMEOUT = 15;
+  /** Seconds to wait for data from the server. */
+  public static final int READ_TIMEOUT = 30;
+  /** The most requests pipelined on a single connection. */
+  public static final int PIPELINE_DEPTH = 8;
+  /** The most redirects followed for a request. */
+  public static final int MAX_REDIRECTS = 5;
+
   // Bell used to indicate the close state of session
   protected final Bell<Void> onCloseBell = new Bell<Void> ();
-  // Bell rung when channel passes the connection test before using
-  protected Bell<Void> onTestBell;
-  // Bell rung when the channel is ready to use
-  protected Bell<Void> onConnectBell;
-  // Queue that stores all unhandled requested taps
-  protected Queue<Bell<Void>> tapBellQueue;
-  // Tells the connection state, set by final connection test result 
-  volatile protected boolean isKeepAlive = true;
-
-  public HTTPChannel channel;
-  private Bootstrap boot;
+  // Bell rung when the host is ready to use
+  protected final Bell<Void> onConnectBell = new Bell<Void> ();
+  // Socket options for the session's connections
+  protected final TCPOptions tcp;
+
+  private final HTTPSession session;
+  private final Bootstrap boot;
   private URI uri;
   private int port;
+  private volatile boolean pipelining =
+    Boolean.getBoolean("stork.http.pipelining");
 
-  /** Constructor that sets up the connection */
+  // Open connections, and the number being opened
+  private final List<HTTPConnection> connections =
+    new ArrayList<HTTPConnection>();
+  private int opening = 0;
+  // Requests waiting for a connection
+  private final Deque<HTTPExchange> waiting = new ArrayDeque<HTTPExchange>();
+
+  /** Constructor that starts connecting to the session's host */
   public HTTPBuilder(HTTPSession session) {
+    this.session = session;
+    tcp = session.tcp();
+    Transport t = Transport.getDefault();
+    boot = new Bootstrap();
+    boot.group(t.group()).channel(t.socketChannel());
     try {
-      boot = new Bootstrap();
-      boot.group(session.workGroup)
-        .channel(HTTPChannel.class)
-        .handler(new HTTPInitializer(session.uri.scheme(), this));
-
-      // Channel setup
-      onConnectBell = new Bell<Void>();
+      boot.handler(new HTTPInitializer(session.uri.scheme(), this));
       setUri(session.uri);
-      setupWithTest();
-
-      // Tap bells queue setup
-      tapBellQueue = new ConcurrentLinkedQueue<Bell<Void>>();
+      connect(0);
     } catch (HTTPException e) {
-      System.err.println(e.getMessage());
+      onConnectBell.ring(e);
     }
   }
 
-  /** 
-   * Closes and clears up {@code HTTPChannel} for this session.
-   * It is completely closed when all unfinished connection is done.
+  /**
+   * Closes all connections for this session, and fails requests which
+   * have not been sent.
    */
   public void close() {
-    if (!onCloseBell.isDone()) {
+    List<HTTPConnection> open;
+    List<HTTPExchange> unsent;
+    synchronized (this) {
+      if (onCloseBell.isDone()) {
+        return;
+      }
       onCloseBell.ring();
-      channel.clear();
+      open = new ArrayList<HTTPConnection>(connections);
+      unsent = new ArrayList<HTTPExchange>(waiting);
+      waiting.clear();
+    }
+    for (HTTPConnection c : open) {
+      c.close();
+    }
+    for (HTTPExchange ex : unsent) {
+      ex.fail(closed());
     }
   }
 
   /**
-   * Tells if the connection supports {@code keep-alive} option 
-   * 
-   * @return current connection support on {@code keep-alive}
-   * option
+   * Tells whether requests may be pipelined on connections.
+   *
+   * @return {@code true} if pipelining is enabled
    */
-  public boolean isKeepAlive() {
-    return isKeepAlive;
+  public boolean isPipelining() {
+    return pipelining;
   }
 
   /**
-   * Sets during the {@code Test state} 
-   * 
-   * @param v {@code true} for supporting {@code keep-alive}
-   * option. Otherwise, uses {@code false};
+   * Enables or disables pipelining. It is disabled by default, unless the
+   * {@code stork.http.pipelining} system property is {@code true}.
+   *
+   * @param pipelining {@code true} to pipeline {@code GET} and {@code HEAD}
+   * requests
    */
-  protected void setKeepAlive(boolean v) {
-    isKeepAlive = v;
+  public void setPipelining(boolean pipelining) {
+    this.pipelining = pipelining;
   }
 
   /**
-   * Establishes a new socket connection with connection test
+   * Gets the most connections that may be open to the host. This is the
+   * larger of the session's connections and parallelism.
+   *
+   * @return the size of the pool
    */
-  protected void setupWithTest() {
-    ChannelFuture future = boot.connect(uri.host(), port);
-    future.addListener(
-        new GenericFutureListener<ChannelFuture>() {
-
-          public void operationComplete(ChannelFuture f) {
-            if (f.isSuccess()) {
-              channel = (HTTPChannel) f.channel();
-              testConnection();
-              onTestBell.promise(onConnectBell);
-            } else {
-              onConnectBell.ring(f.cause());
-            }
+  public int maxConnections() {
+    return Math.max(session.connections(), session.parallelism());
+  }
+
+  // Checks that the host answers, following redirects to other hosts.
+  private void connect(final int redirects) {
+    String path = (uri.path() == null) ? "/" : uri.path().toString();
+    issue(new HTTPExchange(prepareHead(path)) {
+      boolean moved = false;
+
+      protected void response(HttpResponse r) throws Exception {
+        if (HTTPResponseCode.isMoved(r.getStatus()) &&
+            redirects < MAX_REDIRECTS) {
+          String location = r.headers().get(HttpHeaders.Names.LOCATION);
+          URI next = URI.create(location);
+          if (next.host() != null && !next.host().equals(uri.host())) {
+            moved = true;
+            setUri(URI.create(next.endpoint()));
           }
-        });
+        }
+      }
+      protected void end() {
+        if (moved) {
+          reset();
+          connect(redirects + 1);
+        } else {
+          onConnectBell.ring();
+        }
+      }
+      protected void fail(Throwable t) {
+        onConnectBell.ring(t);
+      }
+    });
+  }
+
+  // Closes connections to a host that has been left.
+  private void reset() {
+    List<HTTPConnection> open;
+    synchronized (this) {
+      open = new ArrayList<HTTPConnection>(connections);
+      connections.clear();
+    }
+    for (HTTPConnection c : open) {
+      c.close();
+    }
   }
 
   /**
-   * Recreates a new socket connection in case that 
-   * {@code keep-alive} option is not available.
-   * 
-   * @param tap the tap that the connection resets for
+   * Issues a request through the pool.
+   *
+   * @param ex the exchange to issue
    */
-  protected void tryResetConnection(HTTPTap tap) {
-    // Bell rung when the channel has been established
-    final HTTPTap localTap = tap;
-    final Bell<HTTPChannel> connectBell =
-      new Bell<HTTPChannel>() {
-
-        protected void done() throws InterruptedException {
-          try {
-            HTTPChannel channel = (HTTPChannel) this.get();
-            HTTPBuilder.this.channel = channel;
-            channel.addChannelTask(localTap);
-            channel.writeAndFlush(prepareGet(localTap.getPath().toString()));
-          } catch (ExecutionException e) {
-            System.err.println(e.getMessage());
-            HTTPBuilder.this.channel.clear();
-            HTTPBuilder.this.channel.close();
-          }
+  protected void issue(HTTPExchange ex) {
+    synchronized (this) {
+      if (!onCloseBell.isDone()) {
+        waiting.add(ex);
+        dispatch();
+        return;
+      }
+    }
+    ex.fail(closed());
+  }
+
+  // Sends waiting requests on connections that can take them, and opens
+  // connections for the rest if the pool is not full.
+  private synchronized void dispatch() {
+    while (!waiting.isEmpty()) {
+      HTTPConnection c = pick(waiting.peek());
+      if (c == null) {
+        break;
+      }
+      c.send(waiting.poll());
+    }
+    int want = Math.min(waiting.size() - opening,
+        maxConnections() - connections.size() - opening);
+    for (int i = 0; i < want; i++) {
+      open();
+    }
+  }
+
+  // Chooses a connection to send a request on, or null if none can take it.
+  private HTTPConnection pick(HTTPExchange ex) {
+    HTTPConnection best = null;
+    for (HTTPConnection c : connections) {
+      if (!c.isUsable()) {
+        continue;
+      }
+      int n = c.outstanding();
+      if (n == 0) {
+        return c;
+      }
+      if (pipelining && ex.pipelinable() && n < PIPELINE_DEPTH &&
+          c.canPipeline() && (best == null || n < best.outstanding())) {
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  // Opens a new connection for the pool.
+  private void open() {
+    opening++;
+    boot.connect(uri.host(), port).addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture f) {
+        opened(f);
+      }
+    });
+  }
+
+  // Adds a newly opened connection to the pool, or fails waiting requests
+  // if no connection could be made at all.
+  private void opened(ChannelFuture f) {
+    List<HTTPExchange> failed = null;
+    synchronized (this) {
+      opening--;
+      if (f.isSuccess()) {
+        HTTPConnection c = f.channel().pipeline().get(HTTPConnection.class);
+        if (onCloseBell.isDone()) {
+          c.close();
+        } else {
+          connections.add(c);
         }
-      };
-
-    // Case 1. Starts a new connection immediately if the channel is 
-    // in idle status
-    synchronized (channel) {
-      if (channel.onInactiveBell.isDone() &&
-          tapBellQueue.isEmpty()) {
-        // Starts reconnecting
-        ChannelFuture f = boot.connect(uri.host(), port);
-        f.addListener(
-            new GenericFutureListener<ChannelFuture>() {
-
-              public void operationComplete(ChannelFuture f) {
-                if (f.isSuccess()) {
-                  connectBell.ring((HTTPChannel) f.channel());
-                } else {
-                  connectBell.ring(f.cause());
-                }
-              }
-            });
-      } else {
-        // Case 2. Otherwise, adds the resource request to 
-        // waiting queue. Bell rung when the channel finishes
-        // all its previous tasks in the queue.
-        Bell<Void> waitBell = new Bell<Void>();
-        Bell<Void> createBell = new Bell<Void>() {
-
-          protected void done() {
-            ChannelFuture f = boot.connect(uri.host(), port);
-            f.addListener(
-              new GenericFutureListener<ChannelFuture>() {
-
-                public void operationComplete(ChannelFuture f) {
-                  if (f.isSuccess()) {
-                    connectBell.ring((HTTPChannel) f.channel());
-                  } else {
-                    connectBell.ring(f.cause());
-                  }
-                }
-              }
-            );
-          }
-        };
+      } else if (connections.isEmpty() && opening == 0) {
+        failed = new ArrayList<HTTPExchange>(waiting);
+        waiting.clear();
+      }
+      dispatch();
+    }
+    if (failed != null) {
+      for (HTTPExchange ex : failed) {
+        ex.fail(f.cause());
+      }
+    }
+  }
+
+  /**
+   * Called by a connection when it has received a response, and may be
+   * able to take another request.
+   *
+   * @param c the connection
+   */
+  protected synchronized void finished(HTTPConnection c) {
+    dispatch();
+  }
 
-        waitBell.promise(createBell);
-        tapBellQueue.offer(waitBell);
+  /**
+   * Called by a connection that has closed, with the requests it had not
+   * answered. Those which can be retried are sent again.
+   *
+   * @param c the connection
+   * @param lost requests that were waiting for a response
+   */
+  protected void lost(HTTPConnection c, List<HTTPExchange> lost) {
+    List<HTTPExchange> failed = new ArrayList<HTTPExchange>();
+    synchronized (this) {
+      connections.remove(c);
+      for (int i = lost.size() - 1; i >= 0; i--) {
+        HTTPExchange ex = lost.get(i);
+        if (!onCloseBell.isDone() && ex.retry()) {
+          waiting.addFirst(ex);
+        } else {
+          failed.add(ex);
+        }
       }
+      dispatch();
+    }
+    for (HTTPExchange ex : failed) {
+      ex.fail(new HTTPException("Connection to " + getHost() + " lost."));
     }
   }
 
-  /** 
+  private HTTPException closed() {
+    return new HTTPException("HTTP session " + getHost() +
+        " has been closed.");
+  }
+
+  /**
    * Modifies the host {@code URI} for a valid connection of this session.
-   * 
+   *
    * @param uri new host name {@link URI}
    * */
-  protected void setUri(URI uri) {
+  protected void setUri(URI uri) throws HTTPException {
     String strUri = uri.toString();
     if (strUri.endsWith("/")) {
       strUri = strUri.substring(0, strUri.length() - 1);
     }
     this.uri = URI.create(strUri);
-    try {
-      port = analURI(uri);
-    } catch (HTTPException e) {
-      System.err.println(e.getMessage());
-    }
+    port = analURI(uri);
   }
 
-  /** 
-   * Gets modified host name 
-   * 
+  /**
+   * Gets modified host name
+   *
    * @return host name in string
    */
   protected String getHost() {
@@ -228,17 +331,17 @@ public class HTTPBuilder {
   }
 
   /**
-   * Gets available {@code HTTPChannel} instance.
-   * 
-   * @return A HTTP channel
+   * Gets the port number connections are made to
+   *
+   * @return port number
    */
-  protected HTTPChannel getChannel() {
-    return channel;
+  protected int getPort() {
+    return port;
   }
 
   /**
    * Prepares GET request message to be sent.
-   * 
+   *
    * @param path specific file path under this host
    * @return Message to be sent
    */
@@ -248,7 +351,7 @@ public class HTTPBuilder {
 
   /**
    * Prepares HEAD request message to be sent.
-   * 
+   *
    * @param path specific file path under this host
    * @return Message to be sent
    */
@@ -258,12 +361,12 @@ public class HTTPBuilder {
 
   /**
    * Prepares request message to be sent.
-   * 
+   *
    * @param path specific file path under this host
    * @return Message to be sent
    */
   protected HttpRequest prepareRequest(String method, String path) {
-    HttpRequest request = new DefaultFullHttpRequest( 
+    HttpRequest request = new DefaultFullHttpRequest(
         HttpVersion.HTTP_1_1, HttpMethod.valueOf(method), path);
     request.headers().set(HttpHeaders.Names.HOST, this.uri.host());
     request.headers().set(HttpHeaders.Names.USER_AGENT, "Stork");
@@ -271,23 +374,6 @@ public class HTTPBuilder {
     return request;
   }
 
-  // Tests whether the connection supports keep-alive.
-  private void testConnection() {
-    HttpRequest request = prepareGet(uri.path().toString());
-    onTestBell = new Bell<Void>() {
-      protected void done() {
-        channel.config().setKeepAlive(isKeepAlive);
-        if (isKeepAlive) {
-          channel.restorePipeline(HTTPBuilder.this);
-        }
-      }
-    };
-    request.setMethod(channel.testMethod);
-    channel.testerPipeline(this);
-    channel.config().setKeepAlive(true);
-    channel.writeAndFlush(request);
-  }
-
   // Returns an appropriate port number from given URL.
   private int analURI(URI uri) throws HTTPException {
     int port = -1;
@@ -0,0 +1,221 @@
+package stork.module.http;
+
+import java.util.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
+
+import stork.feather.Bell;
+
+/**
+ * A pooled connection to a HTTP server. Requests sent on the connection are
+ * kept in a queue, and responses are matched to them in order, which allows
+ * requests to be pipelined.
+ * <p>
+ * The connection is closed after a response which does not allow it to be
+ * kept alive, or when it has been idle for a while. Requests still waiting
+ * for a response when the connection is lost are handed back to the
+ * {@link HTTPBuilder} to be sent again.
+ */
+public class HTTPConnection extends ChannelHandlerAdapter {
+
+  private final HTTPBuilder builder;
+  private Channel channel;
+  // Requests sent and waiting for their response, oldest first
+  private final Deque<HTTPExchange> outstanding = new ArrayDeque<HTTPExchange>();
+  // Whether the server allows further requests on this connection
+  private volatile boolean reusable = true;
+  // Whether reading is paused until a sink catches up
+  private volatile boolean paused = false;
+
+  /**
+   * Constructs a connection handler for a channel of {@code builder}.
+   *
+   * @param builder the pool this connection belongs to
+   */
+  public HTTPConnection(HTTPBuilder builder) {
+    this.builder = builder;
+  }
+
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    channel = ctx.channel();
+  }
+
+  /**
+   * Sends a request on this connection.
+   *
+   * @param ex the exchange to send the request of
+   */
+  protected synchronized void send(final HTTPExchange ex) {
+    outstanding.add(ex);
+    // Keep the request intact, in case it needs to be sent again.
+    channel.writeAndFlush(ReferenceCountUtil.retain(ex.request))
+        .addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture f) {
+        if (!f.isSuccess()) {
+          unsent(ex);
+        }
+      }
+    });
+  }
+
+  // Hands a request that could not be written back to the pool. The
+  // connection may already have been found closed without it.
+  private void unsent(HTTPExchange ex) {
+    boolean mine;
+    synchronized (this) {
+      mine = outstanding.remove(ex);
+    }
+    close();
+    if (mine) {
+      builder.lost(this, Collections.singletonList(ex));
+    }
+  }
+
+  /** Tells how many requests are waiting for a response. */
+  protected synchronized int outstanding() {
+    return outstanding.size();
+  }
+
+  /**
+   * Tells whether a request can be pipelined on this connection. This is
+   * only allowed behind {@code HEAD} requests, whose responses have no body,
+   * so the request is not held up behind a large download.
+   */
+  protected synchronized boolean canPipeline() {
+    for (HTTPExchange ex : outstanding) {
+      if (!ex.request.getMethod().equals(HttpMethod.HEAD)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Tells whether this connection can take more requests. */
+  protected boolean isUsable() {
+    return reusable && channel.isActive();
+  }
+
+  /** Closes this connection. */
+  protected void close() {
+    reusable = false;
+    channel.close();
+  }
+
+  private synchronized HTTPExchange current() {
+    return outstanding.peek();
+  }
+
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    HTTPExchange ex = current();
+    try {
+      if (ex == null) {
+        throw new HTTPException("Unexpected response.");
+      }
+      if (msg instanceof HttpResponse) {
+        HttpResponse response = (HttpResponse) msg;
+        ex.started = true;
+        if (!HttpHeaders.isKeepAlive(response)) {
+          reusable = false;
+        }
+        ex.response(response);
+      }
+      if (msg instanceof HttpContent) {
+        ByteBuf buf = ((HttpContent) msg).content();
+        if (buf.isReadable()) {
+          pauseUntil(ex.content(buf));
+        }
+      }
+      if (msg instanceof LastHttpContent) {
+        synchronized (this) {
+          outstanding.poll();
+        }
+        ex.end();
+        if (!reusable) {
+          channel.close();
+        } else {
+          builder.finished(this);
+        }
+      }
+    } catch (Throwable t) {
+      exceptionCaught(ctx, t);
+    } finally {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  // Stop reading until bell rings.
+  private void pauseUntil(Bell<?> bell) {
+    if (bell == null || bell.isDone()) {
+      return;
+    }
+    paused = true;
+    channel.config().setAutoRead(false);
+    bell.new Promise() {
+      public void done() {
+        paused = false;
+        channel.config().setAutoRead(true);
+      }
+      public void fail(Throwable t) {
+        exceptionCaught(null, t);
+      }
+    };
+  }
+
+  /** Handles read time-outs and idle eviction. */
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+    if (!(evt instanceof IdleStateEvent)) {
+      ctx.fireUserEventTriggered(evt);
+    } else if (outstanding() == 0) {
+      if (((IdleStateEvent) evt).state() == IdleState.ALL_IDLE) {
+        close();
+      }
+    } else if (!paused &&
+        ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+      exceptionCaught(ctx, new HTTPException("Read timed out."));
+    }
+  }
+
+  /**
+   * Fails the current request, and closes the connection. A request whose
+   * response has not started is left to be handed back to the pool.
+   */
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    HTTPExchange ex;
+    synchronized (this) {
+      ex = outstanding.peek();
+      if (ex != null && ex.started) {
+        outstanding.poll();
+      } else {
+        ex = null;
+      }
+    }
+    if (ex != null) {
+      ex.fail(cause);
+    }
+    close();
+  }
+
+  /** Hands requests which were never answered back to the pool. */
+  public void channelInactive(ChannelHandlerContext ctx) {
+    reusable = false;
+    List<HTTPExchange> lost;
+    synchronized (this) {
+      lost = new ArrayList<HTTPExchange>(outstanding);
+      outstanding.clear();
+    }
+    builder.lost(this, lost);
+  }
+}
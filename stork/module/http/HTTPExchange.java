@@ -0,0 +1,104 @@
+package stork.module.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+import stork.feather.Bell;
+import stork.feather.URI;
+
+/**
+ * A request issued through the connection pool of a {@link HTTPBuilder},
+ * along with the handling of its response. The methods of an exchange are
+ * called in order on the thread of the connection it was sent on.
+ */
+abstract class HTTPExchange {
+
+  /** The request to be sent. */
+  protected final HttpRequest request;
+
+  // Whether a response has started arriving.
+  volatile boolean started = false;
+  // Whether the request may be retried on another connection.
+  private boolean retried = false;
+
+  /**
+   * Creates an exchange for the given request.
+   *
+   * @param request the request to be sent
+   */
+  protected HTTPExchange(HttpRequest request) {
+    this.request = request;
+  }
+
+  /**
+   * Tells whether this request may be pipelined behind others on the same
+   * connection. Only {@code GET} and {@code HEAD} are pipelined.
+   */
+  protected boolean pipelinable() {
+    HttpMethod m = request.getMethod();
+    return m.equals(HttpMethod.GET) || m.equals(HttpMethod.HEAD);
+  }
+
+  /**
+   * Called when the response header is received.
+   *
+   * @param response the response header
+   * @throws Exception to fail this exchange and close the connection
+   */
+  protected abstract void response(HttpResponse response) throws Exception;
+
+  /**
+   * Called for each piece of the response body. The connection stops reading
+   * until the returned {@link Bell} rings. The buffer is released once this
+   * returns, so it must be retained to be used afterwards.
+   *
+   * @param content a piece of the response body
+   * @return A {@code Bell} to wait for, or {@code null}
+   * @throws Exception to fail this exchange and close the connection
+   */
+  protected Bell<?> content(ByteBuf content) throws Exception {
+    return null;
+  }
+
+  /** Called when the response has been fully received. */
+  protected abstract void end();
+
+  /**
+   * Called if the exchange cannot be completed.
+   *
+   * @param cause the reason it failed
+   */
+  protected abstract void fail(Throwable cause);
+
+  /**
+   * Tells whether this exchange should be sent again after its connection
+   * was lost. This is only the case once, for pipelinable requests that
+   * have not started receiving a response.
+   */
+  boolean retry() {
+    if (started || retried || !pipelinable()) {
+      return false;
+    }
+    retried = true;
+    return true;
+  }
+
+  /**
+   * Gets the path a redirect response points to.
+   *
+   * @param response a redirect response
+   * @return the path on this host to request instead
+   * @throws HTTPException if the response has no location
+   */
+  static String redirectPath(HttpResponse response) throws HTTPException {
+    String location = response.headers().get(HttpHeaders.Names.LOCATION);
+    if (location == null) {
+      throw new HTTPException("Redirect without location.");
+    }
+    String suffix = location.endsWith("/") ? "/" : "";
+    return URI.create(location).path() + suffix;
+  }
+}
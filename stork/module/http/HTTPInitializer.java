@@ -12,7 +12,7 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 
 /**
  * Convenient HTTP initializer for handler setting up.
@@ -39,6 +39,7 @@ public class HTTPInitializer extends ChannelInitializer<SocketChannel> {
    *  @param ch channel to be operated on
    */
   protected void initChannel(SocketChannel ch) throws Exception {
+    builder.tcp.apply(ch);
     ChannelPipeline pipe = ch.pipeline();
 
     if (ssl) {
@@ -48,14 +49,15 @@ public class HTTPInitializer extends ChannelInitializer<SocketChannel> {
       pipe.addLast("SSL", new SslHandler(sslEng, false));
     }
 
-    pipe.addFirst("Timer", new ReadTimeoutHandler(30));
+    pipe.addFirst("Timer", new IdleStateHandler(
+          HTTPBuilder.READ_TIMEOUT, 0, HTTPBuilder.IDLE_TIMEOUT));
     pipe.addLast("Codec", new HttpClientCodec());
     pipe.addLast("Inflater", new HttpContentDecompressor());
-    pipe.addLast("Handler", new HTTPMessageHandler(builder));
+    pipe.addLast("Handler", new HTTPConnection(builder));
   }
 
   // HTTPS transmission
-  private SSLEngine getSsl(String proto) throws NoSuchAlgorithmException {
+  static SSLEngine getSsl(String proto) throws NoSuchAlgorithmException {
     String protocol = (proto == null) ? "TLS" : proto;
     SSLContext context = SSLContext.getInstance(protocol);
     try {
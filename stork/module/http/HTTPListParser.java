@@ -3,79 +3,283 @@ package stork.module.http;
 import java.io.*;
 import java.util.*;
 
-import org.jsoup.*;
-import org.jsoup.nodes.*;
+import io.netty.buffer.*;
+import io.netty.util.*;
 
 import stork.feather.*;
 import stork.feather.util.*;
 
 /**
- * Extracts links from HTML pages.
+ * Extracts links from HTML pages. The page is scanned as it arrives from the
+ * source, and the names of resources linked from it which lie directly under
+ * {@code base} are emitted as soon as they are found. Only the names seen so
+ * far are kept, so large index pages do not need to be held in memory.
+ * <p>
+ * Links are taken from the {@code href} attribute of {@code a} and {@code
+ * link} tags, and the {@code src} attribute of any tag, ignoring comments and
+ * the contents of {@code script} and {@code style} tags.
  */
-public class HTTPListParser {
-  private final InputStream is;
+public class HTTPListParser extends Emitter<String> {
+  // Attribute values longer than this are not links worth following.
+  private static final int MAX_VALUE = 8192;
+
   private final URI base;
-  private Bell<List<Stat>> listBell;
+  private final Set<String> names = new HashSet<String>();
+  private final Set<String> dirs = new HashSet<String>();
+
+  // Tokenizer states.
+  private enum State {
+    TEXT, OPEN, DECL, COMMENT, TAG, ATTRS, NAME, AFTER_NAME, BEFORE_VALUE,
+    VALUE, RAW
+  }
+
+  private State state = State.TEXT;
+  private final StringBuilder tag = new StringBuilder();
+  private final StringBuilder attr = new StringBuilder();
+  private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+  private char quote;   // The quote around the value, or 0 if unquoted.
+  private int dashes;   // Dashes seen in a row inside a comment or "<!".
+  private int matched;  // Characters of the raw text end tag seen.
+  private String raw;   // The end tag of raw text, e.g. "</script".
 
   /** Extract a listing from {@code source}. This starts {@code source}. */
   public HTTPListParser(URI base, Tap source) {
     this.base = base;
-    is = Pipes.asInputStream(source);
+    source.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        scan(slice.asByteBuf());
+        return null;
+      } public void finish(Throwable t) {
+        if (t != null)
+          HTTPListParser.this.ring(t);
+        else
+          HTTPListParser.this.ring();
+      }
+    });
     source.start();
   }
 
-  /** Parse and return the listing. */
-  public synchronized Bell<List<Stat>> getListing() {
-    if (listBell == null) listBell = new ThreadBell<Set<String>>() {
-      public Set<String> run() throws Exception {
-        Document doc = Jsoup.parse(is, "UTF-8", base.toString());
-        Set<String> names = new HashSet<String>();
-
-        for (Element e : doc.select("a[href]")) {
-          addName(names, e.attr("href"));
-        } for (Element e : doc.select("[src]")) {
-          addName(names, e.attr("src"));
-        } for (Element e : doc.select("link[href]")) {
-          addName(names, e.attr("href"));
-        }
-        return names;
-      }
-    }.start().new As<List<Stat>>() {
-      public List<Stat> convert(Set<String> names) {
+  /**
+   * Collect the listing into {@code Stat}s. This consumes the names emitted
+   * by this parser, so it should not be used alongside other consumers.
+   */
+  public Bell<List<Stat>> getListing() {
+    return asList().new As<List<Stat>>() {
+      public List<Stat> convert(List<String> names) {
         List<Stat> stats = new LinkedList<Stat>();
         for (String name : names) {
-          Stat stat = createStat(name);
-          if (stat != null)
-            stats.add(stat);
+          Stat stat = new Stat(name);
+          stat.dir = isDir(name);
+          stat.file = !stat.dir;
+          stats.add(stat);
         }
         return stats;
       }
     };
-    return listBell.detach();
   }
 
-  /** Add a relative path. */
-  private void addName(Set<String> names, String name) {
-    if (name.startsWith("#"))
+  private synchronized boolean isDir(String name) {
+    return dirs.contains(name);
+  }
+
+  // Run the tokenizer over a buffer.
+  private synchronized void scan(ByteBuf buf) {
+    for (int i = buf.readerIndex(); i < buf.writerIndex(); i++)
+      step((char) (buf.getByte(i) & 0xff));
+  }
+
+  // Advance the tokenizer by one byte.
+  private void step(char c) {
+    switch (state) {
+      case TEXT:
+        if (c == '<')
+          state = State.OPEN;
+        break;
+      case OPEN:
+        tag.setLength(0);
+        if (c == '!') {
+          dashes = 0;
+          state = State.DECL;
+        } else if (Character.isLetter(c)) {
+          tag.append(Character.toLowerCase(c));
+          state = State.TAG;
+        } else if (c == '/' || c == '?') {
+          state = State.ATTRS;
+        } else if (c != '<') {
+          state = State.TEXT;
+        } break;
+      case DECL:
+        if (c == '-' && ++dashes == 2) {
+          dashes = 0;
+          state = State.COMMENT;
+        } else if (c == '>') {
+          state = State.TEXT;
+        } else if (c != '-') {
+          dashes = 2;  // Not a comment, just skip to the end.
+        } break;
+      case COMMENT:
+        if (c == '-')
+          dashes++;
+        else if (c == '>' && dashes >= 2)
+          state = State.TEXT;
+        else
+          dashes = 0;
+        break;
+      case TAG:
+        if (isSpace(c) || c == '/')
+          state = State.ATTRS;
+        else if (c == '>')
+          endTag();
+        else if (tag.length() < 16)
+          tag.append(Character.toLowerCase(c));
+        break;
+      case ATTRS:
+        if (c == '>') {
+          endTag();
+        } else if (!isSpace(c) && c != '/') {
+          attr.setLength(0);
+          attr.append(Character.toLowerCase(c));
+          state = State.NAME;
+        } break;
+      case NAME:
+        if (c == '=') {
+          state = State.BEFORE_VALUE;
+        } else if (c == '>') {
+          endTag();
+        } else if (isSpace(c)) {
+          state = State.AFTER_NAME;
+        } else if (c == '/') {
+          state = State.ATTRS;
+        } else if (attr.length() < 16) {
+          attr.append(Character.toLowerCase(c));
+        } break;
+      case AFTER_NAME:
+        if (c == '=') {
+          state = State.BEFORE_VALUE;
+        } else if (c == '>') {
+          endTag();
+        } else if (!isSpace(c)) {
+          state = State.ATTRS;
+          step(c);
+        } break;
+      case BEFORE_VALUE:
+        value.reset();
+        if (c == '>') {
+          endTag();
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+          state = State.VALUE;
+        } else if (!isSpace(c)) {
+          quote = 0;
+          value.write(c);
+          state = State.VALUE;
+        } break;
+      case VALUE:
+        if (quote != 0 ? c == quote : isSpace(c)) {
+          endValue();
+          state = State.ATTRS;
+        } else if (quote == 0 && c == '>') {
+          endValue();
+          endTag();
+        } else if (value.size() <= MAX_VALUE) {
+          value.write(c);
+        } break;
+      case RAW:
+        if (Character.toLowerCase(c) == raw.charAt(matched)) {
+          if (++matched == raw.length()) {
+            tag.setLength(0);
+            state = State.ATTRS;
+          }
+        } else {
+          matched = (c == '<') ? 1 : 0;
+        } break;
+    }
+  }
+
+  // Called at the end of a tag. Skip the contents of script and style tags,
+  // since they may contain things that look like tags.
+  private void endTag() {
+    String name = tag.toString();
+    if (name.equals("script") || name.equals("style")) {
+      raw = "</"+name;
+      matched = 0;
+      state = State.RAW;
+    } else {
+      state = State.TEXT;
+    }
+  }
+
+  // Called at the end of an attribute value.
+  private void endValue() {
+    String a = attr.toString(), t = tag.toString();
+    if (value.size() > MAX_VALUE)
+      return;
+    if (a.equals("src") ||
+        a.equals("href") && (t.equals("a") || t.equals("link"))) try {
+      addName(unescape(new String(value.toByteArray(), CharsetUtil.UTF_8)));
+    } catch (Exception e) {
+      // Not a link we can make sense of.
+    }
+  }
+
+  /** Emit the name of a link if it points directly under the base. */
+  private void addName(String link) {
+    link = link.trim();
+    if (link.isEmpty() || link.startsWith("#") || link.startsWith("?"))
       return;
-    URI uri = URI.create(name);
+    URI uri = URI.create(link);
     if (uri.isAbsolute())
       return;
-    Path path = uri.path();
-    if (!path.isRoot() && path.up().equals(base.path()))
-      names.add(path.name());
+    String target = link.replaceAll("[?#].*$", "");
+    Path path = target.startsWith("/") ?
+      uri.path() : base.path().append(target);
+    if (path.isRoot() || !path.up().equals(base.path()))
+      return;
+    String name = path.name();
+    if (name.isEmpty() || name.equals(".") || name.equals(".."))
+      return;
+    if (target.endsWith("/"))
+      dirs.add(name);
+    if (names.add(name))
+      emit(name);
+  }
+
+  // Replace character references in an attribute value.
+  private static String unescape(String s) {
+    if (s.indexOf('&') < 0)
+      return s;
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      int end = s.indexOf(';', i);
+      if (c != '&' || end < 0 || end-i > 10) {
+        sb.append(c);
+        continue;
+      }
+      String ref = s.substring(i+1, end);
+      if (ref.equals("amp"))
+        sb.append('&');
+      else if (ref.equals("lt"))
+        sb.append('<');
+      else if (ref.equals("gt"))
+        sb.append('>');
+      else if (ref.equals("quot"))
+        sb.append('"');
+      else if (ref.equals("apos"))
+        sb.append('\'');
+      else if (ref.startsWith("#x") || ref.startsWith("#X"))
+        sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+      else if (ref.startsWith("#"))
+        sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+      else {
+        sb.append(c);
+        continue;
+      } i = end;
+    }
+    return sb.toString();
   }
 
-  /** Create a Stat from a name. */
-  private static Stat createStat(String name) {
-    boolean dir = name.endsWith("/");
-    if (dir)
-      name = name.replaceAll("/+$", "");
-    if (name.isEmpty())
-      return null;
-    Stat stat = new Stat(name);
-    stat.dir = dir;
-    stat.file = !dir;
-    return stat;
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
   }
 }
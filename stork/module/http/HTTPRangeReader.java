@@ -0,0 +1,196 @@
+package stork.module.http;
+
+import java.util.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+import stork.feather.*;
+import stork.module.http.HTTPResource.HTTPTap;
+
+/**
+ * Downloads a resource as byte ranges fetched over several connections at
+ * once, draining each range into the tap with its offset in the resource.
+ * This is only usable when the server accepts range requests and the size of
+ * the resource is known, and the sink accepts slices in any order.
+ * <p>
+ * The resource is split into chunks which are requested from a shared queue,
+ * keeping a fixed number of requests in flight, so faster connections fetch
+ * more of the file. A chunk cut short by a failed connection is put back on
+ * the queue for the others. Requests go through the session's connection
+ * pool, and are never pipelined, so that each is on its own connection. If
+ * the server answers the first ranges with anything but partial content, the
+ * resource is fetched with a single request instead.
+ */
+class HTTPRangeReader {
+  /** The largest byte range requested at once. */
+  static final long CHUNK = 8 << 20;
+
+  /** Resources smaller than this are not worth splitting. */
+  static final long MIN_SIZE = 1 << 20;
+
+  private final HTTPTap tap;
+  private final HTTPSession session;
+  private final String path;
+  private final int streams;
+
+  // Chunks which have not been requested yet, as {start, end} pairs.
+  private final Deque<long[]> chunks = new ArrayDeque<long[]>();
+  private int pending;   // Chunks not yet fully received.
+  private int failures;  // Requests failed so far.
+  private boolean ranged;    // Whether a range has been answered.
+  private boolean fellBack;  // Whether a single request was used instead.
+
+  private final Bell<Void> onStart = new Bell<Void>();
+  private final Bell<Void> onDone = new Bell<Void>() {
+    public void done()            { tap.finish(null); }
+    public void fail(Throwable t) { tap.finish(t); }
+    public void always()          { onStart.ring(); }
+  };
+
+  /**
+   * Create a reader which downloads {@code size} bytes at {@code path} for
+   * {@code tap} using {@code streams} connections. {@code path} should be
+   * where any redirects lead.
+   */
+  HTTPRangeReader(HTTPTap tap, String path, long size, int streams) {
+    this.tap = tap;
+    this.session = tap.source().session;
+    this.path = path;
+
+    long chunk = Math.min(CHUNK, Math.max(MIN_SIZE, size/(streams*4)));
+    for (long s = 0; s < size; s += chunk)
+      chunks.add(new long[] { s, Math.min(s+chunk, size)-1 });
+    this.pending = chunks.size();
+    this.streams = Math.min(streams, pending);
+  }
+
+  /**
+   * Start fetching once {@code bell} rings.
+   *
+   * @return A {@code Bell} which rings once data has started flowing.
+   */
+  Bell<Void> start(Bell bell) {
+    bell.new Promise() {
+      public void done() {
+        for (int i = 0; i < streams; i++)
+          next();
+      } public void fail(Throwable t) {
+        onDone.ring(t);
+      }
+    };
+    return onStart;
+  }
+
+  // Request the next chunk, if there is one.
+  private void next() {
+    long[] chunk = take();
+    if (chunk != null)
+      session.builder.issue(new Fetch(chunk));
+  }
+
+  // Take the next chunk to fetch, or null if there are none.
+  private synchronized long[] take() {
+    if (onDone.isDone() || fellBack)
+      return null;
+    return chunks.poll();
+  }
+
+  // Called when a chunk has been fully received.
+  private void received() {
+    boolean done;
+    synchronized (this) { done = --pending == 0; }
+    if (done) onDone.ring();
+  }
+
+  // Called when a request fails. If it was in the middle of a chunk, the rest
+  // of the chunk is put back and requested again. Give up if requests keep
+  // failing.
+  private void lost(long[] rest, Throwable t) {
+    boolean failed;
+    synchronized (this) {
+      if (rest != null)
+        chunks.addFirst(rest);
+      failed = ++failures > 2*streams;
+    } if (failed)
+      onDone.ring(t != null ? t : new HTTPException("Connections lost."));
+    else
+      next();
+  }
+
+  // Called when a range request is answered without partial content. If no
+  // range has been answered yet, the server doesn't honor them, so fetch the
+  // resource with a single request. Returns whether this happened.
+  private boolean fallBack() {
+    synchronized (this) {
+      if (ranged || onDone.isDone())
+        return false;
+      if (fellBack)
+        return true;
+      fellBack = true;
+      chunks.clear();
+    } Bell single = tap.startSingle(Bell.rungBell());
+    single.promise(onStart);
+    return true;
+  }
+
+  // Makes a range request for a chunk, starting at the offset.
+  private static HttpRequest request(HTTPSession session, String path,
+                                     long[] chunk) {
+    HttpRequest req = session.builder.prepareGet(path);
+    req.headers().set(HttpHeaders.Names.RANGE,
+                      "bytes="+chunk[0]+"-"+chunk[1]);
+    req.headers().set(HttpHeaders.Names.ACCEPT_ENCODING,
+                      HttpHeaders.Values.IDENTITY);
+    return req;
+  }
+
+  // Fetches a single chunk.
+  private class Fetch extends HTTPExchange {
+    private final long[] chunk;  // The chunk, starting at the offset.
+
+    Fetch(long[] chunk) {
+      super(request(session, path, chunk));
+      this.chunk = chunk;
+    }
+
+    // Each range gets a connection to itself.
+    protected boolean pipelinable() { return false; }
+
+    protected void response(HttpResponse r) throws Exception {
+      if (onDone.isFailed())
+        throw new HTTPException("Transfer failed.");
+      if (r.getStatus().code() != 206) {
+        if (fallBack())
+          throw new HTTPException("Server does not honor ranges.");
+        throw new HTTPException("Range request failed: "+r.getStatus());
+      } synchronized (HTTPRangeReader.this) {
+        ranged = true;
+      } onStart.ring();
+    }
+
+    protected Bell<?> content(ByteBuf buf) {
+      int len = buf.readableBytes();
+      Bell<?> bell = tap.drain(new Slice(buf.retain(), chunk[0]));
+      chunk[0] += len;
+      return bell;
+    }
+
+    protected void end() {
+      if (chunk[0] <= chunk[1]) {
+        fail(new HTTPException("Range response was cut short."));
+      } else {
+        received();
+        next();
+      }
+    }
+
+    protected void fail(Throwable t) {
+      synchronized (HTTPRangeReader.this) {
+        if (fellBack) return;
+      } lost(chunk[0] <= chunk[1] ? chunk : null, t);
+    }
+  }
+}
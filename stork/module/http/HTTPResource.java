@@ -1,21 +1,30 @@
 package stork.module.http;
 
+import java.text.*;
 import java.util.*;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
 import stork.feather.*;
+import stork.feather.errors.*;
 
 /**
- * Stores the requested full {@link Path}, and state information of the 
+ * Stores the requested full {@link Path}, and state information of the
  * connection. It creates {@link HTTPTap} instances.
  */
 public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
 
-  // Rung when the first resource response header is received
-  private Bell<Stat> statBell = new Bell<Stat>();
+  // Rung when the resource response header is received
+  private Bell<Stat> statBell;
+  // Whether the server accepts byte range requests for this resource
+  private volatile boolean acceptsRanges = false;
 
   /**
    * Constructs a {@code resource} with HTTP connection request.
-   * 
+   *
    * @param session the class where this request made from
    * @param path requested resource {@code path}
    */
@@ -27,32 +36,25 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
     return new HTTPTap();
   }
 
-  public synchronized Bell<Stat> stat() {
-    return initialize().new AsBell<Stat>() {
-      public Bell<Stat> convert(HTTPResource r) {
-        if (statBell.isDone())
-          return statBell;
-
-        HTTPBuilder builder = session.builder;
-
-        // We need to make a HEAD request.
-        if (!builder.onCloseBell.isDone()) {
-          HTTPChannel ch = builder.getChannel();
-
-          ch.addChannelTask(new HTTPTap());  // FIXME hacky
-          ch.writeAndFlush(builder.prepareHead(path.toString()));
-        } else {
-          statBell.ring(new HTTPException("Http session " +
-                builder.getHost() + " has been closed."));
-        }
+  public Bell<Stat> stat() {
+    return stat(true);
+  }
 
-        return statBell;
+  public synchronized Bell<Stat> stat(boolean list) {
+    // Only make one HEAD request, however often this is called.
+    if (statBell == null) statBell = initialize().new AsBell<Stat>() {
+      public Bell<Stat> convert(HTTPResource r) {
+        return head(path.toString(), 0);
       }
-    }.new AsBell<Stat>() {
+    };
+    if (!list)
+      return statBell.detach();
+    return statBell.new AsBell<Stat>() {
       // Fetch the page to do listing if necessary.
-      public Bell<Stat> convert(final Stat stat) {
-        if (!stat.dir)
-          return Bell.wrap(stat);
+      public Bell<Stat> convert(Stat head) {
+        if (!head.dir)
+          return Bell.wrap(head);
+        final Stat stat = new Stat().copy(head);
         Bell<List<Stat>> listBell =
           new HTTPListParser(uri(), tap()).getListing();
         return listBell.new As<Stat>() {
@@ -64,14 +66,78 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
     };
   }
 
+  /** Stream the names of resources linked from this page. */
+  public Emitter<String> list() {
+    return new HTTPListParser(uri(), tap());
+  }
+
+  // Makes a HEAD request for the resource, following redirects.
+  private Bell<Stat> head(final String path, final int redirects) {
+    final Bell<Stat> bell = new Bell<Stat>();
+    session.builder.issue(
+        new HTTPExchange(session.builder.prepareHead(path)) {
+      private String moved;
+      private Stat stat;
+
+      protected void response(HttpResponse response) throws Exception {
+        HttpResponseStatus status = response.getStatus();
+        if (HTTPResponseCode.isMoved(status) &&
+            redirects < HTTPBuilder.MAX_REDIRECTS) {
+          moved = redirectPath(response);
+        } else if (HTTPResponseCode.isNotFound(status)) {
+          throw new NotFound();
+        } else if (status.code() / 100 != 2) {
+          throw new HTTPException(path + ": " + status);
+        } else {
+          acceptsRanges = "bytes".equalsIgnoreCase(
+              response.headers().get(HttpHeaders.Names.ACCEPT_RANGES));
+          stat = getStat(response, path);
+        }
+      }
+
+      protected void end() {
+        if (moved != null) {
+          head(moved, redirects + 1).promise(bell);
+        } else {
+          bell.ring(stat);
+        }
+      }
+
+      protected void fail(Throwable cause) {
+        bell.ring(cause);
+      }
+    });
+    return bell;
+  }
+
+  // Gathers meta data information
+  private Stat getStat(HttpResponse response, String link) {
+    Stat stat = new Stat(path.name());
+    String length = response.headers().get(HttpHeaders.Names.CONTENT_LENGTH);
+    String type = response.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+    Date time = null;
+
+    try {
+      time = HttpHeaders.getDate(response);
+    } catch (ParseException e) {
+      // This means date meta data is not available
+    }
+    stat.dir = (type != null && type.startsWith("text/html"));
+    stat.file = !stat.dir;
+    stat.link = link;
+    stat.size = (length == null) ? -1l : Long.valueOf(length);
+    stat.time = (time == null) ? -1l : time.getTime()/1000;
+
+    return stat;
+  }
+
   /**
    * This can be considered as a specific download task for the
    * request from a {@link HTTPResource}.
    */
   public class HTTPTap extends Tap<HTTPResource> {
 
-    protected Bell<Void> onStartBell, sinkReadyBell;
-    private HTTPBuilder builder;
+    protected final Bell<Void> onStartBell = new Bell<Void>();
     private String resourcePath;
 
     /**
@@ -80,72 +146,96 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
      */
     public HTTPTap() {
       super(HTTPResource.this);
-      this.builder = HTTPResource.this.session.builder;
-      onStartBell = new Bell<Void> ();
       setPath(path.toString());
     }
 
     public Bell<?> start(final Bell bell) {
-      return initialize().and(bell).new AsBell() {
-        public Bell convert(Object o) {
-          if (builder.onCloseBell.isDone()) {
-            return onStartBell.cancel();
-          }
-          sinkReadyBell = bell;
-
-          synchronized (builder.getChannel()) {
-            if (!builder.onCloseBell.isDone()) {
-              HTTPChannel ch = builder.getChannel();
-
-              if (builder.isKeepAlive()) {
-                ch.addChannelTask(HTTPTap.this);
-                ch.writeAndFlush(
-                    builder.prepareGet(resourcePath));
-              } else {
-                builder.tryResetConnection(HTTPTap.this);
-              }
-            } else {
-              onStartBell.ring(new HTTPException("HTTP session " +
-                    builder.getHost() + " has been closed."));
-              session.close();
+      // Fetch byte ranges in parallel if the sink can take them in any order.
+      if (random() && session.parallelism() > 1) {
+        Bell<Stat> sb = stat(false);
+        return sb.new AsBell<Object>() {
+          public Bell convert(Stat stat) {
+            if (acceptsRanges && stat.size >= HTTPRangeReader.MIN_SIZE) {
+              // Ask for ranges where the HEAD request was redirected to.
+              String at = (stat.link != null) ? stat.link : resourcePath;
+              return new HTTPRangeReader(HTTPTap.this, at, stat.size,
+                  session.parallelism()).start(bell);
             }
+            return startSingle(bell);
           }
+        };
+      }
+      return startSingle(bell);
+    }
 
-          sinkReadyBell.new Promise() {
-            public void fail(Throwable t) {
-              onStartBell.ring(t);
-              finish(t);
-            }
-          };
+    // Fetches the resource with a single request through the pool.
+    Bell<?> startSingle(final Bell bell) {
+      initialize().and(bell).new Promise() {
+        public void done() {
+          fetch(resourcePath, 0);
+        }
 
-          return onStartBell;
+        public void fail(Throwable t) {
+          onStartBell.ring(t);
+          finish(t);
         }
       };
+      return onStartBell;
     }
 
-    public Bell<?> drain(Slice slice) {
-      return super.drain(slice);
-    }
+    // Makes a GET request for the resource, following redirects.
+    private void fetch(final String path, final int redirects) {
+      session.builder.issue(
+          new HTTPExchange(session.builder.prepareGet(path)) {
+        private String moved;
+
+        protected void response(HttpResponse response) throws Exception {
+          HttpResponseStatus status = response.getStatus();
+          if (HTTPResponseCode.isMoved(status) &&
+              redirects < HTTPBuilder.MAX_REDIRECTS) {
+            moved = redirectPath(response);
+          } else if (HTTPResponseCode.isNotFound(status)) {
+            throw new NotFound();
+          } else if (status.code() / 100 != 2) {
+            throw new HTTPException(path + ": " + status);
+          } else {
+            onStartBell.ring();
+          }
+        }
 
-    public void finish(Throwable t) { super.finish(t); }
+        protected Bell<?> content(ByteBuf content) {
+          // The body of a redirect is not part of the resource.
+          if (moved != null) {
+            return null;
+          }
+          return drain(new Slice(content.retain()));
+        }
 
-    /** 
-     * Tells whether this {@code HTTPTap} instance has acquired
-     * state info.
-     */
-    protected boolean hasStat() {
-      return statBell.isDone();
+        protected void end() {
+          if (moved != null) {
+            setPath(moved);
+            fetch(moved, redirects + 1);
+          } else {
+            finish(null);
+          }
+        }
+
+        protected void fail(Throwable cause) {
+          onStartBell.ring(cause);
+          finish(cause);
+        }
+      });
     }
 
-    /** Sets state info and rings its {@code state Bell}. */
-    protected void setStat(Stat stat) {
-      stat.name = path.name();
-      statBell.ring(stat);
+    public Bell<?> drain(Slice slice) {
+      return super.drain(slice);
     }
 
+    public void finish(Throwable t) { super.finish(t); }
+
     /**
-     * Reconfigures its {@code path}. 
-     * 
+     * Reconfigures its {@code path}.
+     *
      * @param path new {@link Path} instance to be changed to
      */
     protected void setPath(String path) {
@@ -1,31 +1,22 @@
 package stork.module.http;
 
-import java.util.concurrent.*;
-
-import io.netty.channel.*;
-import io.netty.channel.nio.*;
-import io.netty.util.concurrent.*;
-
 import stork.feather.*;
-import stork.feather.util.*;
 
 /**
  * A HTTP download session
  */
 public class HTTPSession extends Session<HTTPSession, HTTPResource> {
 
-  protected EventLoopGroup workGroup;
   protected HTTPBuilder builder;
 
   /**
    * A constructor of {@code HTTPSession} with a domain described
    * by {@link URI}.
-   * 
+   *
    * @param uri A URL with host name
    */
   public HTTPSession(URI uri) {
     super(uri);
-    workGroup = new NioEventLoopGroup();
   }
 
   public HTTPResource select(Path path) {
@@ -35,24 +26,19 @@ public class HTTPSession extends Session<HTTPSession, HTTPResource> {
   }
 
   public Bell<HTTPSession> initialize() {
-    return new Bell<Object> () {{
-      // Initialize the connection
-      builder = new HTTPBuilder(HTTPSession.this);
-      builder.onConnectBell.promise(this);
-
-      // Set up the session close reaction
-      builder.onCloseBell.new Promise() {
+    // Start connecting to the host
+    builder = new HTTPBuilder(this);
+    return builder.onConnectBell.as(this);
+  }
 
-        public void always() {builder.tapBellQueue.clear();}
-      };
-    }}.as(this);
+  // Requests to a host are spread over the connection pool.
+  public int concurrency() {
+    return connections();
   }
 
   public void cleanup() {
-    try {
+    if (builder != null) {
       builder.close();
-    } catch (Exception e) {
-      System.err.println(e.getMessage());
     }
   }
 }
@@ -7,11 +7,12 @@ import org.irods.jargon.core.exception.*;
 import org.irods.jargon.core.pub.*;
 import org.irods.jargon.core.pub.io.*;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+
 import stork.feather.*;
 import stork.feather.util.*;
 
 public class IRODSSession extends Session<IRODSSession,IRODSResource> {
-  IRODSStreams stream;
   IRODSAccount irodsAccount;
   org.irods.jargon.core.connection.IRODSSession irodsSession;
   IRODSFileSystem irodsFileSystem;
@@ -21,6 +22,10 @@ public class IRODSSession extends Session<IRODSSession,IRODSResource> {
   // Per-session thread pool to work around issues with threads in Jargon.
   ExecutorService executor = Executors.newSingleThreadExecutor();
 
+  // Threads for tap streams. Jargon gives each thread its own connection, so
+  // streams on different threads run in parallel.
+  private ExecutorService workers;
+
   public IRODSSession(URI uri, Credential credential) {
     super(uri, credential);
   }
@@ -39,7 +44,6 @@ public class IRODSSession extends Session<IRODSSession,IRODSResource> {
         irodsSession = irodsFileSystem.getIrodsSession();
         irodsFileFactory = irodsFileSystem.getIRODSFileFactory(irodsAccount);
 
-        stream = new IRODSStreams(irodsSession, irodsAccount);
         actualCollection = irodsFileSystem.getIRODSAccessObjectFactory()
           .getCollectionAndDataObjectListAndSearchAO(irodsAccount);
         return IRODSSession.this;
@@ -47,8 +51,18 @@ public class IRODSSession extends Session<IRODSSession,IRODSResource> {
     }.start();
   }
 
-  protected void cleanup() {
+  /** Get the pool tap streams run on, creating it if necessary. */
+  synchronized ExecutorService workers() {
+    if (workers == null)
+      workers = Executors.newCachedThreadPool(
+        new DefaultThreadFactory("iRODS", true));
+    return workers;
+  }
+
+  protected synchronized void cleanup() {
     executor.shutdown();
+    if (workers != null)
+      workers.shutdown();
   }
 
   public IRODSResource select(Path path) {
@@ -1,16 +1,36 @@
 package stork.module.irods;
 
+import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
+import io.netty.buffer.*;
+
 import org.irods.jargon.core.pub.io.*;
+import org.irods.jargon.core.utils.*;
 
 import stork.feather.*;
 import stork.feather.util.*;
 
+/**
+ * Writes a data object on the session's executor, whose thread owns the
+ * connection the object is opened on. Drained slices are queued for a single
+ * writer task rather than each getting a task of its own, and the pipeline is
+ * only held up once {@link #MAX_QUEUED} slices are waiting. A write which
+ * fails after the last slice was drained, or a failure to close the object,
+ * fails the bell returned by {@link #onFinish()}.
+ */
 public class IRODSSink extends Sink<IRODSResource>{
-  IRODSStreams stream = null;
-  IRODSFile destFile = null;
-  ExecutorService executor;
+  // How many slices may be waiting to be written.
+  static final int MAX_QUEUED = 16;
+
+  private final ExecutorService executor;
+  private final Queue<Slice> queue = new ArrayDeque<Slice>();
+  private OutputStream out = null;
+  private Bell room;            // Rung when there is room in the queue.
+  private boolean writing = false, closing = false;
+  private Throwable error;
+  private final Bell<Void> stored = new Bell<Void>();  // Rung once closed.
 
   public IRODSSink(IRODSResource destination) {
     super(destination);
@@ -20,27 +40,101 @@ public class IRODSSink extends Sink<IRODSResource>{
   public Bell start() {
     return new ThreadBell(executor) {
       public Object run() throws Exception {
-        String irodsSource = destination().path.toString();
-        destFile = destination().session.irodsFileFactory.instanceIRODSFile(irodsSource);
-        stream = destination().session.stream;
-        stream.openToWrite(destFile);
+        IRODSSession session = destination().session;
+        String path = destination().path.toString();
+        IRODSFile file = session.irodsFileFactory.instanceIRODSFile(path);
+        if (file.getResource().isEmpty())
+          file.setResource(MiscIRODSUtils
+            .getDefaultIRODSResourceFromAccountIfFileInZone(
+              file.getAbsolutePath(), session.irodsAccount));
+        out = session.irodsFileFactory.instanceIRODSFileOutputStream(file);
         return null;
       }
     }.startOn(destination().initialize());
   }
 
-  public Bell drain(final Slice slice) {
-    return new ThreadBell(executor) {
-      public Object run() throws Exception {
-        stream.streamBytesToFile(slice.asBytes(), slice.length());
-        return null;
+  public synchronized Bell drain(final Slice slice) {
+    if (error != null)
+      return new Bell(error);
+    queue.add(slice.retain());
+    if (!writing) {
+      writing = true;
+      executor.execute(writer);
+    } if (queue.size() < MAX_QUEUED) {
+      return null;
+    } if (room == null) {
+      room = new Bell();
+    } return room;
+  }
+
+  // Writes queued slices until the queue is empty.
+  private final Runnable writer = new Runnable() {
+    public void run() {
+      while (true) {
+        Slice slice;
+        Bell ready = null;
+        synchronized (IRODSSink.this) {
+          slice = queue.poll();
+          if (slice == null) {
+            writing = false;
+            if (closing) close();
+            return;
+          } if (room != null && queue.size() < MAX_QUEUED/2) {
+            ready = room;
+            room = null;
+          }
+        } try {
+          ByteBuf buf = slice.asByteBuf();
+          buf.getBytes(buf.readerIndex(), out, buf.readableBytes());
+        } catch (Exception e) {
+          failed(e);
+        } finally {
+          slice.release();
+        } if (ready != null) {
+          ready.ring();
+        }
       }
-    }.startOn(destination().initialize());
+    }
+  };
+
+  // Stop writing and fail the pipeline.
+  private synchronized void failed(Throwable t) {
+    if (error == null)
+      error = t;
+    if (room != null)
+      room.ring(t);
+    room = null;
+    for (Slice s : queue)
+      s.release();
+    queue.clear();
   }
 
-  protected void finish(Throwable t) {
-    if (stream != null) executor.execute(new Runnable() {
-      public void run() { stream.close(); }
+  protected synchronized void finish(Throwable t) {
+    closing = true;
+    if (!writing) executor.execute(new Runnable() {
+      public void run() { close(); }
     });
   }
+
+  protected Bell onFinish() {
+    return stored;
+  }
+
+  // Close the stream, then report the first error writing or closing it, if
+  // there was one. Only call this on the executor.
+  private void close() {
+    if (out != null) try {
+      out.close();
+    } catch (Exception e) {
+      failed(e);
+    }
+    out = null;
+    Throwable e;
+    synchronized (this) {
+      e = error;
+    } if (e == null)
+      stored.ring();
+    else
+      stored.ring(e);
+  }
 }
@@ -1,41 +1,143 @@
 package stork.module.irods;
 
-import java.util.concurrent.*;
+import java.util.*;
+
+import io.netty.buffer.*;
 
 import org.irods.jargon.core.pub.io.*;
+import static org.irods.jargon.core.pub.io.FileIOOperations.SeekWhenceType.*;
 
 import stork.feather.*;
+import stork.feather.errors.*;
 import stork.feather.util.*;
 
-public class IRODSTap extends Tap <IRODSResource>{
-  ExecutorService executor;
+/**
+ * Reads a data object over the connection of the session's executor. If the
+ * sink can take slices in any order, large objects are instead split into
+ * ranges read in parallel on the session's worker threads, each over its own
+ * connection. Each stream keeps a bounded number of slices in flight instead
+ * of waiting for every slice to drain.
+ */
+public class IRODSTap extends Tap<IRODSResource> {
+  // The most each read asks for.
+  static final int BUFFER_SIZE = 256 * 1024;
+  // How many slices each stream may have in flight.
+  static final int WINDOW = 8;
+  // Objects smaller than this are read with one stream.
+  static final long MIN_PARALLEL = 8 * 1024 * 1024;
+
+  private final IRODSSession session;
+  private volatile boolean stopped = false;
+  private int running;
 
   public IRODSTap(IRODSResource source){
     super(source);
-    executor = source.session.executor;
+    session = source.session;
   }
 
   protected Bell start(final Bell start) {
-    return new ThreadBell(executor) {
-      public Object run() throws Exception {
-        String irodsSource = source().path.toString();
-        IRODSFile sourceFile = source().session.irodsFileFactory.instanceIRODSFile(irodsSource);
-        final IRODSStreams stream = source().session.stream;
+    final String path = source().path.toString();
+    Bell<Long> size = new ThreadBell<Long>(session.executor) {
+      public Long run() throws Exception {
+        IRODSFile file = session.irodsFileFactory.instanceIRODSFile(path);
+        if (!file.exists() || !file.isFile())
+          throw new NotFound();
+        return file.length();
+      }
+    }.startOn(source().initialize());
+    return ((Bell<?>) start).and(size).new Promise() {
+      public void done(Long size) { startStreams(path, size); }
+      public void fail(Throwable t) { finish(t); }
+    };
+  }
 
-        stream.openToRead(sourceFile);
-        start.sync();
+  // Split the object among streams and start them.
+  private synchronized void startStreams(String path, long size) {
+    int n = 1;
+    if (size >= MIN_PARALLEL && session.parallelism() > 1 && random())
+      n = session.parallelism();
+    if (n == 1) {
+      // Read to the end, in case the size has changed. Use the executor's
+      // connection, rather than logging in again for every small object.
+      running = 1;
+      session.executor.execute(new Stream(path, 0, Long.MAX_VALUE, false));
+      return;
+    }
 
-        byte[] buf = stream.streamFileToBytes();
+    long chunk = (size + n - 1) / n;
+    List<Stream> streams = new ArrayList<Stream>();
+    for (long off = 0; off < size; off += chunk)
+      streams.add(new Stream(path, off, Math.min(size, off+chunk), true));
+    running = streams.size();
+    for (Stream s : streams)
+      session.workers().execute(s);
+  }
 
-        while (buf != null) {
-          Slice slice = new Slice(buf);
-          drain(slice).debugOnRing().sync();
-          buf = stream.streamFileToBytes();
-        }
+  // Called when a stream has finished, successfully or not.
+  private synchronized void streamDone(Throwable t) {
+    if (stopped)
+      return;
+    if (t != null) {
+      stopped = true;
+      finish(t);
+    } else if (--running == 0) {
+      finish();
+    }
+  }
+
+  // Reads a range of the object over the connection of the thread it runs on.
+  private class Stream implements Runnable {
+    final String path;
+    final long start, end;
+    final boolean worker;  // Whether this runs on a worker thread.
 
-        finish();
-        return null;
+    Stream(String path, long start, long end, boolean worker) {
+      this.path = path;
+      this.start = start;
+      this.end = end;
+      this.worker = worker;
+    }
+
+    public void run() {
+      IRODSRandomAccessFile file = null;
+      Deque<Bell> window = new ArrayDeque<Bell>();
+      Throwable error = null;
+
+      try {
+        file = session.irodsFileFactory.instanceIRODSRandomAccessFile(path);
+        if (start > 0)
+          file.seek(start, SEEK_START);
+
+        long pos = start;
+        while (pos < end && !stopped) {
+          byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, end-pos)];
+          int len = file.read(buf, 0, buf.length);
+          if (len <= 0)
+            break;
+          ByteBuf data = Unpooled.wrappedBuffer(buf, 0, len);
+          window.add(drain(new Slice(data, pos)));
+          pos += len;
+
+          // Only wait once the window is full.
+          if (window.size() >= WINDOW)
+            window.poll().sync();
+        } while (!window.isEmpty()) {
+          window.poll().sync();
+        }
+      } catch (Throwable t) {
+        error = t;
+      } finally {
+        if (file != null) try {
+          file.close();
+        } catch (Exception e) {
+          // Ignore.
+        }
+        // Connections belong to threads, so don't leave a worker's open.
+        if (worker)
+          session.irodsFileSystem.closeAndEatExceptions(session.irodsAccount);
       }
-    }.startOn(source().initialize());
+
+      streamDone(error);
+    }
   }
 }
@@ -0,0 +1,455 @@
+package stork.module.sftp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import io.netty.buffer.*;
+import io.netty.util.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import stork.feather.*;
+import stork.feather.errors.*;
+
+/**
+ * An asynchronous SFTP (version 3) client running over a pair of streams,
+ * usually those of an SSH "sftp" subsystem channel. Every request returns a
+ * {@code Bell} which rings with the server's response, and any number of
+ * requests may be outstanding at once, so callers can keep several reads or
+ * writes in flight to hide the round trip time.
+ * <p/>
+ * Responses are read by a thread dedicated to the channel, since the streams
+ * are blocking. Requests are written one at a time by tasks on {@code
+ * executor}, so a full window never blocks the caller.
+ */
+public class SFTPChannel {
+  // Packet types.
+  static final int INIT = 1, VERSION = 2, OPEN = 3, CLOSE = 4, READ = 5,
+    WRITE = 6, LSTAT = 7, FSTAT = 8, OPENDIR = 11, READDIR = 12, REMOVE = 13,
+    MKDIR = 14, RMDIR = 15, STAT = 17, STATUS = 101, HANDLE = 102,
+    DATA = 103, NAME = 104, ATTRS = 105;
+
+  // Status codes.
+  static final int OK = 0, EOF = 1, NO_SUCH_FILE = 2, PERMISSION_DENIED = 3;
+
+  // Open flags.
+  static final int READ_FLAG = 1, WRITE_FLAG = 2, CREAT = 8, TRUNC = 0x10;
+
+  // Attribute flags.
+  private static final int SIZE = 1, UIDGID = 2, PERMISSIONS = 4,
+    ACMODTIME = 8, EXTENDED = 0x80000000;
+
+  /** The most data to ask for or send in a single request. */
+  static final int MAX_DATA = 32768;
+
+  // Makes the threads which read responses.
+  private static final ThreadFactory readers =
+    new DefaultThreadFactory("SFTP reader", true);
+
+  private final DataInputStream in;
+  private final OutputStream out;
+  private final Executor executor;
+
+  // Requests awaiting a response, by id.
+  private final Map<Integer,Request> pending =
+    new ConcurrentHashMap<Integer,Request>();
+  private final AtomicInteger ids = new AtomicInteger();
+
+  // Packets waiting to be written, and whether a writer is scheduled.
+  private final Queue<Packet> outgoing = new ConcurrentLinkedQueue<Packet>();
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  private final Bell<SFTPChannel> onInit = new Bell<SFTPChannel>();
+  private final Bell<Void> onClose = new Bell<Void>() {
+    public void always() { failPending(); }
+  };
+
+  /** File attributes from the server. */
+  static class Attrs {
+    long size = -1, mtime = -1;
+    int perm = -1;
+
+    boolean isDir()  { return perm != -1 && (perm & 0170000) == 0040000; }
+    boolean isLink() { return perm != -1 && (perm & 0170000) == 0120000; }
+
+    // Convert to an ls-style permission string.
+    String permString() {
+      if (perm == -1)
+        return null;
+      char[] c = "-rwxrwxrwx".toCharArray();
+      if (isDir()) c[0] = 'd';
+      if (isLink()) c[0] = 'l';
+      for (int i = 0; i < 9; i++)
+        if ((perm & (1 << (8-i))) == 0) c[i+1] = '-';
+      return new String(c);
+    }
+  }
+
+  /** An entry of a directory listing. */
+  static class Entry {
+    final String name;
+    final Attrs attrs;
+    Entry(String name, Attrs attrs) {
+      this.name = name;
+      this.attrs = attrs;
+    }
+  }
+
+  // A request waiting for its response.
+  private abstract class Request<T> extends Bell<T> {
+    final int id = ids.incrementAndGet();
+
+    // Handle a response packet, ringing this bell.
+    abstract void handle(int type, DataInputStream body) throws Exception;
+
+    // Most requests just want a status, and fail if it's not OK.
+    void status(DataInputStream body) throws Exception {
+      int code = body.readInt();
+      if (code == OK)
+        ring();
+      else
+        ring(error(code, readString(body)));
+    }
+  }
+
+  /**
+   * Create a channel using {@code in} and {@code out}, and start the version
+   * handshake.
+   */
+  public SFTPChannel(InputStream in, OutputStream out, Executor executor) {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    this.out = out;
+    this.executor = executor;
+
+    readers.newThread(new Runnable() {
+      public void run() { readLoop(); }
+    }).start();
+
+    send(packet(INIT).putInt(3));
+  }
+
+  /** Get a bell which rings once the server has answered the handshake. */
+  Bell<SFTPChannel> onInit() {
+    return onInit.detach();
+  }
+
+  /** Get a bell which rings once the channel has closed. */
+  Bell<Void> onClose() {
+    return onClose.detach();
+  }
+
+  /** Close the channel, failing outstanding requests. */
+  void close() {
+    onClose.ring();
+    try {
+      out.close();
+    } catch (Exception e) {
+      // Ignore.
+    }
+  }
+
+  /** Get the attributes of a file, following links. */
+  Bell<Attrs> stat(String path) {
+    return issue(new Request<Attrs>() {
+      void handle(int type, DataInputStream body) throws Exception {
+        if (type == ATTRS)
+          ring(readAttrs(body));
+        else
+          status(body);
+      }
+    }, packet(STAT).putString(path));
+  }
+
+  /** Open a file, returning its handle. */
+  Bell<byte[]> open(String path, int flags) {
+    return issue(new HandleRequest(),
+      packet(OPEN).putString(path).putInt(flags).putInt(0));
+  }
+
+  /** Open a directory for listing, returning its handle. */
+  Bell<byte[]> opendir(String path) {
+    return issue(new HandleRequest(), packet(OPENDIR).putString(path));
+  }
+
+  /**
+   * Read up to {@code length} bytes at {@code offset}. The returned bell
+   * rings with {@code null} at the end of the file. The server may return
+   * fewer bytes than were asked for.
+   */
+  Bell<byte[]> read(byte[] handle, long offset, int length) {
+    return issue(new Request<byte[]>() {
+      void handle(int type, DataInputStream body) throws Exception {
+        if (type == DATA) {
+          byte[] data = new byte[body.readInt()];
+          body.readFully(data);
+          ring(data);
+        } else if (type == STATUS && peekStatus(body) == EOF) {
+          ring((byte[]) null);
+        } else {
+          status(body);
+        }
+      }
+    }, packet(READ).putBytes(handle).putLong(offset).putInt(length));
+  }
+
+  /**
+   * Write the readable bytes of {@code data} at {@code offset}. They are
+   * copied into the request before this returns.
+   */
+  Bell<Void> write(byte[] handle, long offset, ByteBuf data) {
+    return issue(new StatusRequest(),
+      packet(WRITE).putBytes(handle).putLong(offset).putBytes(data));
+  }
+
+  /**
+   * Read the next batch of entries from a directory handle. The returned
+   * bell rings with {@code null} once there are no more.
+   */
+  Bell<List<Entry>> readdir(byte[] handle) {
+    return issue(new Request<List<Entry>>() {
+      void handle(int type, DataInputStream body) throws Exception {
+        if (type == NAME) {
+          int n = body.readInt();
+          List<Entry> list = new ArrayList<Entry>(n);
+          for (int i = 0; i < n; i++) {
+            String name = readString(body);
+            readString(body);  // The long name, which we don't need.
+            list.add(new Entry(name, readAttrs(body)));
+          } ring(list);
+        } else if (type == STATUS && peekStatus(body) == EOF) {
+          ring((List<Entry>) null);
+        } else {
+          status(body);
+        }
+      }
+    }, packet(READDIR).putBytes(handle));
+  }
+
+  /** Close a file or directory handle. */
+  Bell<Void> close(byte[] handle) {
+    return issue(new StatusRequest(), packet(CLOSE).putBytes(handle));
+  }
+
+  /** Create a directory. */
+  Bell<Void> mkdir(String path) {
+    return issue(new StatusRequest(), packet(MKDIR).putString(path).putInt(0));
+  }
+
+  /** Remove a file. */
+  Bell<Void> remove(String path) {
+    return issue(new StatusRequest(), packet(REMOVE).putString(path));
+  }
+
+  /** Remove a directory. */
+  Bell<Void> rmdir(String path) {
+    return issue(new StatusRequest(), packet(RMDIR).putString(path));
+  }
+
+  private class StatusRequest extends Request<Void> {
+    void handle(int type, DataInputStream body) throws Exception {
+      status(body);
+    }
+  }
+
+  private class HandleRequest extends Request<byte[]> {
+    void handle(int type, DataInputStream body) throws Exception {
+      if (type != HANDLE) {
+        status(body);
+      } else {
+        byte[] handle = new byte[body.readInt()];
+        body.readFully(handle);
+        ring(handle);
+      }
+    }
+  }
+
+  // Register a request and send its packet, which must have been made with
+  // space for the id.
+  private <T> Bell<T> issue(Request<T> req, Packet p) {
+    if (onClose.isDone())
+      return req.ring(new IOException("SFTP channel is closed."));
+    pending.put(req.id, req);
+    send(p.id(req.id));
+    return req;
+  }
+
+  // Queue a packet to be written, and make sure a writer is scheduled.
+  private void send(Packet p) {
+    outgoing.add(p.seal());
+    if (writing.compareAndSet(false, true))
+      executor.execute(writer);
+  }
+
+  // Writes queued packets, then reschedules itself if more have arrived.
+  private final Runnable writer = new Runnable() {
+    public void run() {
+      try {
+        Packet p;
+        while ((p = outgoing.poll()) != null)
+          p.writeTo(out);
+        out.flush();
+      } catch (Exception e) {
+        closed(e);
+        return;
+      } writing.set(false);
+      if (!outgoing.isEmpty() && writing.compareAndSet(false, true))
+        executor.execute(this);
+    }
+  };
+
+  // Read responses and hand them to their requests until the stream ends.
+  private void readLoop() {
+    try {
+      while (true) {
+        int length = in.readInt();
+        byte[] b = new byte[length];
+        in.readFully(b);
+        DataInputStream body =
+          new DataInputStream(new ByteArrayInputStream(b));
+        int type = body.readUnsignedByte();
+
+        if (type == VERSION) {
+          onInit.ring(this);
+          continue;
+        }
+
+        Request req = pending.remove(body.readInt());
+        if (req != null) try {
+          req.handle(type, body);
+        } catch (Exception e) {
+          req.ring(e);
+        }
+      }
+    } catch (Exception e) {
+      closed(e);
+    }
+  }
+
+  // Called when the streams fail or end.
+  private void closed(Throwable t) {
+    onInit.ring(t);
+    onClose.ring();
+  }
+
+  // Fail everything still waiting for a response.
+  private void failPending() {
+    Exception e = new IOException("SFTP channel was closed.");
+    for (Integer id : pending.keySet()) {
+      Request r = pending.remove(id);
+      if (r != null) r.ring(e);
+    }
+  }
+
+  // Look at a status code without consuming it.
+  private static int peekStatus(DataInputStream body) throws IOException {
+    body.mark(4);
+    int code = body.readInt();
+    body.reset();
+    return code;
+  }
+
+  // Make an exception for a status code.
+  private static Exception error(int code, String message) {
+    switch (code) {
+      case NO_SUCH_FILE:      return new NotFound();
+      case PERMISSION_DENIED: return new PermissionDenied();
+      default: return new IOException("SFTP error "+code+": "+message);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, CharsetUtil.UTF_8);
+  }
+
+  private static Attrs readAttrs(DataInputStream in) throws IOException {
+    Attrs a = new Attrs();
+    int flags = in.readInt();
+    if ((flags & SIZE) != 0)
+      a.size = in.readLong();
+    if ((flags & UIDGID) != 0) {
+      in.readInt();
+      in.readInt();
+    } if ((flags & PERMISSIONS) != 0) {
+      a.perm = in.readInt();
+    } if ((flags & ACMODTIME) != 0) {
+      in.readInt();
+      a.mtime = in.readInt() & 0xffffffffL;
+    } if ((flags & EXTENDED) != 0) {
+      for (int n = in.readInt(); n > 0; n--) {
+        readString(in);
+        readString(in);
+      }
+    }
+    return a;
+  }
+
+  private static Packet packet(int type) {
+    return new Packet(type);
+  }
+
+  // An outgoing packet. The length is filled in at the end, and the request
+  // id, if the packet has one, right after the type.
+  private static class Packet extends ByteArrayOutputStream {
+    private final DataOutputStream data = new DataOutputStream(this);
+    private final boolean hasId;
+
+    Packet(int type) {
+      super(64);
+      hasId = type != INIT;
+      putInt(0).put(type);
+      if (hasId) putInt(0);
+    }
+
+    Packet put(int b) {
+      write(b);
+      return this;
+    } Packet putInt(int i) {
+      try { data.writeInt(i); } catch (IOException e) { }
+      return this;
+    } Packet putLong(long l) {
+      try { data.writeLong(l); } catch (IOException e) { }
+      return this;
+    } Packet putBytes(byte[] b) {
+      putInt(b.length);
+      write(b, 0, b.length);
+      return this;
+    } Packet putBytes(ByteBuf b) {
+      int n = b.readableBytes();
+      putInt(n);
+      ensure(n);
+      b.getBytes(b.readerIndex(), buf, count, n);
+      count += n;
+      return this;
+    } Packet putString(String s) {
+      return putBytes(s.getBytes(CharsetUtil.UTF_8));
+    }
+
+    // Set the request id.
+    Packet id(int id) {
+      setInt(5, id);
+      return this;
+    }
+
+    // Fill in the length, once the packet is complete.
+    Packet seal() {
+      setInt(0, count-4);
+      return this;
+    }
+
+    // Make room for n more bytes.
+    private void ensure(int n) {
+      if (count+n > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(buf.length*2, count+n));
+    }
+
+    private void setInt(int at, int i) {
+      buf[at]   = (byte) (i >>> 24);
+      buf[at+1] = (byte) (i >>> 16);
+      buf[at+2] = (byte) (i >>> 8);
+      buf[at+3] = (byte) i;
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package stork.module.sftp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.feather.errors.*;
+
+class SFTPResource extends Resource<SFTPSession, SFTPResource> {
+  /** How many reads or writes a transfer keeps in flight. */
+  static final int DEPTH = 16;
+
+  public SFTPResource(SFTPSession session, Path path) {
+    super(session, path);
+  }
+
+  public Bell<Stat> stat() {
+    return stat(true);
+  }
+
+  public Bell<Stat> stat(final boolean list) {
+    return initialize().new AsBell<SFTPChannel.Attrs>() {
+      public Bell<SFTPChannel.Attrs> convert(SFTPResource r) {
+        return session.channel.stat(path.toString());
+      }
+    }.new AsBell<Stat>() {
+      public Bell<Stat> convert(SFTPChannel.Attrs attrs) {
+        final Stat stat = attrsToStat(path.name(), attrs);
+        if (!list || stat.file)
+          return Bell.wrap(stat);
+        return readdir(null).new As<Stat>() {
+          public Stat convert(List<Stat> files) {
+            return stat.setFiles(files);
+          }
+        };
+      }
+    };
+  }
+
+  /** Stream the names of the entries of this directory. */
+  public Emitter<String> list() {
+    final Emitter<String> emitter = new Emitter<String>();
+    readdir(emitter).new Promise() {
+      public void done()            { emitter.ring(); }
+      public void fail(Throwable t) { emitter.ring(t); }
+    };
+    return emitter;
+  }
+
+  // Read the directory on a pooled channel. If emitter is not null, names
+  // are emitted to it as they arrive instead of being collected.
+  private Bell<List<Stat>> readdir(final Emitter<String> emitter) {
+    final Bell<SFTPChannel> pooled = initialize().new AsBell<SFTPChannel>() {
+      public Bell<SFTPChannel> convert(SFTPResource r) {
+        return session.acquire();
+      }
+    };
+    return pooled.new AsBell<List<Stat>>() {
+      public Bell<List<Stat>> convert(final SFTPChannel ch) {
+        return ch.opendir(path.toString()).new AsBell<List<Stat>>() {
+          public Bell<List<Stat>> convert(byte[] handle) {
+            return readdir(ch, handle, new LinkedList<Stat>(), emitter);
+          }
+        };
+      } public void always() {
+        session.release(pooled);
+      }
+    };
+  }
+
+  // Keep asking for entries until the server says there are no more.
+  private Bell<List<Stat>> readdir(final SFTPChannel ch, final byte[] handle,
+                                   final List<Stat> files,
+                                   final Emitter<String> emitter) {
+    return ch.readdir(handle).new AsBell<List<Stat>>() {
+      public Bell<List<Stat>> convert(List<SFTPChannel.Entry> entries) {
+        if (entries == null)
+          return ch.close(handle).as(files, files);
+        for (SFTPChannel.Entry e : entries) {
+          if (e.name.equals(".") || e.name.equals(".."))
+            continue;
+          if (emitter != null)
+            emitter.emit(e.name);
+          else
+            files.add(attrsToStat(e.name, e.attrs));
+        } return readdir(ch, handle, files, emitter);
+      }
+    };
+  }
+
+  /** Convert SFTP attrs to Feather stat. */
+  private static Stat attrsToStat(String name, SFTPChannel.Attrs attrs) {
+    Stat stat = new Stat(name);
+    stat.dir  = attrs.isDir();
+    stat.file = !stat.dir;
+    if (attrs.isLink())
+      stat.link = "(unknown)";
+    stat.size = attrs.size;
+    stat.perm = attrs.permString();
+    stat.time = attrs.mtime;
+    return stat;
+  }
+
+  public Bell mkdir() {
+    return initialize().new AsBell<Void>() {
+      public Bell<Void> convert(SFTPResource r) {
+        return session.channel.mkdir(path.toString());
+      }
+    };
+  }
+
+  public Bell delete() {
+    return stat(false).new AsBell<Void>() {
+      public Bell<Void> convert(Stat stat) {
+        if (stat.dir)
+          return session.channel.rmdir(path.toString());
+        return session.channel.remove(path.toString());
+      }
+    };
+  }
+
+  public Tap tap() {
+    return new SFTPTap();
+  }
+
+  public Sink sink() {
+    return new SFTPSink();
+  }
+
+  /**
+   * Reads the file with several requests in flight, so the transfer is not
+   * limited to one block per round trip. Blocks are drained in order, and no
+   * more are requested until the last one has been drained.
+   */
+  private class SFTPTap extends Tap<SFTPResource> {
+    private Bell<SFTPChannel> pooled;
+    private SFTPChannel channel;
+    private byte[] handle;
+    private long offset;  // Where the next read will start.
+    private boolean eof, done;
+    private Bell drained = Bell.rungBell();
+    private final LinkedList<Read> reads = new LinkedList<Read>();
+
+    // A read request which has been sent.
+    private class Read {
+      final long offset;
+      final int length;
+      final Bell<byte[]> bell;
+
+      Read(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+        bell = channel.read(handle, offset, length);
+        bell.new Promise() {
+          public void done()            { pump(); }
+          public void fail(Throwable t) { end(t); }
+        };
+      }
+    }
+
+    SFTPTap() { super(SFTPResource.this); }
+
+    protected Bell start(Bell bell) {
+      Bell<SFTPResource> ready = ((Bell<?>) bell).and(initialize());
+      return ready.new AsBell<SFTPChannel>() {
+        public Bell<SFTPChannel> convert(SFTPResource r) {
+          return pooled = session.acquire();
+        }
+      }.new AsBell<byte[]>() {
+        public Bell<byte[]> convert(SFTPChannel ch) {
+          channel = ch;
+          return channel.open(path.toString(), SFTPChannel.READ_FLAG);
+        }
+      }.new Promise() {
+        public void done(byte[] h) {
+          handle = h;
+          pump();
+        } public void fail(Throwable t) {
+          if (pooled != null)
+            session.release(pooled);
+          finish(t);
+        }
+      };
+    }
+
+    // Drain the reads that have completed in order, then top up the window.
+    private synchronized void pump() {
+      if (done)
+        return;
+
+      // A failed read will end the transfer from its handler.
+      while (!reads.isEmpty() && reads.peek().bell.isSuccessful()) {
+        Read r = reads.poll();
+        byte[] data = r.bell.sync();
+        if (data == null) {
+          // Everything after this is past the end too.
+          eof = true;
+          reads.clear();
+          break;
+        } if (data.length < r.length) {
+          reads.addFirst(new Read(r.offset+data.length, r.length-data.length));
+        } if (data.length > 0) {
+          drained = drain(new Slice(data, r.offset));
+          drained.new Promise() {
+            public void done()            { pump(); }
+            public void fail(Throwable t) { end(t); }
+          };
+        }
+      }
+
+      if (eof && reads.isEmpty())
+        end(null);
+      else if (drained.isDone()) while (!eof && reads.size() < DEPTH) {
+        reads.add(new Read(offset, SFTPChannel.MAX_DATA));
+        offset += SFTPChannel.MAX_DATA;
+      }
+    }
+
+    private synchronized void end(Throwable t) {
+      if (done)
+        return;
+      done = true;
+      reads.clear();
+      channel.close(handle);
+      session.release(pooled);
+      finish(t);
+    }
+  }
+
+  /**
+   * Writes slices at their offsets with several requests in flight, only
+   * holding up the pipeline once too many are unacknowledged. The transfer is
+   * not done until every write has been acknowledged and the file closed.
+   */
+  private class SFTPSink extends Sink<SFTPResource> {
+    private Bell<SFTPChannel> pooled;
+    private SFTPChannel channel;
+    private byte[] handle;
+    private long position;  // Where slices without an offset go.
+    private final LinkedList<Bell<Void>> writes = new LinkedList<Bell<Void>>();
+    private final Bell<Void> stored = new Bell<Void>();
+
+    SFTPSink() { super(SFTPResource.this); }
+
+    protected Bell start() {
+      return initialize().new AsBell<SFTPChannel>() {
+        public Bell<SFTPChannel> convert(SFTPResource r) {
+          return pooled = session.acquire();
+        }
+      }.new AsBell<byte[]>() {
+        public Bell<byte[]> convert(SFTPChannel ch) {
+          channel = ch;
+          return channel.open(path.toString(), SFTPChannel.WRITE_FLAG |
+                              SFTPChannel.CREAT | SFTPChannel.TRUNC);
+        }
+      }.new As<Void>() {
+        public Void convert(byte[] h) {
+          handle = h;
+          return null;
+        }
+      };
+    }
+
+    protected synchronized Bell drain(Slice slice) {
+      ByteBuf data = slice.asByteBuf();
+      int len = data.readableBytes();
+      long off = (slice.offset() >= 0) ? slice.offset() : position;
+      position = off+len;
+
+      // Each request copies its part of the slice, so it can be released.
+      for (int i = 0; i < len; i += SFTPChannel.MAX_DATA) {
+        int n = Math.min(len-i, SFTPChannel.MAX_DATA);
+        writes.add(channel.write(
+          handle, off+i, data.slice(data.readerIndex()+i, n)));
+      }
+
+      // Forget acknowledged writes, stopping if one failed.
+      while (!writes.isEmpty() && writes.peek().isDone()) {
+        Bell<Void> w = writes.poll();
+        if (w.isFailed())
+          return w;
+      }
+
+      if (writes.size() < DEPTH)
+        return null;
+      return writes.get(writes.size()-DEPTH);
+    }
+
+    public boolean random() {
+      return true;
+    }
+
+    protected synchronized void finish(Throwable t) {
+      if (handle == null) {
+        if (pooled != null)
+          session.release(pooled);
+        stored.ring(t != null ? t : new IllegalStateException(
+          "File was never opened."));
+        return;
+      }
+      final byte[] h = handle;
+      settle(new ArrayList<Bell<Void>>(writes).iterator(), t)
+      .new AsBell<Void>() {
+        public Bell<Void> convert(Void v) {
+          return channel.close(h);
+        } public Bell<Void> convert(Throwable e) {
+          channel.close(h);
+          return Bell.wrap(e);
+        }
+      }.new Promise() {
+        public void always() { session.release(pooled); }
+      }.promise(stored);
+      writes.clear();
+    }
+
+    // Wait for every write in turn, not just the first to finish, and fail
+    // with the first error, if there was one.
+    private Bell<Void> settle(final Iterator<Bell<Void>> it,
+                              final Throwable error) {
+      if (!it.hasNext())
+        return (error == null) ? Bell.<Void>rungBell() : Bell.<Void>wrap(error);
+      Bell<Void> next = it.next();
+      return next.new AsBell<Void>() {
+        public Bell<Void> convert(Void v) {
+          return settle(it, error);
+        } public Bell<Void> convert(Throwable e) {
+          return settle(it, (error != null) ? error : e);
+        }
+      };
+    }
+
+    protected Bell onFinish() {
+      return stored;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package stork.module.sftp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.jcraft.jsch.*;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import stork.cred.*;
+import stork.feather.*;
+import stork.feather.Session;
+import stork.feather.util.*;
+
+/**
+ * A session with an SFTP server, made of a pool of SFTP channels over one SSH
+ * connection.
+ */
+public class SFTPSession extends Session<SFTPSession, SFTPResource> {
+  /**
+   * Shared by all sessions for connecting, which blocks, and for writing
+   * requests to channels. Responses are read by each channel's own thread.
+   */
+  static final Executor executor =
+    Executors.newFixedThreadPool(8, new DefaultThreadFactory("SFTP", true));
+
+  // The number of files which may be transferred at once on a channel.
+  static final int FILES_PER_CHANNEL = 2;
+
+  transient com.jcraft.jsch.Session jsch;
+  transient SFTPChannel channel;  // The first channel, used for metadata.
+
+  // SFTP channels over the SSH connection, starting with the main channel.
+  private final List<Pooled> pool = new ArrayList<Pooled>();
+  private Pooled main;  // The main channel's entry in the pool.
+
+  // A channel in the pool, and the number of transfers using it.
+  private class Pooled {
+    Bell<SFTPChannel> channel;
+    int transfers = 0;
+    boolean dead = false;  // Whether the channel should no longer be used.
+
+    Pooled(Bell<SFTPChannel> channel) {
+      this.channel = channel;
+    }
+  }
+
+  /** Create an SFTPSession. */
+  public SFTPSession(URI uri, Credential credential) {
+    super(uri, credential);
+  }
+
+  /** Get an SFTPResource. */
+  public SFTPResource select(Path path) {
+    return new SFTPResource(this, path);
+  }
+
+  /** Connect to the remote server. */
+  public Bell<SFTPSession> initialize() {
+    Bell<SFTPChannel> bell = new ThreadBell<SFTPChannel>(executor) {
+      public SFTPChannel run() throws Exception {
+        return connect();
+      }
+    }.start().new AsBell<SFTPChannel>() {
+      public Bell<SFTPChannel> convert(SFTPChannel ch) {
+        channel = ch;
+        closeWhen(ch.onClose());
+        return ch.onInit();
+      }
+    };
+    synchronized (this) {
+      pool.add(main = new Pooled(bell));
+    } return bell.as(this);
+  }
+
+  /**
+   * Open an SSH connection and start the SFTP subsystem on it. This blocks,
+   * and is run on {@link #executor}.
+   */
+  protected SFTPChannel connect() throws Exception {
+    String host = uri.host();
+    int port = (uri.port() > 0) ? uri.port() : 22;
+    if (host == null)
+      throw new RuntimeException("No hostname provided.");
+
+    String[] ui = null;
+
+    if (credential == null)
+      ui = uri.userPass();
+    else if (credential instanceof StorkUserinfo)
+      ui = ((StorkUserinfo) credential).data();
+    if (ui == null || ui.length != 2)
+      throw new RuntimeException("Invalid credential.");
+
+    // Configure JSch to use a real kex algo.
+    Properties conf = new Properties();
+    conf.put("kex",
+      "diffie-hellman-group1-sha1,diffie-hellman-group14-sha1,"+
+      "diffie-hellman-group-exchange-sha1,"+
+      "diffie-hellman-group-exchange-sha256");
+    conf.put("StrictHostKeyChecking", "no");
+
+    jsch = new JSch().getSession(ui[0], host, port);
+    jsch.setPassword(ui[1]);
+    jsch.setConfig(conf);
+    jsch.connect(3000);
+
+    return openChannel();
+  }
+
+  /**
+   * Start another SFTP subsystem over the SSH connection. JSch only carries
+   * the bytes, the protocol is spoken by {@code SFTPChannel}. This blocks,
+   * and is run on {@link #executor}.
+   */
+  protected SFTPChannel openChannel() throws Exception {
+    ChannelSubsystem sub = (ChannelSubsystem) jsch.openChannel("subsystem");
+    sub.setSubsystem("sftp");
+    InputStream in = sub.getInputStream();
+    OutputStream out = sub.getOutputStream();
+    sub.connect();
+    return new SFTPChannel(in, out, executor);
+  }
+
+  /**
+   * Get a channel to run a transfer or listing on. If every channel in the
+   * pool is busy and there are fewer than {@link #connections()} of them, a
+   * new one is opened over the existing SSH connection. Otherwise, the least
+   * busy channel is used. If no channel in the pool can be used at all, a new
+   * one is opened. Each call should be matched with a call to {@link
+   * #release(Bell)}.
+   *
+   * @return A {@code Bell} which rings with the channel to use.
+   */
+  synchronized Bell<SFTPChannel> acquire() {
+    Pooled best = null;
+    int live = 0;
+    for (Pooled p : pool) if (!p.dead) {
+      live++;
+      if (best == null || p.transfers < best.transfers)
+        best = p;
+    } if (best == null || best.transfers > 0 && live < connections())
+      best = open();
+    best.transfers++;
+    return best.channel;
+  }
+
+  /**
+   * Release a channel obtained from {@link #acquire()}.
+   *
+   * @param channel the {@code Bell} returned by {@code acquire()}.
+   */
+  synchronized void release(Bell<SFTPChannel> channel) {
+    for (Pooled p : pool) if (p.channel == channel) {
+      if (--p.transfers <= 0 && p.dead)
+        pool.remove(p);
+      return;
+    }
+  }
+
+  // Open an additional channel for the pool. If it cannot be opened,
+  // transfers waiting on it fall back to the main channel.
+  private Pooled open() {
+    final Bell<SFTPChannel> bell = new ThreadBell<SFTPChannel>(executor) {
+      public SFTPChannel run() throws Exception {
+        return openChannel();
+      }
+    }.start();
+    final Bell<SFTPChannel> ready = bell.new AsBell<SFTPChannel>() {
+      public Bell<SFTPChannel> convert(SFTPChannel ch) {
+        return ch.onInit();
+      }
+    };
+    final Pooled p = new Pooled(ready.new AsBell<SFTPChannel>() {
+      public Bell<SFTPChannel> convert(SFTPChannel ch) {
+        return ready;
+      } public Bell<SFTPChannel> convert(Throwable t) {
+        return fallback(t);
+      }
+    });
+    pool.add(p);
+    bell.new Promise() {
+      public void done(final SFTPChannel ch) {
+        ch.onInit().new Promise() {
+          public void fail(Throwable t) { ch.close(); }
+        };
+        ch.onClose().new Promise() {
+          public void always() { discard(p); }
+        };
+      } public void fail(Throwable t) {
+        discard(p);
+      }
+    };
+    return p;
+  }
+
+  // The channel to use instead of one which could not be opened.
+  private synchronized Bell<SFTPChannel> fallback(Throwable t) {
+    if (main == null || main.dead)
+      return new Bell<SFTPChannel>(t);
+    return main.channel;
+  }
+
+  // Stop handing out a channel, and drop it once nothing is using it.
+  private synchronized void discard(Pooled p) {
+    p.dead = true;
+    if (p.transfers <= 0)
+      pool.remove(p);
+  }
+
+  // Requests on a channel are pipelined, so a couple of files can share one
+  // without waiting on each other.
+  public int concurrency() {
+    return connections() * FILES_PER_CHANNEL;
+  }
+
+  protected void cleanup() {
+    for (Pooled p : new ArrayList<Pooled>(pool)) p.channel.new Promise() {
+      public void done(SFTPChannel ch) { ch.close(); }
+    };
+    if (channel != null)
+      channel.close();
+    if (jsch != null)
+      jsch.disconnect();
+    channel = null;
+    jsch = null;
+  }
+}
@@ -0,0 +1,146 @@
+package stork.module.smtp;
+
+import io.netty.buffer.*;
+import io.netty.channel.*;
+
+/**
+ * Encodes outgoing data as MIME Base64 between a {@link #BEGIN} and an
+ * {@link #END} marker written through the channel, and passes everything
+ * else through untouched. Since the markers travel with the data, switching
+ * encoding on and off is ordered exactly with the surrounding writes.
+ * <p/>
+ * Buffers may be of any length. Up to two bytes which do not fill a group
+ * are carried over to the next buffer, and lines are broken every 76
+ * characters regardless of where buffers begin, so the output is the same
+ * as encoding the whole attachment at once. Each buffer is encoded in one
+ * pass, array to array, into an output buffer of exactly the right size.
+ */
+public class SMTPBase64Encoder extends ChannelHandlerAdapter {
+  /** Write this to start encoding. */
+  public static final Object BEGIN = new Object() {
+    public String toString() { return "BEGIN"; }
+  };
+
+  /** Write this to pad and terminate the encoded data. */
+  public static final Object END = new Object() {
+    public String toString() { return "END"; }
+  };
+
+  private static final int LINE_LENGTH = 76;
+  private static final byte[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+    .getBytes();
+
+  private boolean encoding = false;
+  private final byte[] carry = new byte[2];
+  private int carried = 0;  // Bytes waiting for a full group.
+  private int column = 0;   // Characters on the current output line.
+  private byte[] scratch = new byte[0];  // For buffers without an array.
+
+  public void write(ChannelHandlerContext ctx, Object msg,
+                    ChannelPromise promise) throws Exception {
+    if (msg == BEGIN) {
+      encoding = true;
+      carried = column = 0;
+      promise.setSuccess();
+    } else if (msg == END) {
+      ctx.write(encoding ? end(ctx.alloc()) : Unpooled.EMPTY_BUFFER, promise);
+      encoding = false;
+    } else if (encoding && msg instanceof ByteBuf) {
+      ByteBuf in = (ByteBuf) msg;
+      try {
+        ctx.write(encode(in, ctx.alloc()), promise);
+      } finally {
+        in.release();
+      }
+    } else {
+      ctx.write(msg, promise);
+    }
+  }
+
+  // Encode as many whole groups as possible, carrying the rest over.
+  private ByteBuf encode(ByteBuf in, ByteBufAllocator alloc) {
+    int len = in.readableBytes();
+    int groups = (carried + len) / 3;
+    int size = encodedLength(groups);
+    ByteBuf out = alloc.heapBuffer(size);
+    byte[] dst = out.array();
+    int o = out.arrayOffset() + out.writerIndex();
+
+    // Read straight from the backing array if there is one.
+    byte[] src;
+    int i;
+    if (in.hasArray()) {
+      src = in.array();
+      i = in.arrayOffset() + in.readerIndex();
+    } else {
+      if (scratch.length < len)
+        scratch = new byte[Math.max(len, 2*scratch.length)];
+      in.getBytes(in.readerIndex(), scratch, 0, len);
+      src = scratch;
+      i = 0;
+    }
+    int end = i + len;
+
+    for (int g = 0; g < groups; g++) {
+      int b0, b1, b2;
+      if (carried == 2) {
+        b0 = carry[0]; b1 = carry[1]; b2 = src[i++];
+        carried = 0;
+      } else if (carried == 1) {
+        b0 = carry[0]; b1 = src[i++]; b2 = src[i++];
+        carried = 0;
+      } else {
+        b0 = src[i++]; b1 = src[i++]; b2 = src[i++];
+      }
+      o = group(dst, o, b0, b1, b2, 4);
+    }
+
+    while (i < end)
+      carry[carried++] = src[i++];
+    out.writerIndex(out.writerIndex() + size);
+    return out;
+  }
+
+  // Encode the carried bytes with padding, and end the last line.
+  private ByteBuf end(ByteBufAllocator alloc) {
+    byte[] dst = new byte[8];
+    int o = 0;
+    if (carried == 1)
+      o = group(dst, o, carry[0], 0, 0, 2);
+    else if (carried == 2)
+      o = group(dst, o, carry[0], carry[1], 0, 3);
+    carried = 0;
+    if (column > 0) {
+      dst[o++] = '\r';
+      dst[o++] = '\n';
+    }
+    column = 0;
+    return alloc.buffer(o).writeBytes(dst, 0, o);
+  }
+
+  // Write a group of up to three bytes as chars characters plus padding at o,
+  // breaking the line first if it is full. Returns the new offset.
+  private int group(byte[] dst, int o, int b0, int b1, int b2, int chars) {
+    int v = (b0 & 0xff) << 16 | (b1 & 0xff) << 8 | (b2 & 0xff);
+    if (column == LINE_LENGTH) {
+      dst[o++] = '\r';
+      dst[o++] = '\n';
+      column = 0;
+    }
+    dst[o++] = ALPHABET[v >>> 18 & 0x3f];
+    dst[o++] = ALPHABET[v >>> 12 & 0x3f];
+    dst[o++] = chars > 2 ? ALPHABET[v >>> 6 & 0x3f] : (byte) '=';
+    dst[o++] = chars > 3 ? ALPHABET[v & 0x3f] : (byte) '=';
+    column += 4;
+    return o;
+  }
+
+  // The output size of the next groups, including line breaks.
+  private int encodedLength(int groups) {
+    if (groups == 0)
+      return 0;
+    int chars = groups * 4;
+    return chars + 2 * ((column + chars - 1) / LINE_LENGTH);
+  }
+}
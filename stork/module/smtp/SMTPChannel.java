@@ -1,38 +1,62 @@
 package stork.module.smtp;
 
 import stork.feather.*;
+import stork.feather.util.*;
+
 import io.netty.bootstrap.*;
 import io.netty.channel.*;
-import io.netty.channel.nio.*;
 import io.netty.buffer.*;
-import io.netty.channel.socket.nio.*;
 import io.netty.channel.socket.*;
 import io.netty.handler.codec.*;
-import io.netty.handler.codec.base64.*;
 import io.netty.util.*;
 
 import java.util.*;
 
+/**
+ * A connection to an SMTP server. Commands and data are written in the order
+ * they are sent, each after the replies to the commands before it. Data sent
+ * between {@link #enableBase64()} and {@link #disableBase64()} is encoded as
+ * it is written, and {@link #send(ByteBuf)} holds off the sender while the
+ * channel is congested.
+ */
 public class SMTPChannel {
+  static final String DEFAULT_HOST = "localhost";
+  static final int DEFAULT_PORT = 12345;
+
   LinkedList<Bell<String>> replies = new LinkedList<Bell<String>>();
   Bell bell;
-  EventLoopGroup workerGroup = new NioEventLoopGroup();
   ChannelFuture channelFuture;
 
+  private Bell order = Bell.rungBell();  // Rings when the last write is issued.
+  private Bell writeBell;  // Ring when we can write again.
+
   SMTPChannel(final Bell bell) {
+    this(null, -1, bell);
+  }
+
+  SMTPChannel(String host, int port, final Bell bell) {
+    // The server speaks first.
+    replies.add(new Bell<String>());
+
+    Transport t = Transport.getDefault();
     Bootstrap b = new Bootstrap();
-    b.group(workerGroup);
-    b.channel(NioSocketChannel.class);
+    b.group(t.group());
+    b.channel(t.socketChannel());
     b.option(ChannelOption.SO_KEEPALIVE, true);
     b.handler(new ChannelInitializer<SocketChannel>() {
       public void initChannel(SocketChannel ch) throws Exception {
-        ch.pipeline().addLast(new LineBasedFrameDecoder(1000) {
+        ch.pipeline().addLast(new LineBasedFrameDecoder(1000));
+        ch.pipeline().addLast(new ChannelHandlerAdapter() {
           public void channelRead(ChannelHandlerContext ctx, Object msg) {
             String str = ((ByteBuf)msg).toString(CharsetUtil.UTF_8);
-            if (!replies.isEmpty())
-              replies.pop().ring(str);
+            ((ByteBuf)msg).release();
+            reply(str);
+          } public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            writable(ctx.channel().isWritable());
+            ctx.fireChannelWritabilityChanged();
           }
         });
+        ch.pipeline().addLast(new SMTPBase64Encoder());
         bell.ring();
       }
       public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
@@ -40,76 +64,97 @@ public class SMTPChannel {
       }
     });
     //channelFuture = b.connect("smtp.buffalo.edu",25);
-    channelFuture = b.connect("localhost",12345);
+    channelFuture = b.connect(
+      (host != null) ? host : DEFAULT_HOST,
+      (port > 0) ? port : DEFAULT_PORT);
     this.bell = bell;
   }
 
-  public void enableBase64() {
+  // Ring the oldest reply bell once its final line is in. Error replies fail
+  // the bell, and so anything waiting on it.
+  private synchronized void reply(String str) {
+    if (str.length() > 3 && str.charAt(3) == '-')
+      return;
+    if (replies.isEmpty())
+      return;
+    Bell<String> reply = replies.pop();
+    if (str.startsWith("4") || str.startsWith("5"))
+      reply.ring(new RuntimeException(str));
+    else
+      reply.ring(str);
+  }
+
+  /** Called to change writability. */
+  private synchronized void writable(boolean writable) {
+    if (!writable && writeBell == null) {
+      writeBell = new Bell();
+    } else if (writable && writeBell != null) {
+      writeBell.ring();
+      writeBell = null;
+    }
+  }
+
+  // A bell which rings when the channel can take more writes.
+  private synchronized Bell writable() {
+    if (channelFuture.channel().isWritable())
+      return Bell.rungBell();
+    writable(false);
+    return writeBell;
+  }
+
+  // Write msg after the last write and the last expected reply.
+  private synchronized Bell write(final Object msg) {
     Bell last = replies.peekLast();
     if (last == null)
       last = Bell.rungBell();
-    last.new Promise() {
+    final Bell issued = new Bell();
+    order.and(last).new Promise() {
       public void done() {
-        channelFuture.channel().pipeline().addLast("Base64Encoder", new Base64Encoder());
+        channelFuture.channel().writeAndFlush(msg);
+        issued.ring();
+      } public void fail(Throwable t) {
+        ReferenceCountUtil.release(msg);
+        issued.ring(t);
       }
     };
+    return order = issued;
+  }
+
+  /** Start encoding data as Base64. */
+  public void enableBase64() {
+    write(SMTPBase64Encoder.BEGIN);
   }
 
+  /** Pad and terminate the encoded data, and stop encoding. */
   public void disableBase64() {
-    Bell last = replies.peekLast();
-    if (last == null)
-      last = Bell.rungBell();
-    last.new Promise() {
-      public void done() {
-        channelFuture.channel().pipeline().remove("Base64Encoder");
-      }
-    };
+    write(SMTPBase64Encoder.END);
   }
 
   public synchronized Bell<String> sendCommand(final String command) {
     Bell<String> bell = new Bell<String>();
-    Bell last = replies.peekLast();
-
+    write(Unpooled.wrappedBuffer((command+"\r\n").getBytes()));
     replies.add(bell);
-
-    if (last == null)
-      last = Bell.rungBell();
-
-    last.new Promise() {
-      public void done() {
-        byte[] bytes = (command+"\r\n").getBytes();
-        channelFuture.channel().writeAndFlush(Unpooled.wrappedBuffer(bytes));
-      }
-    };
-
     return bell;
   }
 
   public synchronized Bell send(final String line) {
-    Bell last = replies.peekLast();
-
-    if (last == null)
-      last = Bell.rungBell();
-
-    return last.new Promise() {
-      public void done() {
-        byte[] bytes = (line+"\r\n").getBytes();
-        channelFuture.channel().writeAndFlush(Unpooled.wrappedBuffer(bytes));
-      }
-    };
+    return write(Unpooled.wrappedBuffer((line+"\r\n").getBytes()));
   }
 
+  /**
+   * Send a buffer, taking ownership of it. The returned bell rings when the
+   * buffer has been written and the channel can take more.
+   */
   public synchronized Bell send(final ByteBuf bytebuf) {
-    Bell last = replies.peekLast();
-
-    if (last == null)
-      last = Bell.rungBell();
-
-    return last.new Promise() {
+    final Bell ready = new Bell();
+    write(bytebuf).new Promise() {
       public void done() {
-        channelFuture.channel().writeAndFlush(bytebuf);
+        writable().promise(ready);
+      } public void fail(Throwable t) {
+        ready.ring(t);
       }
     };
+    return ready;
   }
 
   public Bell getBell() {
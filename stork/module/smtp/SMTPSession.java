@@ -14,16 +14,17 @@ public class SMTPSession extends Session<SMTPSession,SMTPResource> {
   }
 
   protected void cleanup() {
-    channel.close();
+    if (channel != null)
+      channel.close();
   }
 
   protected Bell<SMTPSession> initialize() {
     Bell bell = new Bell();
-    channel = new SMTPChannel(bell);
+    channel = new SMTPChannel(uri.host(), uri.port(), bell);
     channel.sendCommand("HELO buffalo.edu");
     channel.sendCommand("MAIL FROM:<jerryant@buffalo.edu>");
     channel.sendCommand("RCPT TO:<jerryant@buffalo.edu>");
-    channel.sendCommand("DATA");
+    Bell data = channel.sendCommand("DATA");
     channel.send("Subject:-Delivery from Stork-");
     channel.send("MIME-Version: 1.0");
     channel.send("Content-Type: multipart/mixed; boundary=separate");
@@ -31,7 +32,8 @@ public class SMTPSession extends Session<SMTPSession,SMTPResource> {
     channel.send("--separate");
     channel.send("Content-Type: text/html");
     channel.send("Delivery from Stork");
-    return bell.as(this);
+    // Don't let the sink start until the server is taking the message.
+    return bell.and(data).as(this);
   }
 
   public SMTPResource select(Path path) {
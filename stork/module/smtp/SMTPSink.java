@@ -2,14 +2,17 @@ package stork.module.smtp;
 
 import stork.feather.*;
 import stork.feather.util.*;
-import io.netty.buffer.*;
 
+import io.netty.buffer.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
 
-public class SMTPSink extends Sink<SMTPResource>{ 
-
+/**
+ * Sends data as a Base64 attachment. The channel encodes slices as they are
+ * written, and draining waits whenever the channel is congested.
+ */
+public class SMTPSink extends Sink<SMTPResource>{
   SMTPSink(SMTPResource resource) {
     super(resource);
   }
@@ -34,13 +37,19 @@ public class SMTPSink extends Sink<SMTPResource>{
 
   //drain message body
   protected Bell drain(final Slice slice) {
-    channel().send(slice.asByteBuf());
-    return null;
+    return channel().send(slice.asByteBuf().retain());
   }
 
-  //footers
+  //footers, then end the message. On failure, hang up without ending the
+  //message so the server discards it.
   protected void finish(Throwable t) {
+    if (t != null) {
+      channel().close();
+      return;
+    }
     channel().disableBase64();
-    channel().send("\n--separate--");
+    channel().send("--separate--");
+    channel().sendCommand(".");
+    channel().sendCommand("QUIT");
   }
 }
@@ -39,4 +39,16 @@ public class Optimizer {
   public String name() {
     return "none";
   }
+
+  // Create an optimizer given its name. Returns null if the name is null or
+  // "none", and throws if there is no optimizer with the given name.
+  public static Optimizer byName(String name) {
+    if (name == null || name.equals("none"))
+      return null;
+    if (name.equals("full_2nd"))
+      return new Full2ndOptimizer();
+    if (name.equals("full_c"))
+      return new FullCOptimizer();
+    throw new RuntimeException("Unknown optimizer: "+name);
+  }
 } 
@@ -0,0 +1,149 @@
+package stork.optimizers;
+
+import stork.ad.*;
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.util.*;
+
+/**
+ * Drives an {@code Optimizer} using samples taken from a live {@code
+ * Transfer}. Each sample the optimizer asks for is run as a window over the
+ * ongoing transfer: the requested parallelism is applied to the endpoint
+ * sessions, and once the requested number of bytes has passed, the measured
+ * throughput is reported back to the optimizer. When the optimizer is done
+ * sampling, its final parameters are applied for the rest of the transfer.
+ * <p/>
+ * Parallelism is a property of sessions, so a new value only takes effect on
+ * data channels opened after it is applied. A window therefore starts when
+ * the next file starts, rather than when the value is applied. For the same
+ * reason, transfers of a single file are not tuned at all.
+ */
+public class Tuner {
+  /** How often, in seconds, the transfer is checked during a window. */
+  public static final double INTERVAL = .25;
+
+  private final Optimizer optimizer;
+  private final Transfer transfer;
+
+  private int parallelism;
+  private long start;      // Bytes done when the window started.
+  private long target;     // Bytes to transfer in the current window.
+  private Time timer;      // Time since the window started.
+
+  /**
+   * Create a {@code Tuner} which runs {@code optimizer} on {@code transfer}.
+   *
+   * @param optimizer the {@code Optimizer} choosing the parameters.
+   * @param transfer the {@code Transfer} to sample.
+   */
+  public Tuner(Optimizer optimizer, Transfer transfer) {
+    this.optimizer = optimizer;
+    this.transfer = transfer;
+  }
+
+  /**
+   * Initialize the optimizer and start sampling once the transfer starts.
+   *
+   * @param range the range of parallelism values to consider.
+   * @return This {@code Tuner}.
+   */
+  public Tuner start(final Range range) {
+    Bell<Stat> stat = transfer.source().stat();
+    stat.new Promise() {
+      public void done(Stat stat) {
+        if (stat.file) {
+          Log.fine("Not tuning a single-file transfer.");
+          return;
+        }
+        optimizer.initialize(stat.size(), range);
+        begin();
+      } public void fail(Throwable t) {
+        optimizer.initialize(-1, range);
+        begin();
+      }
+    };
+    return this;
+  }
+
+  // Start sampling once the transfer starts.
+  private void begin() {
+    transfer.onStart().new Promise() {
+      public void done() { next(); }
+    };
+  }
+
+  /**
+   * Called whenever new parameters are applied to the transfer. Subclasses
+   * may override this to record them.
+   *
+   * @param parallelism the parallelism now in use.
+   * @param sampling whether the parameters are for a sample, rather than the
+   * optimizer's final choice.
+   */
+  protected void tuned(int parallelism, boolean sampling) { }
+
+  // Ask the optimizer for the next sample and start a window for it.
+  private synchronized void next() {
+    if (transfer.isDone())
+      return;
+
+    Ad ad = optimizer.sample();
+    long size = (ad == null) ? -1 : ad.getLong("size", -1);
+    boolean changed = ad != null && ad.has("parallelism");
+
+    if (changed)
+      apply(ad.getInt("parallelism"));
+
+    if (size <= 0) {
+      Log.fine(optimizer.name(), " optimizer finished with parallelism ",
+               parallelism);
+    } else {
+      // Files already running keep their old data channels, so measure from
+      // the next one.
+      target = size;
+      transfer.onNextResource().new Promise() {
+        public void done() { window(); }
+      };
+    }
+
+    if (changed)
+      tuned(parallelism, size > 0);
+  }
+
+  // Start measuring the current sample.
+  private synchronized void window() {
+    if (transfer.isDone())
+      return;
+    start = transfer.info.done;
+    timer = new Time();
+    check();
+  }
+
+  // Set the parallelism on both ends of the transfer.
+  private void apply(int p) {
+    parallelism = p;
+    transfer.source().session.parallelism(p);
+    transfer.destination().session.parallelism(p);
+  }
+
+  // Check if the window is complete, and report it if so.
+  private synchronized void check() {
+    if (transfer.isDone())
+      return;
+
+    long bytes = transfer.info.done-start;
+    if (bytes < target) {
+      Bell.timerBell(INTERVAL).new Promise() {
+        public void done() { check(); }
+      };
+      return;
+    }
+
+    double time = timer.elapsed()/1000.0;
+    Ad ad = new Ad("parallelism", parallelism).put("size", bytes);
+    if (time > 0)
+      ad.put("throughput", bytes/time);
+    optimizer.report(ad);
+    next();
+  }
+}
@@ -0,0 +1,229 @@
+package stork.scheduler;
+
+import java.util.*;
+
+import stork.core.*;
+
+/**
+ * A scheduler which shares job slots fairly between users. Each user has a
+ * queue of jobs ordered by priority, then by arrival, and users are served by
+ * weighted fair queuing: each job started advances its owner's virtual time
+ * by the inverse of the owner's weight, and the user with the least virtual
+ * time goes next. A user who submits many jobs at once only ever competes
+ * with one job at a time.
+ * <p/>
+ * A user's jobs are also grouped by {@link Job#group()}, that is by the
+ * sessions they could lease: source and destination endpoint, credential and
+ * transfer settings. After one job in a group starts, the rest of the group
+ * goes next unless the user has a job of higher priority elsewhere, so the
+ * jobs run back-to-back on the sessions the first one warmed up.
+ * <p/>
+ * If {@code max_endpoint_jobs} is set, jobs whose source or destination
+ * endpoint is already that busy are set aside until a job on that endpoint
+ * terminates, so they don't hold up jobs on other endpoints.
+ * <p/>
+ * Users, groups and jobs are kept in heaps or trees, so scheduling a job is
+ * O(log n).
+ */
+public class FairScheduler extends Scheduler {
+  private final PriorityQueue<UserQueue> users = new PriorityQueue<UserQueue>();
+  private final Map<String,UserQueue> queues = new HashMap<String,UserQueue>();
+  private final Map<String,Integer> busy = new HashMap<String,Integer>();
+  private final Map<String,List<Entry>> parked =
+    new HashMap<String,List<Entry>>();
+  private double time;  // Virtual time of the last job started.
+  private long arrivals;
+  private int running;
+  private final Config config;
+
+  /** Create a fair scheduler using the global configuration. */
+  public FairScheduler() {
+    this(Config.global);
+  }
+
+  /** Create a fair scheduler using {@code config}. */
+  public FairScheduler(Config config) {
+    this.config = config;
+  }
+
+  // A job waiting in a user's queue.
+  private class Entry implements Comparable<Entry> {
+    final Job job;
+    final int priority;
+    final long arrival = arrivals++;
+    final UserQueue owner;
+    final Object group;
+
+    Entry(Job job, UserQueue owner) {
+      this.job = job;
+      this.owner = owner;
+      priority = job.priority();
+      group = job.group();
+    }
+
+    public int compareTo(Entry e) {
+      if (priority != e.priority)
+        return (priority > e.priority) ? -1 : 1;
+      return Long.compare(arrival, e.arrival);
+    }
+  }
+
+  // A user's jobs which can share sessions, ordered by their best job.
+  private static class Group implements Comparable<Group> {
+    final Object key;
+    final PriorityQueue<Entry> jobs = new PriorityQueue<Entry>();
+
+    Group(Object key) { this.key = key; }
+
+    public int compareTo(Group g) {
+      return jobs.peek().compareTo(g.jobs.peek());
+    }
+  }
+
+  // The jobs of one user waiting to run.
+  private class UserQueue implements Comparable<UserQueue> {
+    final String user;
+    final Map<Object,Group> groups = new HashMap<Object,Group>();
+    final TreeSet<Group> heads = new TreeSet<Group>();
+    Object last;  // The group of the last job started.
+    double time;  // Virtual time this user's next job will start at.
+    long turn;    // Breaks ties in the order users became ready.
+    boolean ready;  // Whether this is in the users heap.
+
+    UserQueue(String user) { this.user = user; }
+
+    double weight() {
+      Double w = (config.user_weights == null) ?
+        null : config.user_weights.get(user);
+      return (w == null || w <= 0) ? 1 : w;
+    }
+
+    void add(Entry e) {
+      Group g = groups.get(e.group);
+      if (g == null)
+        groups.put(e.group, g = new Group(e.group));
+      else
+        heads.remove(g);
+      g.jobs.add(e);
+      heads.add(g);
+    }
+
+    // Take the best job, preferring the group of the last job started while
+    // it has jobs of the best priority, so its sessions are still warm.
+    Entry poll() {
+      Group g = heads.first();
+      Group warm = (last != null) ? groups.get(last) : null;
+      if (warm != null && warm.jobs.peek().priority >= g.jobs.peek().priority)
+        g = warm;
+      heads.remove(g);
+      Entry e = g.jobs.poll();
+      if (g.jobs.isEmpty())
+        groups.remove(g.key);
+      else
+        heads.add(g);
+      return e;
+    }
+
+    boolean isEmpty() {
+      return heads.isEmpty();
+    }
+
+    public int compareTo(UserQueue u) {
+      if (time != u.time)
+        return (time < u.time) ? -1 : 1;
+      return Long.compare(turn, u.turn);
+    }
+  }
+
+  protected synchronized void schedule(Job job) {
+    String user = String.valueOf(job.owner);
+    UserQueue q = queues.get(user);
+    if (q == null)
+      queues.put(user, q = new UserQueue(user));
+    enqueue(new Entry(job, q));
+    dispatch();
+  }
+
+  // Put a job in its owner's queue, and make the owner ready if it wasn't.
+  private void enqueue(Entry e) {
+    UserQueue q = e.owner;
+    q.add(e);
+    if (!q.ready) {
+      // Users returning from idle don't get credit for the time they missed.
+      q.time = Math.max(q.time, time);
+      q.turn = arrivals++;
+      q.ready = true;
+      users.add(q);
+    }
+  }
+
+  // Start jobs until we run out of slots or jobs that can run.
+  private void dispatch() {
+    while (config.max_jobs == 0 || running < config.max_jobs) {
+      UserQueue q = users.poll();
+      if (q == null)
+        return;
+      Entry e = q.poll();
+      String full = fullEndpoint(e.job);
+
+      if (full != null) {
+        park(full, e);
+      } else {
+        time = q.time;
+        q.time += 1 / q.weight();
+        q.last = e.group;
+        runJob(e.job);
+      }
+
+      if (q.isEmpty())
+        q.ready = false;
+      else
+        users.add(q);
+    }
+  }
+
+  // Return an endpoint of job which is at its limit, or null.
+  private String fullEndpoint(Job job) {
+    int max = config.max_endpoint_jobs;
+    if (max > 0) for (String ep : job.endpoints()) {
+      Integer n = busy.get(ep);
+      if (n != null && n >= max)
+        return ep;
+    } return null;
+  }
+
+  // Set a job aside until a job on endpoint terminates.
+  private void park(String endpoint, Entry e) {
+    List<Entry> list = parked.get(endpoint);
+    if (list == null)
+      parked.put(endpoint, list = new LinkedList<Entry>());
+    list.add(e);
+  }
+
+  /** Starts the job and registers callbacks. */
+  private void runJob(final Job job) {
+    final Set<String> endpoints = job.endpoints();
+    running++;
+    for (String ep : endpoints) {
+      Integer n = busy.get(ep);
+      busy.put(ep, (n == null) ? 1 : n+1);
+    }
+    job.start().new Promise() {
+      protected void always() { jobTerminated(endpoints); }
+    };
+  }
+
+  /** Called when a job has completed or failed to start. */
+  private synchronized void jobTerminated(Set<String> endpoints) {
+    running--;
+    for (String ep : endpoints) {
+      int n = busy.remove(ep) - 1;
+      if (n > 0)
+        busy.put(ep, n);
+      // Give jobs waiting on this endpoint another chance.
+      List<Entry> list = parked.remove(ep);
+      if (list != null) for (Entry e : list)
+        enqueue(e);
+    } dispatch();
+  }
+}
@@ -9,6 +9,7 @@ import stork.core.server.*;
 import stork.core.handlers.*;
 import stork.feather.*;
 import stork.feather.util.*;
+import stork.optimizers.*;
 import stork.util.*;
 
 import static stork.scheduler.JobStatus.*;
@@ -62,6 +63,25 @@ public class Job {
     Long scheduled, started, completed;
   }
 
+  /** Transfer options requested by the user. */
+  public Options options = new Options();
+
+  /** Tunable parameters for the transfer performed by a {@code Job}. */
+  public static class Options {
+    /** Number of parallel streams per file, where supported. */
+    public int parallelism = 1;
+    /** Number of connections per endpoint for transferring files at once. */
+    public int concurrency = 1;
+    /** Optimizer used to tune parallelism during the transfer. */
+    public String optimizer = null;
+    /** The largest parallelism the optimizer may choose. */
+    public int max_parallelism = 16;
+    /** Socket options for data connections. Null uses the default. */
+    public TCPOptions tcp = null;
+    /** Jobs with higher priority run before the owner's other jobs. */
+    public int priority = 0;
+  }
+
   private transient Transfer transfer;
 
   protected Scheduler scheduler() { return scheduler; }
@@ -71,6 +91,47 @@ public class Job {
     public User user() { return Job.this.user(); }
   }
 
+  /**
+   * A key shared by jobs between the same endpoints with the same credentials
+   * and settings, which can run on the same leased sessions. A tuned job
+   * doesn't share its sessions, so it is in a group of its own.
+   */
+  public synchronized Object group() {
+    try {
+      if (tuned())
+        return uuid();
+      int p = 1, c = 1;
+      TCPOptions tcp = null;
+      if (options != null) {
+        p = options.parallelism;
+        c = options.concurrency;
+        tcp = options.tcp;
+      } return Arrays.asList(src.sessionKey(p, c, tcp),
+                             dest.sessionKey(p, c, tcp));
+    } catch (Exception e) {
+      return uuid();  // It will fail when it starts anyway.
+    }
+  }
+
+  /** The priority of this job among its owner's jobs. */
+  public synchronized int priority() {
+    return (options != null) ? options.priority : 0;
+  }
+
+  /**
+   * The endpoints this job transfers between, as {@code scheme://authority}
+   * strings. Endpoints which cannot be determined are left out.
+   */
+  public synchronized Set<String> endpoints() {
+    Set<String> set = new HashSet<String>();
+    for (JobEndpointRequest ep : new JobEndpointRequest[] { src, dest }) try {
+      String e = URI.create(ep.uri).endpoint();
+      if (e != null) set.add(e);
+    } catch (Exception e) {
+      // The job will fail when it starts.
+    } return set;
+  }
+
   public int jobId() {
     return job_id;
   }
@@ -216,15 +277,51 @@ public class Job {
 
     status(processing);
 
+    Resource source = src.resolveAs("source");
+    Resource destination = dest.resolveAs("destination");
+
+    if (options != null) {
+      source.session.parallelism(options.parallelism);
+      destination.session.parallelism(options.parallelism);
+      source.session.connections(options.concurrency);
+      destination.session.connections(options.concurrency);
+      source.session.tcp(options.tcp);
+      destination.session.tcp(options.tcp);
+    }
+
+    // Run on warm sessions shared with the owner's other jobs using the same
+    // settings, if possible. A tuned job changes its sessions' settings as it
+    // goes, so it gets sessions of its own.
+    final SessionCache cache =
+      (user() != null && !tuned()) ? user().sessions : null;
+    if (cache != null) {
+      source = cache.lease(source);
+      destination = cache.lease(destination);
+    }
     // Keep this as a temporary in case we get unlucky and the job fails before
     // we return, because the done handler sets this.transfer to null.
-    Transfer transfer =
-      src.resolveAs("source").transferTo(dest.resolveAs("destination"));
+    Transfer transfer;
+    try {
+      transfer = source.transferTo(destination);
+    } catch (RuntimeException e) {
+      release(cache, source, destination);
+      throw e;
+    }
+
+    if (cache != null) {
+      final Resource s = source, d = destination;
+      transfer.onStop().new Promise() {
+        public void always() { release(cache, s, d); }
+      };
+    }
 
     this.transfer = transfer;
 
     bytes = transfer.info;
 
+    if (options != null)
+      tune(transfer);
+
     transfer.onStop().new Promise() {
       public void done() {
         // We did it! The transfer completed successfully.
@@ -245,6 +342,33 @@ public class Job {
     return transfer.onStop().as(this);
   }
 
+  // Give up the leases on the sessions of the given resources.
+  private static void release(SessionCache cache, Resource... resources) {
+    if (cache != null) for (Resource r : resources)
+      cache.release(r.session);
+  }
+
+  // Whether an optimizer will tune this job's transfer.
+  private boolean tuned() {
+    return options != null && Optimizer.byName(options.optimizer) != null;
+  }
+
+  // Start the requested optimizer on the transfer, if any. The parameters it
+  // chooses are recorded in the job options.
+  private void tune(Transfer transfer) {
+    Optimizer optimizer = Optimizer.byName(options.optimizer);
+    if (optimizer == null)
+      return;
+    Range range = new Range(1, Math.max(1, options.max_parallelism));
+    new Tuner(optimizer, transfer) {
+      protected void tuned(int parallelism, boolean sampling) {
+        synchronized (Job.this) {
+          options.parallelism = parallelism;
+        }
+      }
+    }.start(range);
+  }
+
   public String toString() {
     return Ad.marshal(this).toString();
   }
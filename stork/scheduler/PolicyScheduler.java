@@ -0,0 +1,26 @@
+package stork.scheduler;
+
+import stork.core.*;
+
+/**
+ * A scheduler which leaves scheduling to a scheduler chosen by name, so the
+ * policy can be changed in the configuration without changing the type of the
+ * scheduler the server state is kept in.
+ */
+public class PolicyScheduler extends Scheduler {
+  private final transient Scheduler policy;
+
+  /** Use the policy named by the global configuration. */
+  public PolicyScheduler() {
+    this(Config.global.scheduler);
+  }
+
+  /** Use the named policy. */
+  public PolicyScheduler(String name) {
+    policy = Scheduler.byName(name);
+  }
+
+  protected void schedule(Job job) {
+    policy.schedule(job);
+  }
+}
@@ -31,6 +31,18 @@ public abstract class Scheduler implements Set<Job> {
    */
   protected abstract void schedule(Job job);
 
+  /**
+   * Create a scheduler implementing the named policy: {@code "fifo"} (the
+   * default) or {@code "fair"}.
+   */
+  public static Scheduler byName(String name) {
+    if (name == null || name.equals("fifo"))
+      return new FIFOScheduler();
+    if (name.equals("fair"))
+      return new FairScheduler();
+    throw new RuntimeException("Unknown scheduler: "+name);
+  }
+
   /**
    * The server this scheduler belongs to. Subclasses should not override this.
    */
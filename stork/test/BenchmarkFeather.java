@@ -1,5 +1,12 @@
 package stork.test;
 
+import java.util.concurrent.*;
+
+import io.netty.bootstrap.*;
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.util.*;
+
 import stork.feather.*;
 import stork.feather.util.*;
 import stork.module.ftp.*;
@@ -10,9 +17,12 @@ import stork.module.sftp.*;
  */
 public class BenchmarkFeather {
   public static void main(String[] args) {
-    benchmarkTransfers();
+    if (args.length > 0 && args[0].equals("throughput")) {
+      benchmarkThroughput();
+      System.exit(0);
+    } else
+      benchmarkTransfers();
     //benchmarkStreams();
-    //benchmarkThroughput();
     //benchmarkOverhead();
   }
 
@@ -53,7 +63,85 @@ public class BenchmarkFeather {
   public static void benchmarkStreams() {
   }
 
+  // Compare loopback throughput with different socket options.
   public static void benchmarkThroughput() {
+    TCPOptions small = new TCPOptions();
+    small.send_buffer = small.receive_buffer = 16*1024;
+    TCPOptions large = new TCPOptions();
+    large.send_buffer = large.receive_buffer = 4*1024*1024;
+    large.low_water_mark = 512*1024;
+    large.high_water_mark = 2*1024*1024;
+
+    System.out.println("Transport: "+Transport.getDefault());
+    for (TCPOptions o : new TCPOptions[] {
+      TCPOptions.getDefault(), small, large
+    }) try {
+      double rate = loopback(o, 1L<<30);
+      System.out.printf("%s: %.1f MB/s%n", o, rate/1e6);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Push bytes through a loopback connection using the given options, and
+  // return the throughput in bytes per second.
+  private static double loopback(final TCPOptions tcp, final long bytes)
+  throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final ByteBuf chunk = Unpooled.directBuffer(64*1024);
+    chunk.writeZero(chunk.capacity());
+    Transport t = Transport.getDefault();
+
+    ServerBootstrap sb = new ServerBootstrap();
+    sb.group(t.acceptor(), t.group()).channel(t.serverChannel());
+    sb.handler(new ChannelInitializer<Channel>() {
+      protected void initChannel(Channel ch) { tcp.apply(ch); }
+    });
+    sb.childHandler(new ChannelInitializer<Channel>() {
+      protected void initChannel(Channel ch) {
+        tcp.apply(ch).pipeline().addLast(new ChannelHandlerAdapter() {
+          long received = 0;
+          public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            received += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            if (received >= bytes)
+              done.countDown();
+          }
+        });
+      }
+    });
+    Channel server = sb.bind("127.0.0.1", 0).sync().channel();
+
+    // Write whenever the channel is writable, as a sink would.
+    Bootstrap b = new Bootstrap();
+    b.group(t.group()).channel(t.socketChannel());
+    b.handler(new ChannelInitializer<Channel>() {
+      protected void initChannel(Channel ch) {
+        tcp.apply(ch).pipeline().addLast(new ChannelHandlerAdapter() {
+          long sent = 0;
+          public void channelActive(ChannelHandlerContext ctx) {
+            pump(ctx);
+          } public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            pump(ctx);
+          } void pump(ChannelHandlerContext ctx) {
+            while (sent < bytes && ctx.channel().isWritable()) {
+              ctx.write(chunk.duplicate().retain());
+              sent += chunk.readableBytes();
+            } ctx.flush();
+          }
+        });
+      }
+    });
+
+    long start = System.nanoTime();
+    Channel client = b.connect(server.localAddress()).sync().channel();
+    done.await();
+    double time = (System.nanoTime()-start)/1e9;
+
+    client.close().sync();
+    server.close().sync();
+    chunk.release();
+    return bytes/time;
   }
 
   public static void benchmarkOverhead() {
@@ -0,0 +1,317 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+
+import com.sun.net.httpserver.*;
+
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.HttpRequestor;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.cred.*;
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.dropbox.*;
+
+/** Tests for the Dropbox module, against a stub of the API on localhost. */
+public class TestDropbox {
+  private static HttpServer server;
+  private static DbxRequestConfig config;
+
+  // Files on the stub, and uploads in progress.
+  private static final Map<String,byte[]> files =
+    Collections.synchronizedMap(new HashMap<String,byte[]>());
+  private static final Map<String,ByteArrayOutputStream> uploads =
+    Collections.synchronizedMap(new HashMap<String,ByteArrayOutputStream>());
+  private static volatile int batches, ranges;
+
+  @BeforeClass
+  public static void startStub() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/2/", new HttpHandler() {
+      public void handle(HttpExchange x) throws IOException {
+        try {
+          serve(x);
+        } catch (Exception e) {
+          reply(x, 500, e.toString().getBytes(), null);
+        }
+      }
+    });
+    server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+    server.start();
+    String base = "http://127.0.0.1:"+server.getAddress().getPort();
+    config = DbxRequestConfig.newBuilder("StorkTest")
+      .withHttpRequestor(new PlainRequestor(base)).build();
+  }
+
+  @AfterClass
+  public static void stopStub() {
+    server.stop(0);
+  }
+
+  @Test(timeout = 20000)
+  public void testChunkedUpload() throws Exception {
+    // Span a few of the sink's 4 MB chunks.
+    byte[] data = randomBytes((4 << 20)*2 + 12345, 1);
+    upload(session(), data, "/big.bin").onStop().sync();
+    assertArrayEquals("Uploaded file differs.", data, files.get("/big.bin"));
+  }
+
+  @Test(timeout = 20000)
+  public void testBatchCommit() throws Exception {
+    int before = batches;
+    DbxSession session = session();
+    byte[][] data = new byte[5][];
+    Transfer[] t = new Transfer[data.length];
+    for (int i = 0; i < data.length; i++)
+      t[i] = upload(session, data[i] = randomBytes(1000+i, i), "/small"+i);
+    for (int i = 0; i < data.length; i++) {
+      t[i].onStop().sync();
+      assertArrayEquals("Small file differs.", data[i], files.get("/small"+i));
+    }
+    assertTrue("Small files were not committed together.",
+               batches - before < data.length);
+  }
+
+  @Test(timeout = 20000)
+  public void testFailedCommitFailsTransfer() throws Exception {
+    // The stub refuses to commit anything under /rejected.
+    Transfer t = upload(session(), randomBytes(1000, 5), "/rejected.bin");
+    try {
+      t.onStop().sync();
+      fail("Transfer succeeded despite a failed commit.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    assertFalse(files.containsKey("/rejected.bin"));
+  }
+
+  @Test(timeout = 20000)
+  public void testRangedDownload() throws Exception {
+    byte[] data = randomBytes(10 << 20, 7);
+    files.put("/dl.bin", data);
+    File dst = File.createTempFile("dropbox", ".dst");
+    dst.deleteOnExit();
+
+    int before = ranges;
+    DbxSession session = session().parallelism(4);
+    Transfer t = session.select(Path.create("/dl.bin"))
+      .transferTo(new LocalSession(dst.getPath()).root());
+    t.start();
+    t.onStop().sync();
+
+    assertEquals("File was not fetched in ranges.", 4, ranges - before);
+    byte[] got = new byte[data.length];
+    DataInputStream in = new DataInputStream(new FileInputStream(dst));
+    in.readFully(got);
+    in.close();
+    assertArrayEquals("Downloaded file differs.", data, got);
+  }
+
+  private static byte[] randomBytes(int n, int seed) {
+    byte[] b = new byte[n];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  private static DbxSession session() {
+    return new DbxSession(
+      URI.create("dropbox:///"), new StorkOAuthCred("token"), config);
+  }
+
+  // Start uploading data to the stub through a local file.
+  private static Transfer upload(DbxSession session, byte[] data,
+                                 String path) throws Exception {
+    File src = File.createTempFile("dropbox", ".src");
+    src.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(src);
+    out.write(data);
+    out.close();
+
+    Transfer t = new LocalSession(src.getPath()).root()
+      .transferTo(session.select(Path.create(path)));
+    t.start();
+    return t;
+  }
+
+  // Handle an API call the way Dropbox would.
+  private static void serve(HttpExchange x) throws Exception {
+    String call = x.getRequestURI().getPath();
+    String arg = x.getRequestHeaders().getFirst("Dropbox-API-Arg");
+    byte[] body = readAll(x.getRequestBody());
+    if (arg == null)
+      arg = new String(body, "UTF-8");
+
+    if (call.equals("/2/files/upload_session/start")) {
+      String id = "s"+uploads.size()+"-"+System.nanoTime();
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      buf.write(body);
+      uploads.put(id, buf);
+      json(x, "{\"session_id\": \""+id+"\"}");
+    } else if (call.equals("/2/files/upload_session/append_v2")) {
+      ByteArrayOutputStream buf = uploads.get(field(arg, "session_id"));
+      if (buf.size() != Long.parseLong(field(arg, "offset"))) {
+        reply(x, 409, "{\"error_summary\": \"incorrect_offset/\"}".getBytes(),
+              null);
+        return;
+      }
+      buf.write(body);
+      json(x, "null");
+    } else if (call.equals("/2/files/upload_session/finish_batch")) {
+      batches++;
+      StringBuilder entries = new StringBuilder();
+      Matcher m = Pattern.compile(
+        "\"session_id\"\\s*:\\s*\"([^\"]*)\".*?\"path\"\\s*:\\s*\"([^\"]*)\"")
+        .matcher(arg);
+      while (m.find()) {
+        byte[] data = uploads.remove(m.group(1)).toByteArray();
+        if (entries.length() > 0) entries.append(",");
+        if (m.group(2).startsWith("/rejected")) {
+          entries.append("{\".tag\": \"failure\", \"failure\": "+
+                         "{\".tag\": \"too_many_write_operations\"}}");
+          continue;
+        } entries.append("{\".tag\": \"success\", ")
+               .append(metadata(m.group(2), data.length)).append("}");
+        files.put(m.group(2), data);
+      }
+      json(x, "{\".tag\": \"complete\", \"entries\": ["+entries+"]}");
+    } else if (call.equals("/2/files/list_folder")) {
+      reply(x, 409, ("{\"error_summary\": \"path/not_folder/\", "+
+        "\"error\": {\".tag\": \"path\", \"path\": "+
+        "{\".tag\": \"not_folder\"}}}").getBytes(), null);
+    } else if (call.equals("/2/files/get_metadata")) {
+      String path = field(arg, "path");
+      byte[] data = files.get(path);
+      json(x, "{\".tag\": \"file\", "+metadata(path, data.length)+"}");
+    } else if (call.equals("/2/files/download")) {
+      String path = field(arg, "path");
+      byte[] data = files.get(path);
+      String range = x.getRequestHeaders().getFirst("Range");
+      int code = 200, start = 0, end = data.length;
+      if (range != null) {
+        ranges++;
+        Matcher m = Pattern.compile("bytes=(\\d+)-(\\d*)").matcher(range);
+        m.find();
+        start = Integer.parseInt(m.group(1));
+        if (!m.group(2).isEmpty())
+          end = Integer.parseInt(m.group(2))+1;
+        code = 206;
+      }
+      reply(x, code, Arrays.copyOfRange(data, start, end),
+            "{"+metadata(path, data.length)+"}");
+    } else {
+      reply(x, 404, new byte[0], null);
+    }
+  }
+
+  private static String metadata(String path, long size) {
+    String name = path.substring(path.lastIndexOf('/')+1);
+    return "\"name\": \""+name+"\", \"id\": \"id:"+name+"\", "+
+           "\"client_modified\": \"2015-05-12T15:50:38Z\", "+
+           "\"server_modified\": \"2015-05-12T15:50:38Z\", "+
+           "\"rev\": \"a1c10ce0dd78\", \"size\": "+size+", "+
+           "\"path_lower\": \""+path+"\", \"path_display\": \""+path+"\"";
+  }
+
+  // Pull a string or number field out of a JSON argument.
+  private static String field(String json, String name) {
+    Matcher m = Pattern.compile(
+      "\""+name+"\"\\s*:\\s*(\"([^\"]*)\"|(\\d+))").matcher(json);
+    if (!m.find())
+      throw new RuntimeException("No "+name+" in "+json);
+    return (m.group(2) != null) ? m.group(2) : m.group(3);
+  }
+
+  private static void json(HttpExchange x, String json) throws IOException {
+    x.getResponseHeaders().set("Content-Type", "application/json");
+    reply(x, 200, json.getBytes("UTF-8"), null);
+  }
+
+  private static void reply(HttpExchange x, int code, byte[] body,
+                            String result) throws IOException {
+    if (result != null)
+      x.getResponseHeaders().set("Dropbox-API-Result", result);
+    x.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+    OutputStream out = x.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[65536];
+    for (int n; (n = in.read(b)) > 0;)
+      out.write(b, 0, n);
+    return out.toByteArray();
+  }
+
+  // Sends the SDK's requests to the stub over plain HTTP.
+  private static class PlainRequestor extends HttpRequestor {
+    private final String base;
+
+    PlainRequestor(String base) {
+      this.base = base;
+    }
+
+    private HttpURLConnection open(String url, Iterable<Header> headers,
+                                   String method) throws IOException {
+      url = base+url.replaceFirst("^https?://[^/]+", "");
+      HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+      c.setRequestMethod(method);
+      for (Header h : headers)
+        c.addRequestProperty(h.getKey(), h.getValue());
+      return c;
+    }
+
+    private static Response response(HttpURLConnection c) throws IOException {
+      int code = c.getResponseCode();
+      InputStream in = (code >= 400) ? c.getErrorStream() : c.getInputStream();
+      if (in == null)
+        in = new ByteArrayInputStream(new byte[0]);
+      Map<String,List<String>> headers = new HashMap<String,List<String>>();
+      for (Map.Entry<String,List<String>> e : c.getHeaderFields().entrySet())
+        if (e.getKey() != null) headers.put(e.getKey(), e.getValue());
+      return new Response(code, in, headers);
+    }
+
+    public Response doGet(String url, Iterable<Header> headers)
+    throws IOException {
+      return response(open(url, headers, "GET"));
+    }
+
+    public Uploader startPost(String url, Iterable<Header> headers)
+    throws IOException {
+      return uploader(open(url, headers, "POST"));
+    }
+
+    public Uploader startPut(String url, Iterable<Header> headers)
+    throws IOException {
+      return uploader(open(url, headers, "PUT"));
+    }
+
+    private Uploader uploader(final HttpURLConnection c) {
+      c.setDoOutput(true);
+      return new Uploader() {
+        public OutputStream getBody() {
+          try {
+            return c.getOutputStream();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        } public void close() {
+          // The response is still to be read.
+        } public void abort() {
+          c.disconnect();
+        } public Response finish() throws IOException {
+          return response(c);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,509 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import io.netty.buffer.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.ftp.*;
+
+/**
+ * Tests for the FTP module, against a stand-in server on localhost which
+ * speaks just enough FTP, and GridFTP extended block mode, to transfer files.
+ */
+public class TestFTP {
+  private static final int STREAMS = 4;
+  // What the stand-in serves for every file. Other tests use it too.
+  static final byte[] DATA = new byte[(1 << 20) + 12345];
+
+  static {
+    new Random(11).nextBytes(DATA);
+  }
+
+  @Test(timeout = 20000)
+  public void testExtendedBlockModeDownload() throws Exception {
+    StandIn server = new StandIn(true);
+    server.start();
+    byte[] got = download(server, STREAMS);
+    assertArrayEquals("Downloaded file differs.", DATA, got);
+    assertTrue("MODE E was not used.", server.verbs.contains("MODE E"));
+    assertEquals("Wrong number of data connections.",
+                 STREAMS, server.connections);
+  }
+
+  @Test(timeout = 20000)
+  public void testExtendedBlockModeUpload() throws Exception {
+    StandIn server = new StandIn(true);
+    server.start();
+    upload(server, STREAMS);
+    assertArrayEquals("Uploaded file differs.", DATA, server.stored.take());
+    assertTrue("MODE E was not used.", server.verbs.contains("MODE E"));
+    assertEquals("Wrong number of data connections.",
+                 STREAMS, server.connections);
+  }
+
+  @Test(timeout = 20000)
+  public void testStreamModeFallback() throws Exception {
+    // A server which refuses MODE E gets one ordinary stream instead.
+    StandIn server = new StandIn(false);
+    server.start();
+    byte[] got = download(server, STREAMS);
+    assertArrayEquals("Downloaded file differs.", DATA, got);
+    assertFalse("Parallelism was negotiated.", server.verbs.contains("OPTS"));
+    assertEquals("Wrong number of data connections.", 1, server.connections);
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentTransfersUseSeparateChannels() throws Exception {
+    // Hold each RETR until the other arrives, which can only happen if they
+    // were sent on different control channels.
+    StandIn server = new StandIn(false);
+    server.together = new CountDownLatch(2);
+    server.start();
+
+    Resource a = remote(server, "f", 1);
+    a.session.connections(2);
+    Resource b = a.session.select("/f");
+    File[] dst = new File[2];
+    Transfer[] t = new Transfer[2];
+    Resource[] src = { a, b };
+    for (int i = 0; i < 2; i++) {
+      dst[i] = File.createTempFile("ftp", ".dst");
+      dst[i].deleteOnExit();
+      t[i] = src[i].transferTo(new LocalSession(dst[i].getPath()).root());
+      t[i].start();
+    } for (int i = 0; i < 2; i++) {
+      t[i].onStop().sync();
+      assertArrayEquals("Downloaded file differs.", DATA, read(dst[i]));
+    }
+    a.session.close();
+
+    assertEquals("Transfers shared a control channel.",
+                 2, new HashSet<Integer>(server.retrievers).size());
+  }
+
+  @Test(timeout = 20000)
+  public void testPoolFallsBackToMainChannel() throws Exception {
+    // A server which only lets one connection log in.
+    StandIn server = new StandIn(false);
+    server.logins = 1;
+    server.start();
+
+    Resource a = remote(server, "f", 1);
+    a.session.connections(2);
+    Resource b = a.session.select("/f");
+    File[] dst = new File[2];
+    Transfer[] t = new Transfer[2];
+    Resource[] src = { a, b };
+    for (int i = 0; i < 2; i++) {
+      dst[i] = File.createTempFile("ftp", ".dst");
+      dst[i].deleteOnExit();
+      t[i] = src[i].transferTo(new LocalSession(dst[i].getPath()).root());
+      t[i].start();
+    } for (int i = 0; i < 2; i++) {
+      t[i].onStop().sync();
+      assertArrayEquals("Downloaded file differs.", DATA, read(dst[i]));
+    }
+    a.session.close();
+
+    assertEquals("Transfers did not share the main channel.",
+                 1, new HashSet<Integer>(server.retrievers).size());
+  }
+
+  @Test
+  public void testListParserAcrossBuffers() throws Exception {
+    String listing =
+      "-rw-r--r-- 1 stork stork 1234 Jan 01 2015 plain.txt\r\n"+
+      "drwxr-xr-x 2 stork stork 4096 Jan 01 2015 sub\n"+
+      "-rw-r--r-- 1 stork stork 5 Jan 01 2015 caf\u00e9 \u65e5\u672c.txt\r"+
+      "-rw-r--r-- 1 stork stork 7 Jan 01 2015 with space.bin\0"+
+      "\r\n\r\n"+
+      "lrwxrwxrwx 1 stork stork 9 Jan 01 2015 link -> plain.txt";
+    String[] names = {
+      "plain.txt", "sub", "caf\u00e9 \u65e5\u672c.txt", "with space.bin",
+      "link"
+    };
+    long[] sizes = { 1234, 0, 5, 7, 9 };
+
+    // Lines, line ends and UTF-8 sequences are split at every point, and the
+    // last line is only ended by the end of the listing.
+    byte[] bytes = listing.getBytes("UTF-8");
+    for (int n : new int[] { 1, 2, 3, 5, bytes.length }) {
+      FTPListParser parser = new FTPListParser();
+      for (int i = 0; i < bytes.length; i += n)
+        parser.write(Unpooled.wrappedBuffer(
+          bytes, i, Math.min(n, bytes.length-i)));
+      parser.finish();
+      Stat[] files = parser.sync().files;
+
+      assertEquals("Entries in "+n+" byte buffers.",
+                   names.length, files.length);
+      for (int i = 0; i < names.length; i++) {
+        assertEquals(names[i], files[i].name);
+        assertEquals(names[i], sizes[i], files[i].size);
+        assertEquals(names[i], i == 1, files[i].dir);
+      }
+      assertEquals("plain.txt", files[4].link);
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testListingIsNotRetriedAfterEntries() throws Exception {
+    // The server sends part of a listing and then fails the command. The
+    // names already emitted can't be taken back, so the listing must fail
+    // rather than be retried with another command.
+    StandIn server = new StandIn(false);
+    server.start();
+    Resource dir = remote(server, "d", 1);
+    final List<String> names = new ArrayList<String>();
+    Emitter<String> emitter = dir.list();
+    Bell listed = emitter.new ForEach() {
+      public void each(String name) { names.add(name); }
+    };
+    try {
+      listed.sync();
+      fail("Partial listing succeeded.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    dir.session.close();
+
+    assertEquals(Arrays.asList("a", "b"), names);
+    assertFalse("Listing was retried.", server.verbs.contains("NLST"));
+  }
+
+  private static Resource remote(StandIn server, String name, int streams) {
+    URI uri = URI.create("ftp://stork@127.0.0.1:"+server.port()+"/"+name);
+    Resource r = new FTPModule().select(uri, null);
+    r.session.parallelism(streams);
+    return r;
+  }
+
+  // Download a file from the stand-in to a temporary file.
+  private static byte[] download(StandIn server, int streams)
+  throws Exception {
+    File dst = File.createTempFile("ftp", ".dst");
+    dst.deleteOnExit();
+    Resource src = remote(server, "f", streams);
+    Transfer t = src.transferTo(new LocalSession(dst.getPath()).root());
+    t.start();
+    t.onStop().sync();
+    src.session.close();
+    return read(dst);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] got = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    in.readFully(got);
+    in.close();
+    return got;
+  }
+
+  // Upload DATA to the stand-in.
+  private static void upload(StandIn server, int streams) throws Exception {
+    File src = File.createTempFile("ftp", ".src");
+    src.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(src);
+    out.write(DATA);
+    out.close();
+
+    Resource dst = remote(server, "g", streams);
+    Transfer t = new LocalSession(src.getPath()).root().transferTo(dst);
+    t.start();
+    t.onStop().sync();
+  }
+
+  /**
+   * Serves DATA for every file and keeps uploads. In extended block mode,
+   * downloads are sent in 4 KB blocks shuffled across the connections, and
+   * uploads are reassembled from the offsets in their headers.
+   */
+  static class StandIn extends Thread {
+    static final int BLOCK = 4096;
+
+    final ServerSocket socket = new ServerSocket(0, 50,
+      InetAddress.getByName("127.0.0.1"));
+    final boolean extended;  // Whether MODE E is accepted.
+    final Set<String> verbs = Collections.synchronizedSet(new HashSet<String>());
+    final BlockingQueue<byte[]> stored = new LinkedBlockingQueue<byte[]>();
+    volatile int connections;  // Data connections used by the last transfer.
+    // The control connection each RETR arrived on, numbered from zero.
+    final List<Integer> retrievers =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    private int controls = 0;
+    // If set, each RETR waits for this to count down, for a while.
+    volatile CountDownLatch together;
+    int logins = -1;  // Logins to allow, if limited.
+    final AtomicInteger loggedIn = new AtomicInteger();
+    volatile int loginTime;  // Milliseconds to take accepting a password.
+    // Files being sent at once, and the most there have been.
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    volatile int hold;  // Milliseconds to keep each download's stream open.
+
+    StandIn(boolean extended) throws IOException {
+      this.extended = extended;
+      setDaemon(true);
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket s = socket.accept();
+          final int id = controls++;
+          Thread t = new Thread() {
+            public void run() { serve(s, id); }
+          };
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch (IOException e) {
+        // Closed.
+      }
+    }
+
+    void serve(Socket s, int id) {
+      ServerSocket pasv = null;
+      InetSocketAddress port = null;
+      char mode = 'S';
+      try {
+        BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream(), "US-ASCII"));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), "US-ASCII");
+        reply(out, "220 ready");
+
+        for (String line; (line = in.readLine()) != null;) {
+          String[] cmd = line.split(" ", 2);
+          String verb = cmd[0].toUpperCase();
+          String arg = (cmd.length > 1) ? cmd[1] : "";
+          String name = arg.substring(arg.lastIndexOf('/')+1);
+          verbs.add(verb.equals("MODE") ? line : verb);
+
+          if (verb.equals("USER")) {
+            reply(out, "331 password please");
+          } else if (verb.equals("PASS")) {
+            Thread.sleep(loginTime);
+            if (login())
+              reply(out, "230 logged in");
+            else
+              reply(out, "530 too many users");
+          } else if (verb.equals("TYPE") || verb.equals("OPTS")) {
+            reply(out, "200 ok");
+          } else if (verb.equals("MODE")) {
+            if (arg.equals("E") && !extended) {
+              reply(out, "504 not implemented for that parameter");
+            } else {
+              mode = arg.charAt(0);
+              reply(out, "200 ok");
+            }
+          } else if (verb.equals("STAT") && name.startsWith("f")) {
+            reply(out, "213-status of "+arg+":\r\n"+
+              "-rw-r--r-- 1 stork stork "+DATA.length+" Jan 01 2015 "+name+
+              "\r\n213 End of status");
+          } else if (verb.equals("PASV")) {
+            if (pasv != null) pasv.close();
+            pasv = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            port = null;
+            int p = pasv.getLocalPort();
+            reply(out, "227 Entering Passive Mode (127,0,0,1,"+
+              (p >> 8)+","+(p & 0xff)+")");
+          } else if (verb.equals("PORT")) {
+            String[] h = arg.split(",");
+            port = new InetSocketAddress(h[0]+"."+h[1]+"."+h[2]+"."+h[3],
+              Integer.parseInt(h[4])*256 + Integer.parseInt(h[5]));
+            reply(out, "200 ok");
+          } else if (verb.equals("RETR")) {
+            retrievers.add(id);
+            CountDownLatch latch = together;
+            if (latch != null) {
+              latch.countDown();
+              latch.await(3, TimeUnit.SECONDS);
+            }
+            reply(out, "150 sending");
+            if (mode == 'E')
+              sendBlocks(port);
+            else
+              sendStream(pasv);
+            reply(out, "226 done");
+          } else if (verb.equals("LIST")) {
+            reply(out, "150 listing");
+            Socket d = pasv.accept();
+            d.getOutputStream().write((
+              "-rw-r--r-- 1 stork stork 1 Jan 01 2015 a\r\n"+
+              "-rw-r--r-- 1 stork stork 2 Jan 01 2015 b\r\n"
+            ).getBytes("US-ASCII"));
+            d.close();
+            reply(out, "451 listing aborted");
+          } else if (verb.equals("STOR")) {
+            reply(out, "150 receiving");
+            stored.add(mode == 'E' ? receiveBlocks(pasv) : receiveStream(pasv));
+            reply(out, "226 done");
+          } else if (verb.equals("QUIT")) {
+            reply(out, "221 bye");
+            break;
+          } else {
+            reply(out, "502 not implemented");
+          }
+        }
+      } catch (Exception e) {
+        // The client hung up.
+      } finally {
+        try {
+          if (pasv != null) pasv.close();
+          s.close();
+        } catch (IOException e) { }
+      }
+    }
+
+    synchronized boolean login() {
+      if (logins == 0)
+        return false;
+      if (logins > 0)
+        logins--;
+      loggedIn.incrementAndGet();
+      return true;
+    }
+
+    void reply(Writer out, String reply) throws IOException {
+      out.write(reply+"\r\n");
+      out.flush();
+    }
+
+    void sendStream(ServerSocket pasv) throws Exception {
+      Socket d = pasv.accept();
+      connections = 1;
+      int n = active.incrementAndGet();
+      for (int m; (m = maxActive.get()) < n;)
+        maxActive.compareAndSet(m, n);
+      d.getOutputStream().write(DATA);
+      Thread.sleep(hold);
+      active.decrementAndGet();
+      d.close();
+    }
+
+    byte[] receiveStream(ServerSocket pasv) throws IOException {
+      Socket d = pasv.accept();
+      connections = 1;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      InputStream in = d.getInputStream();
+      byte[] buf = new byte[8192];
+      for (int n; (n = in.read(buf)) >= 0;)
+        bytes.write(buf, 0, n);
+      d.close();
+      return bytes.toByteArray();
+    }
+
+    // Connect to the client and send shuffled blocks over every connection.
+    void sendBlocks(InetSocketAddress port) throws IOException {
+      List<Integer> blocks = new ArrayList<Integer>();
+      for (int off = 0; off < DATA.length; off += BLOCK)
+        blocks.add(off);
+      Collections.shuffle(blocks, new Random(3));
+
+      DataOutputStream[] outs = new DataOutputStream[STREAMS];
+      Socket[] socks = new Socket[STREAMS];
+      for (int i = 0; i < STREAMS; i++) {
+        socks[i] = new Socket(port.getAddress(), port.getPort());
+        outs[i] = new DataOutputStream(
+          new BufferedOutputStream(socks[i].getOutputStream()));
+      } connections = STREAMS;
+
+      // Announce the number of connections partway through, like a server
+      // which decides to close its connections early would.
+      for (int i = 0; i < blocks.size(); i++) {
+        int off = blocks.get(i);
+        int len = Math.min(BLOCK, DATA.length-off);
+        DataOutputStream out = outs[i % STREAMS];
+        if (i == blocks.size()/2)
+          header(out, 64, 0, STREAMS);
+        header(out, 0, len, off);
+        out.write(DATA, off, len);
+      } for (int i = 0; i < STREAMS; i++) {
+        header(outs[i], 8 | 4, 0, 0);
+        outs[i].flush();
+        socks[i].close();
+      }
+    }
+
+    void header(DataOutputStream out, int desc, long count, long offset)
+    throws IOException {
+      out.writeByte(desc);
+      out.writeLong(count);
+      out.writeLong(offset);
+    }
+
+    // Read blocks from every connection the client opens until as many have
+    // ended as the client said it would use.
+    byte[] receiveBlocks(final ServerSocket pasv) throws Exception {
+      final byte[] data = new byte[DATA.length];
+      final long[] eods = { 0 }, eof = { -1 }, size = { 0 };
+      final List<Socket> socks = new ArrayList<Socket>();
+      Thread acceptor = new Thread() {
+        public void run() {
+          try {
+            while (true) {
+              final Socket d = pasv.accept();
+              synchronized (socks) { socks.add(d); }
+              new Thread() {
+                public void run() {
+                  readBlocks(d, data, eods, eof, size);
+                }
+              }.start();
+            }
+          } catch (IOException e) {
+            // Closed.
+          }
+        }
+      };
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      synchronized (eods) {
+        while (eof[0] < 0 || eods[0] < eof[0])
+          eods.wait();
+      }
+      pasv.close();
+      synchronized (socks) { connections = socks.size(); }
+      return Arrays.copyOf(data, (int) size[0]);
+    }
+
+    void readBlocks(Socket d, byte[] data, long[] eods, long[] eof,
+                    long[] size) {
+      try {
+        DataInputStream in = new DataInputStream(
+          new BufferedInputStream(d.getInputStream()));
+        while (true) {
+          int desc = in.readUnsignedByte();
+          long count = in.readLong(), offset = in.readLong();
+          if ((desc & 64) != 0) synchronized (eods) {
+            eof[0] = offset;
+            eods.notifyAll();
+          } else {
+            in.readFully(data, (int) offset, (int) count);
+            synchronized (eods) {
+              size[0] = Math.max(size[0], offset+count);
+            }
+          } if ((desc & 8) != 0) synchronized (eods) {
+            eods[0]++;
+            eods.notifyAll();
+            break;
+          }
+        } d.close();
+      } catch (IOException e) {
+        // The client hung up.
+      }
+    }
+  }
+}
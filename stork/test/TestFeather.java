@@ -1,6 +1,11 @@
 package stork.test;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import io.netty.buffer.*;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -26,6 +31,22 @@ public class TestFeather {
     } catch (Exception e) { }
   }
 
+  @Test(timeout = 3000)
+  public void testLatePromiseWaitsForHandlers() {
+    final boolean[] handled = { false };
+    Bell<String> a = new Bell<String>() {
+      public void done(String s) throws Exception {
+        Thread.sleep(200);
+        handled[0] = true;
+      }
+    };
+    a.ring("test");
+    // Promised after ringing, but before the handler can have finished.
+    Bell<String> b = a.promise(new Bell<String>());
+    assertEquals("test", b.sync());
+    assertTrue("Late promise rang before the handlers.", handled[0]);
+  }
+
   @Test(timeout = 700, expected=RuntimeException.class)
   public void testBellDeadline() {
     new Bell().deadline(.5).sync();
@@ -43,6 +64,64 @@ public class TestFeather {
       fail("As-bell rang with bad value: "+s);
   }
 
+  @Test(timeout = 3000)
+  public void testBellInlineCompletion() {
+    Bell<String> a = new Bell<String>("test");
+    assertTrue("Detached bell did not ring inline.", a.detach().isDone());
+    assertTrue("As-bell did not ring inline.", a.as("yes").isDone());
+
+    // A long chain should complete without overflowing the stack.
+    Bell<String> head = new Bell<String>(), tail = head;
+    for (int i = 0; i < 100000; i++)
+      tail = tail.detach();
+    head.ring("chain");
+    assertEquals("Chained bell did not propagate.", "chain", tail.sync());
+  }
+
+  @Test(timeout = 5000)
+  public void testBellConcurrentPromises() throws Exception {
+    final Bell<String> bell = new Bell<String>();
+    final List<Bell<String>> promised =
+      Collections.synchronizedList(new ArrayList<Bell<String>>());
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 1000; j++)
+            promised.add(bell.promise(new Bell<String>()));
+        }
+      };
+      threads[i].start();
+    }
+    bell.ring("rung");
+    for (Thread t : threads)
+      t.join();
+    for (Bell<String> b : promised)
+      assertEquals("Promised bell did not ring.", "rung", b.sync());
+  }
+
+  @Test(timeout = 3000)
+  public void testStrandOrdering() {
+    final StringBuffer order = new StringBuffer();
+    Strand strand = Dispatcher.getDefault().strand();
+    for (int i = 0; i < 100; i++) {
+      final int n = i;
+      strand.dispatch(new Runnable() {
+        public void run() { order.append(n).append(','); }
+      });
+    }
+    final Bell<String> bell = new Bell<String>();
+    strand.dispatch(new Runnable() {
+      public void run() { bell.ring(order.toString()); }
+    });
+
+    StringBuilder expect = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      expect.append(i).append(',');
+    assertEquals("Strand ran tasks out of order.", expect.toString(),
+                 bell.sync());
+  }
+
   @Test public void testEmitter() {
     Emitter<String> emitter = new Emitter<String>();
     Bell<String> a, b, c;
@@ -84,6 +163,19 @@ public class TestFeather {
     assertEquals("Third queued emit failed.", c.sync(), "three");
   }
 
+  @Test(timeout = 3000)
+  public void testEmitterAsList() {
+    Emitter<String> emitter = new Emitter<String>();
+    Bell<List<String>> list = emitter.asList();
+
+    emitter.emit("one");
+    emitter.emit("two");
+    emitter.emit("three");
+    emitter.ring();
+    assertEquals("Emitted items were not consumed in order.",
+                 Arrays.asList("one", "two", "three"), list.sync());
+  }
+
   @Test(timeout = 3000)
   public void testTapAsInputStream() throws Exception {
     String expect = "This is the expected string.";
@@ -96,4 +188,290 @@ public class TestFeather {
 
     assertEquals("Read bad string: "+got, got, expect);
   }
+
+  @Test(timeout = 3000)
+  public void testSliceRelease() throws Exception {
+    Slice slice = Slice.allocate(16);
+    slice.asByteBuf().writeBytes("pooled".getBytes());
+    Pipes.AggregatorSink sink = Pipes.aggregatorSink();
+    Pipes.tapFromSlice(slice).attach(sink).tap().start();
+
+    Slice result = sink.bell().sync();
+    assertEquals("Aggregated slice has bad length.", 6, result.length());
+    assertEquals("Sink did not retain slice.", 1, slice.refCnt());
+    result.release();
+    assertEquals("Pooled slice was not released.", 0, slice.refCnt());
+  }
+
+  @Test(timeout = 5000)
+  public void testLocalFileSliceCopy() throws Exception {
+    File src = File.createTempFile("feather", ".src");
+    File dst = File.createTempFile("feather", ".dst");
+    src.deleteOnExit();
+    dst.deleteOnExit();
+    byte[] data = new byte[(3 << 20) + 17];
+    new Random(1).nextBytes(data);
+    FileOutputStream out = new FileOutputStream(src);
+    out.write(data);
+    out.close();
+
+    LocalResource s = new LocalSession(src.getPath()).root();
+    LocalResource d = new LocalSession(dst.getPath()).root();
+    Transfer transfer = s.transferTo(d);
+    transfer.start();
+    transfer.onStop().sync();
+
+    assertEquals("Progress was not counted.", data.length, transfer.info.done);
+    byte[] got = new byte[data.length];
+    DataInputStream in = new DataInputStream(new FileInputStream(dst));
+    in.readFully(got);
+    in.close();
+    assertArrayEquals("Copied file differs.", data, got);
+  }
+
+  @Test(timeout = 3000)
+  public void testLocalSinkRandomWrites() throws Exception {
+    File dst = File.createTempFile("feather", ".dst");
+    dst.deleteOnExit();
+    final byte[] data = "0123456789abcdef".getBytes();
+    final Bell<Object> done = new Bell<Object>();
+
+    // Drain the data backwards in four-byte slices.
+    Tap tap = new Tap(Resources.anonymous()) {
+      protected Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() {
+            Bell last = null;
+            for (int i = data.length-4; i >= 0; i -= 4)
+              last = drain(new Slice(Arrays.copyOfRange(data, i, i+4), i));
+            last.promise(done);
+            finish();
+          }
+        };
+      }
+    };
+    tap.attach(new LocalSession(dst.getPath()).root().sink());
+    assertTrue("Local sink is not random access.", tap.random());
+    tap.start();
+    done.sync();
+
+    byte[] got = new byte[data.length];
+    DataInputStream in = new DataInputStream(new FileInputStream(dst));
+    in.readFully(got);
+    in.close();
+    assertArrayEquals("Slices were not written at their offsets.", data, got);
+  }
+
+  @Test(timeout = 30000)
+  public void testLocalTapMapped() throws Exception {
+    // Big enough to need a second window.
+    int size = (1 << 26) + 100003;
+    File src = File.createTempFile("feather", ".src");
+    src.deleteOnExit();
+    byte[] block = new byte[1 << 20];
+    new Random(7).nextBytes(block);
+    java.util.zip.CRC32 expected = new java.util.zip.CRC32();
+    FileOutputStream out = new FileOutputStream(src);
+    for (int n = size, len; n > 0; n -= len) {
+      len = Math.min(n, block.length);
+      out.write(block, 0, len);
+      expected.update(block, 0, len);
+    } out.close();
+
+    // A sink which cannot take file slices, so the tap maps the file.
+    final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    final List<Slice> slices = new ArrayList<Slice>();
+    final Bell<Long> done = new Bell<Long>();
+    Tap tap = new LocalSession(src.getPath()).mmapThreshold(1).root().tap();
+    tap.attach(new Sink(Resources.anonymous()) {
+      long total;
+      protected Bell drain(Slice slice) {
+        ByteBuf buf = slice.asByteBuf();
+        assertEquals("Slice is out of order.", total, slice.offset());
+        assertTrue("Slice is not from a mapped window.",
+                   buf.unwrap().getClass().getName().endsWith("MappedWindow"));
+        crc.update(buf.nioBuffer());
+        total += slice.length();
+        slices.add(slice);
+        return null;
+      } protected void finish(Throwable t) {
+        if (t == null) done.ring(total);
+        else done.ring(t);
+      }
+    });
+    tap.start();
+
+    assertEquals("Not all data was drained.", size, (long) done.sync());
+    assertEquals("Mapped data differs.", expected.getValue(), crc.getValue());
+    for (Slice slice : slices)
+      assertEquals("A window was not unmapped.", 0, slice.refCnt());
+  }
+
+  @Test(timeout = 10000)
+  public void testLocalTapAdaptsToSlowSink() throws Exception {
+    // A sink which takes 50 ms per slice should get minimum-sized chunks and
+    // only a few slices read ahead of it.
+    Adaptation a = adapt(1 << 20, 50);
+    assertEquals("Chunks grew for a slow sink.", 1 << 16, a.largest);
+    assertEquals("Chunk size grew for a slow sink.", 1 << 16, a.chunk);
+    assertTrue("Read too far ahead of a slow sink ("+a.window+" slices).",
+               a.window <= 6);
+  }
+
+  @Test(timeout = 20000)
+  public void testLocalTapAdaptsToFastSink() throws Exception {
+    // A sink which takes 1 ms per slice regardless of size should get larger
+    // chunks, and more of them in flight while it is working, but no more
+    // than the buffering limit allows.
+    Adaptation a = adapt(1 << 26, 1);
+    assertTrue("Chunks did not grow for a fast sink.", a.largest > 1 << 16);
+    assertTrue("Read-ahead did not grow for a fast sink ("+a.window+
+               " slices).", a.window > 2);
+    assertTrue("Read ahead more than 32 MB.",
+               (long) a.window * a.chunk <= 1 << 25);
+  }
+
+  @Test(timeout = 10000)
+  public void testEntriesStartBeforeListingEnds() throws Exception {
+    final Emitter<String> listing = new Emitter<String>();
+    final BlockingQueue<String> started = new LinkedBlockingQueue<String>();
+    Resource src = new Session(URI.EMPTY) {
+      public Resource select(final Path path) {
+        return new Resource(this, path) {
+          public Bell<Stat> stat() {
+            Stat stat = new Stat(path.name());
+            stat.dir = path.isRoot();
+            stat.file = !stat.dir;
+            return new Bell<Stat>(stat);
+          } public Emitter<String> list() {
+            return listing;
+          } public Tap tap() {
+            started.add(path.name());
+            return Pipes.tapFromSlice(this, new Slice(new byte[10]));
+          }
+        };
+      }
+    }.root();
+
+    File dir = File.createTempFile("feather", ".dir");
+    dir.delete();
+    dir.deleteOnExit();
+    Transfer t = src.transferTo(new LocalSession(dir.getPath()).root());
+    t.start();
+
+    listing.emit("a");
+    assertEquals("Entry did not start while the listing was open.",
+                 "a", started.poll(5, TimeUnit.SECONDS));
+    listing.emit("b");
+    assertEquals("b", started.poll(5, TimeUnit.SECONDS));
+    listing.ring();
+    t.onStop().sync();
+    assertEquals(10, new File(dir, "b").length());
+    new File(dir, "a").delete();
+    new File(dir, "b").delete();
+  }
+
+  // How a LocalTap adapted to its sink.
+  private static class Adaptation {
+    volatile int largest;  // The largest slice drained.
+    int chunk, window;     // The tap's final chunk size and read-ahead.
+  }
+
+  // Transfer a file of the given size from a LocalTap to a sink which takes
+  // delay milliseconds to consume each slice, and report how the tap adapted.
+  private static Adaptation adapt(int size, final long delay)
+  throws Exception {
+    File src = File.createTempFile("feather", ".src");
+    src.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(src, "rw");
+    raf.setLength(size);
+    raf.close();
+
+    final Adaptation a = new Adaptation();
+    final Bell<Long> done = new Bell<Long>();
+    final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor();
+    Tap tap = new LocalSession(src.getPath()).root().tap();
+    tap.attach(new Sink(Resources.anonymous()) {
+      long total;
+      protected Bell drain(Slice slice) {
+        a.largest = Math.max(a.largest, slice.length());
+        total += slice.length();
+        final Bell bell = new Bell();
+        timer.schedule(new Runnable() {
+          public void run() { bell.ring(); }
+        }, delay, TimeUnit.MILLISECONDS);
+        return bell;
+      } protected void finish(Throwable t) {
+        if (t == null) done.ring(total);
+        else done.ring(t);
+      }
+    });
+    tap.start();
+    try {
+      assertEquals("Not all data was drained.", size, (long) done.sync());
+    } finally {
+      timer.shutdown();
+    }
+
+    // The tap does not expose its sizing, so look at it directly.
+    a.chunk = intField(tap, "chunkSize");
+    a.window = intField(tap, "window");
+    return a;
+  }
+
+  private static int intField(Object o, String name) throws Exception {
+    java.lang.reflect.Field f = o.getClass().getDeclaredField(name);
+    f.setAccessible(true);
+    return f.getInt(o);
+  }
+
+  @Test(timeout = 10000)
+  public void testFinishWaitsForConcurrentDrains() throws Exception {
+    for (int round = 0; round < 200; round++) {
+      final AtomicInteger drained = new AtomicInteger();
+      final Bell<Integer> finished = new Bell<Integer>();
+      final CountingTap tap = new CountingTap();
+      tap.attach(new Sink(Resources.anonymous()) {
+        protected Bell drain(Slice slice) {
+          drained.incrementAndGet();
+          return null;
+        } protected void finish(Throwable t) {
+          finished.ring(drained.get());
+        }
+      });
+      tap.start().sync();
+
+      // Finish while other threads are still draining.
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread() {
+          public void run() { tap.drainSome(50); }
+        };
+        threads[i].start();
+      } tap.end();
+      for (Thread t : threads)
+        t.join();
+
+      assertEquals("Sink finished before the last drain.",
+                   tap.accepted.get(), (int) finished.sync());
+    }
+  }
+
+  // Counts the drains the pipeline accepted.
+  private static class CountingTap extends Tap {
+    final AtomicInteger accepted = new AtomicInteger();
+
+    CountingTap() { super(Resources.anonymous()); }
+
+    protected Bell start(Bell bell) { return bell; }
+
+    void drainSome(int n) {
+      for (int i = 0; i < n; i++)
+        if (!drain(new Slice(new byte[1])).isFailed())
+          accepted.incrementAndGet();
+    }
+
+    void end() { finish(); }
+  }
 }
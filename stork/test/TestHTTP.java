@@ -0,0 +1,366 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.http.*;
+
+/**
+ * Tests for the HTTP module, against a stand-in server on localhost which
+ * serves the same data at every path and can be told to misbehave.
+ */
+public class TestHTTP {
+  private static final int MB = 1 << 20;
+
+  private StandIn server;
+
+  @Before
+  public void startStandIn() throws Exception {
+    server = new StandIn(randomBytes(6*MB + 12345, 3));
+    server.start();
+  }
+
+  @After
+  public void stopStandIn() throws Exception {
+    server.socket.close();
+  }
+
+  @Test(timeout = 30000)
+  public void testRangedDownload() throws Exception {
+    byte[] got = download(session().parallelism(4));
+    assertArrayEquals("Downloaded file differs.", server.data, got);
+    assertEquals("File was not fetched in ranges.", 7, server.ranges().size());
+  }
+
+  @Test(timeout = 30000)
+  public void testCutRangeIsRequeued() throws Exception {
+    server.cuts.set(1);
+    byte[] got = download(session().parallelism(4));
+    assertArrayEquals("Downloaded file differs.", server.data, got);
+
+    // The rest of the range that was cut short is fetched again, starting
+    // where the first response stopped.
+    List<long[]> ranges = server.ranges();
+    assertEquals("Cut range was not requeued.", 8, ranges.size());
+    int split = 0;
+    for (long[] r : ranges) if (r[0] % MB != 0) {
+      assertEquals("Requeued range ends elsewhere.", MB-1, r[1] % MB);
+      split++;
+    }
+    assertEquals("Cut range was not split.", 1, split);
+  }
+
+  @Test(timeout = 30000)
+  public void testRedirectedRangedDownload() throws Exception {
+    server.redirect = "/moved.bin";
+    byte[] got = download(session().parallelism(4));
+    assertArrayEquals("Downloaded file differs.", server.data, got);
+    assertEquals("File was not fetched in ranges.", 7, server.ranges().size());
+    synchronized (server.requests) {
+      for (String r : server.requests) if (r.contains("bytes="))
+        assertTrue("Range was not redirected: "+r, r.startsWith("GET /moved"));
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testIgnoredRangesFallBackToSingleRequest() throws Exception {
+    // The server claims to accept ranges, but sends the whole file anyway.
+    server.ignoreRanges = true;
+    byte[] got = download(session().parallelism(4));
+    assertArrayEquals("Downloaded file differs.", server.data, got);
+  }
+
+  @Test(timeout = 30000)
+  public void testPoolIsBounded() throws Exception {
+    server.delay = 50;
+    HTTPSession session = session().connections(2);
+    stat(session, 10);
+    session.close();
+    assertEquals("Pool was not filled or overflowed.",
+                 2, server.connections.get());
+  }
+
+  @Test(timeout = 30000)
+  public void testClosedConnectionsAreEvicted() throws Exception {
+    // The server drops each connection once it has answered, like one which
+    // times out idle connections sooner than we do.
+    server.hangUp = true;
+    HTTPSession session = session();
+    for (int i = 0; i < 3; i++) {
+      stat(session, 1);
+      Thread.sleep(100);
+    }
+    session.close();
+    assertEquals(4, server.connections.get());
+  }
+
+  @Test(timeout = 30000)
+  public void testLostPipelinedRequestsAreRetried() throws Exception {
+    // Drop the connection after answering one request while others are
+    // pipelined behind it, which must then be sent again.
+    server.delay = 100;
+    server.drops.set(1);
+    System.setProperty("stork.http.pipelining", "true");
+    try {
+      HTTPSession session = session().connections(1);
+      stat(session, 5);
+      session.close();
+    } finally {
+      System.clearProperty("stork.http.pipelining");
+    }
+    // Every stat succeeded, so the requests left unread were sent again.
+    assertTrue("Connection was not dropped.", server.drops.get() < 1);
+    assertTrue(server.connections.get() > 1);
+  }
+
+  @Test(timeout = 30000)
+  public void testListParser() throws Exception {
+    String page =
+      "<html><head>\n"+
+      "<style>a[href=\"styled\"] { } <a href=\"instyle\"></style>\n"+
+      "<script>var s = \"<a href='inscript'>\"; if (a </b) {}</SCRIPT>\n"+
+      "<link rel=\"stylesheet\" href=\"site.css\">\n"+
+      "</head><body>\n"+
+      "<!-- <a href=\"commented\"> -- still a comment -->\n"+
+      "<!DOCTYPE html>\n"+
+      "<a href=\"plain.txt\">plain</a>\n"+
+      "<A HREF='Upper.bin'>upper</A>\n"+
+      "<a class=x href=unquoted.dat>unquoted</a>\n"+
+      "<a href=\"a&amp;b.txt\">entity</a>\n"+
+      "<a href=\"caf&#xe9;.txt\">numeric</a>\n"+
+      "<a href=\"sub/\">directory</a>\n"+
+      "<a href=\"/dir/abs.txt\">absolute path</a>\n"+
+      "<a href=\"/other/no.txt\">elsewhere</a>\n"+
+      "<a href=\"../up.txt\">parent</a>\n"+
+      "<a href=\"deep/er.txt\">deeper</a>\n"+
+      "<a href=\"http://elsewhere/x\">absolute</a>\n"+
+      "<a href=\"#frag\">fragment</a>\n"+
+      "<a href=\"q.txt?x=1#y\">query</a>\n"+
+      "<img src=\"pic.png\">\n"+
+      "<a href=\"plain.txt\">duplicate</a>\n"+
+      "<a href=\"\u00fcn\u00ef.txt\">utf-8</a>\n"+
+      "</body></html>\n";
+    List<String> expected = Arrays.asList(
+      "site.css", "plain.txt", "Upper.bin", "unquoted.dat", "a&b.txt",
+      "caf\u00e9.txt", "sub", "abs.txt", "q.txt", "pic.png",
+      "\u00fcn\u00ef.txt");
+
+    // Tags, entities and UTF-8 sequences are split at every point.
+    byte[] bytes = page.getBytes("UTF-8");
+    for (int n : new int[] { 1, 2, 3, 7, 64, bytes.length }) {
+      Bell<List<Stat>> listing = new HTTPListParser(
+        URI.create("http://127.0.0.1/dir"), new PageTap(bytes, n)).getListing();
+      List<String> names = new ArrayList<String>();
+      for (Stat s : listing.sync()) {
+        names.add(s.name);
+        assertEquals("Whether "+s.name+" is a directory.",
+                     s.name.equals("sub"), s.dir);
+      }
+      assertEquals("Listing in "+n+" byte slices.", expected, names);
+    }
+  }
+
+  // Stat n resources at once through session, and check them.
+  private void stat(HTTPSession session, int n) throws Exception {
+    List<Bell<Stat>> stats = new ArrayList<Bell<Stat>>();
+    for (int i = 0; i < n; i++)
+      stats.add(session.select(Path.create("/f"+i)).stat(false));
+    for (Bell<Stat> b : stats)
+      assertEquals(server.data.length, b.sync().size);
+  }
+
+  private HTTPSession session() {
+    return new HTTPSession(URI.create("http://127.0.0.1:"+server.port()));
+  }
+
+  // Download the stand-in's data through session to a local file.
+  private static byte[] download(HTTPSession session) throws Exception {
+    File dst = File.createTempFile("http", ".dst");
+    dst.deleteOnExit();
+    Transfer t = session.select(Path.create("/data.bin"))
+      .transferTo(new LocalSession(dst.getPath()).root());
+    t.start();
+    t.onStop().sync();
+    session.close();
+
+    byte[] got = new byte[(int) dst.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(dst));
+    in.readFully(got);
+    in.close();
+    return got;
+  }
+
+  private static byte[] randomBytes(int n, int seed) {
+    byte[] b = new byte[n];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  // Drains a page in slices of a given size.
+  private static class PageTap extends Tap {
+    final byte[] page;
+    final int size;
+
+    PageTap(byte[] page, int size) {
+      super(Resources.anonymous());
+      this.page = page;
+      this.size = size;
+    }
+
+    protected Bell start(Bell bell) {
+      return bell.new Promise() {
+        public void done() {
+          for (int i = 0; i < page.length; i += size)
+            drain(new Slice(Arrays.copyOfRange(
+              page, i, Math.min(i+size, page.length))));
+          finish();
+        }
+      };
+    }
+  }
+
+  // Serves data at every path, with support for byte ranges.
+  private static class StandIn extends Thread {
+    final ServerSocket socket = new ServerSocket(0, 50,
+      InetAddress.getByName("127.0.0.1"));
+    final byte[] data;
+    // Request lines received, with their range if any.
+    final List<String> requests =
+      Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger connections = new AtomicInteger();
+    // Range responses to cut short halfway through.
+    final AtomicInteger cuts = new AtomicInteger();
+    // Connections to drop while requests are pipelined on them.
+    final AtomicInteger drops = new AtomicInteger();
+    // Milliseconds to wait before answering.
+    volatile int delay;
+    // Whether to close connections after one response.
+    volatile boolean hangUp;
+    // If set, other paths are redirected here.
+    volatile String redirect;
+    // Whether to answer range requests with the whole file.
+    volatile boolean ignoreRanges;
+
+    StandIn(byte[] data) throws IOException {
+      this.data = data;
+      setDaemon(true);
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    // The byte ranges requested so far, as {start, end} pairs.
+    List<long[]> ranges() {
+      List<long[]> ranges = new ArrayList<long[]>();
+      Pattern p = Pattern.compile("bytes=(\\d+)-(\\d+)");
+      synchronized (requests) {
+        for (String r : requests) {
+          Matcher m = p.matcher(r);
+          if (m.find()) ranges.add(new long[] {
+            Long.parseLong(m.group(1)), Long.parseLong(m.group(2))
+          });
+        }
+      } return ranges;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket s = socket.accept();
+          Thread t = new Thread() {
+            public void run() { serve(s); }
+          };
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch (IOException e) {
+        // Closed.
+      }
+    }
+
+    void serve(Socket s) {
+      connections.incrementAndGet();
+      try {
+        BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream(), "US-ASCII"));
+        OutputStream out = new BufferedOutputStream(s.getOutputStream());
+
+        for (String line; (line = in.readLine()) != null;) {
+          if (line.isEmpty())
+            continue;
+          String method = line.split(" ")[0];
+          String path = line.split(" ")[1];
+          Map<String,String> headers = new HashMap<String,String>();
+          for (String h; (h = in.readLine()) != null && !h.isEmpty();) {
+            int i = h.indexOf(':');
+            headers.put(h.substring(0, i).trim().toLowerCase(),
+                        h.substring(i+1).trim());
+          }
+          String range = headers.get("range");
+          requests.add(line+(range != null ? " "+range : ""));
+          Thread.sleep(delay);
+          if (redirect != null && !path.equals(redirect)) {
+            out.write(("HTTP/1.1 302 Found\r\nLocation: "+redirect+"\r\n"+
+                       "Content-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            continue;
+          }
+          if (ignoreRanges)
+            range = null;
+          if (!respond(out, method, range) || hangUp)
+            break;
+          if (in.ready() && drops.getAndDecrement() > 0)
+            break;
+        }
+      } catch (Exception e) {
+        // The client hung up.
+      } finally {
+        try {
+          s.close();
+        } catch (IOException e) { }
+      }
+    }
+
+    // Answer a request, returning false if the connection should be closed.
+    boolean respond(OutputStream out, String method, String range)
+    throws IOException {
+      int start = 0, end = data.length;
+      String status = "200 OK";
+      if (range != null) {
+        Matcher m = Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(range);
+        m.find();
+        start = Integer.parseInt(m.group(1));
+        end = Integer.parseInt(m.group(2))+1;
+        status = "206 Partial Content";
+      }
+
+      String head = "HTTP/1.1 "+status+"\r\n"+
+        "Content-Type: application/octet-stream\r\n"+
+        "Content-Length: "+(end-start)+"\r\n"+
+        "Accept-Ranges: bytes\r\n";
+      if (range != null)
+        head += "Content-Range: bytes "+start+"-"+(end-1)+"/"+data.length+
+                "\r\n";
+      out.write((head+"\r\n").getBytes("US-ASCII"));
+
+      if (method.equals("GET")) {
+        if (range != null && cuts.getAndDecrement() > 0) {
+          out.write(data, start, (end-start)/2);
+          out.flush();
+          return false;
+        }
+        out.write(data, start, end-start);
+      }
+      out.flush();
+      return true;
+    }
+  }
+}
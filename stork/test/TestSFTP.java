@@ -0,0 +1,403 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.sftp.*;
+
+/**
+ * Tests for the SFTP client, against a stand-in server on localhost which
+ * speaks SFTP over plain sockets in place of SSH subsystem channels.
+ */
+public class TestSFTP {
+  private static final byte[] DATA = new byte[(1 << 20) + 12345];
+  private static final Executor executor = Executors.newCachedThreadPool();
+
+  private StandIn server;
+
+  @BeforeClass
+  public static void makeData() {
+    new Random(13).nextBytes(DATA);
+  }
+
+  @Before
+  public void startStandIn() throws Exception {
+    server = new StandIn();
+    server.files.put("/f", DATA);
+    server.dirs.put("/d", new String[] { "a", "b", "c" });
+    server.start();
+  }
+
+  @After
+  public void stopStandIn() throws Exception {
+    server.socket.close();
+  }
+
+  @Test(timeout = 20000)
+  public void testDownload() throws Exception {
+    // The stand-in answers reads with less than was asked for.
+    File dst = File.createTempFile("sftp", ".dst");
+    dst.deleteOnExit();
+    SFTPSession session = new StandInSession(server);
+    Resource src = session.select(Path.create("/f"));
+    Transfer t = src.transferTo(new LocalSession(dst.getPath()).root());
+    t.start();
+    t.onStop().sync();
+    session.close();
+    assertArrayEquals("Downloaded file differs.", DATA, read(dst));
+  }
+
+  @Test(timeout = 20000)
+  public void testUpload() throws Exception {
+    SFTPSession session = new StandInSession(server);
+    upload(session, "/g").onStop().sync();
+    session.close();
+    assertArrayEquals("Uploaded file differs.", DATA, server.files.get("/g"));
+  }
+
+  @Test(timeout = 20000)
+  public void testLateWriteFailureFailsTransfer() throws Exception {
+    // Fail the write which ends the file. Nothing is drained after it, so
+    // only the sink finishing can notice.
+    server.failEnd = DATA.length;
+    SFTPSession session = new StandInSession(server);
+    Transfer t = upload(session, "/g");
+    try {
+      t.onStop().sync();
+      fail("Transfer succeeded despite a failed write.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    session.close();
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentTransfersUseSeparateChannels() throws Exception {
+    // Hold each open until the other arrives, which can only happen if they
+    // were sent on different channels.
+    server.together = new CountDownLatch(2);
+    SFTPSession session = new StandInSession(server).connections(2);
+    downloadTwice(session);
+    session.close();
+    assertEquals("Transfers shared a channel.",
+                 2, new HashSet<Integer>(server.readers).size());
+  }
+
+  @Test(timeout = 20000)
+  public void testPoolFallsBackToMainChannel() throws Exception {
+    // Only one channel is let in, so the second is closed at once.
+    server.logins = 1;
+    SFTPSession session = new StandInSession(server).connections(2);
+    downloadTwice(session);
+    session.close();
+    assertEquals("Pooled channel was not attempted.", 2, server.channels);
+    assertEquals("Transfers did not share the main channel.",
+                 1, new HashSet<Integer>(server.readers).size());
+  }
+
+  @Test(timeout = 20000)
+  public void testList() throws Exception {
+    SFTPSession session = new StandInSession(server);
+    final List<String> names = new ArrayList<String>();
+    Resource dir = session.select(Path.create("/d"));
+    Emitter<String> list = dir.list();
+    list.new ForEach() {
+      public void each(String name) { names.add(name); }
+    }.sync();
+    session.close();
+    assertEquals(Arrays.asList("a", "b", "c"), names);
+  }
+
+  // Download /f twice at once through session, and check both copies.
+  private static void downloadTwice(SFTPSession session) throws Exception {
+    File[] dst = new File[2];
+    Transfer[] t = new Transfer[2];
+    for (int i = 0; i < 2; i++) {
+      dst[i] = File.createTempFile("sftp", ".dst");
+      dst[i].deleteOnExit();
+      Resource src = session.select(Path.create("/f"));
+      t[i] = src.transferTo(new LocalSession(dst[i].getPath()).root());
+      t[i].start();
+    } for (int i = 0; i < 2; i++) {
+      t[i].onStop().sync();
+      assertArrayEquals("Downloaded file differs.", DATA, read(dst[i]));
+    }
+  }
+
+  // Start uploading DATA to path through session.
+  private static Transfer upload(SFTPSession session, String path)
+  throws Exception {
+    File src = File.createTempFile("sftp", ".src");
+    src.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(src);
+    out.write(DATA);
+    out.close();
+
+    Resource dst = session.select(Path.create(path));
+    Transfer t = new LocalSession(src.getPath()).root().transferTo(dst);
+    t.start();
+    return t;
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] got = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    in.readFully(got);
+    in.close();
+    return got;
+  }
+
+  // A session whose channels are sockets to the stand-in.
+  static class StandInSession extends SFTPSession {
+    final StandIn server;
+
+    StandInSession(StandIn server) {
+      super(URI.create("sftp://stork@127.0.0.1:"+server.port()), null);
+      this.server = server;
+    }
+
+    protected SFTPChannel connect() throws Exception {
+      return openChannel();
+    }
+
+    protected SFTPChannel openChannel() throws Exception {
+      server.channels++;
+      Socket s = new Socket("127.0.0.1", server.port());
+      return new SFTPChannel(s.getInputStream(), s.getOutputStream(),
+                             executor);
+    }
+  }
+
+  /**
+   * Serves files and directories from memory. Reads are answered with at
+   * most 20000 bytes, and a write ending at {@code failEnd} fails.
+   */
+  static class StandIn extends Thread {
+    static final int INIT = 1, VERSION = 2, OPEN = 3, CLOSE = 4, READ = 5,
+      WRITE = 6, LSTAT = 7, OPENDIR = 11, READDIR = 12, STAT = 17,
+      STATUS = 101, HANDLE = 102, DATA = 103, NAME = 104, ATTRS = 105;
+
+    final ServerSocket socket = new ServerSocket(0, 50,
+      InetAddress.getByName("127.0.0.1"));
+    final Map<String,byte[]> files = new ConcurrentHashMap<String,byte[]>();
+    final Map<String,String[]> dirs = new ConcurrentHashMap<String,String[]>();
+    volatile long failEnd = -1;
+    volatile int channels;  // Channels opened by sessions.
+    int logins = -1;        // Channels to allow, if limited.
+    // The connection each file was opened for reading on, numbered from zero.
+    final List<Integer> readers =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    private int served = 0;
+    // If set, each open for reading waits for this to count down, for a while.
+    volatile CountDownLatch together;
+
+    StandIn() throws IOException {
+      setDaemon(true);
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket s = socket.accept();
+          Thread t = new Thread() {
+            public void run() { serve(s); }
+          };
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch (IOException e) {
+        // Closed.
+      }
+    }
+
+    // Let a connection in, returning its number, or -1 if it is refused.
+    synchronized int login() {
+      if (logins == 0)
+        return -1;
+      if (logins > 0)
+        logins--;
+      return served++;
+    }
+
+    // An open file or directory.
+    class Handle {
+      final String path;
+      boolean writing;  // Whether it was opened for writing.
+      byte[] data;
+      boolean listed;
+
+      Handle(String path) { this.path = path; }
+    }
+
+    void serve(Socket s) {
+      Map<String,Handle> handles = new HashMap<String,Handle>();
+      try {
+        int conn = login();
+        if (conn < 0)
+          return;
+        DataInputStream in = new DataInputStream(
+          new BufferedInputStream(s.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(s.getOutputStream()));
+
+        while (true) {
+          byte[] b = new byte[in.readInt()];
+          in.readFully(b);
+          DataInputStream p = new DataInputStream(new ByteArrayInputStream(b));
+          int type = p.readUnsignedByte();
+          if (type == INIT) {
+            reply(out, VERSION, 3, null);
+            continue;
+          }
+
+          int id = p.readInt();
+          if (type == OPEN || type == OPENDIR) {
+            String path = new String(bytes(p), "UTF-8");
+            int flags = (type == OPEN) ? p.readInt() : 0;
+            Handle h = new Handle(path);
+            if ((flags & 2) != 0) {
+              h.writing = true;
+              h.data = new byte[0];
+            } else if (type == OPEN && files.containsKey(path)) {
+              h.data = files.get(path);
+              readers.add(conn);
+              CountDownLatch latch = together;
+              if (latch != null) {
+                latch.countDown();
+                latch.await(3, TimeUnit.SECONDS);
+              }
+            } else if (type != OPENDIR || !dirs.containsKey(path)) {
+              status(out, id, 2);
+              continue;
+            }
+            String name = String.valueOf(id);
+            handles.put(name, h);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            string(new DataOutputStream(body), name.getBytes("UTF-8"));
+            reply(out, HANDLE, id, body.toByteArray());
+          } else if (type == READ) {
+            Handle h = handles.get(new String(bytes(p), "UTF-8"));
+            long off = p.readLong();
+            int len = Math.min(p.readInt(), 20000);
+            if (off >= h.data.length) {
+              status(out, id, 1);
+            } else {
+              len = (int) Math.min(len, h.data.length-off);
+              ByteArrayOutputStream body = new ByteArrayOutputStream();
+              string(new DataOutputStream(body), Arrays.copyOfRange(
+                h.data, (int) off, (int) off+len));
+              reply(out, DATA, id, body.toByteArray());
+            }
+          } else if (type == WRITE) {
+            Handle h = handles.get(new String(bytes(p), "UTF-8"));
+            long off = p.readLong();
+            byte[] data = bytes(p);
+            if (off+data.length == failEnd) {
+              status(out, id, 4);
+              continue;
+            } if (off+data.length > h.data.length)
+              h.data = Arrays.copyOf(h.data, (int) off+data.length);
+            System.arraycopy(data, 0, h.data, (int) off, data.length);
+            status(out, id, 0);
+          } else if (type == CLOSE) {
+            Handle h = handles.remove(new String(bytes(p), "UTF-8"));
+            if (h != null && h.writing)
+              files.put(h.path, h.data);
+            status(out, id, 0);
+          } else if (type == STAT || type == LSTAT) {
+            String path = new String(bytes(p), "UTF-8");
+            if (files.containsKey(path))
+              reply(out, ATTRS, id, attrs(files.get(path).length, 0100644));
+            else if (dirs.containsKey(path))
+              reply(out, ATTRS, id, attrs(0, 040755));
+            else
+              status(out, id, 2);
+          } else if (type == READDIR) {
+            Handle h = handles.get(new String(bytes(p), "UTF-8"));
+            if (h.listed) {
+              status(out, id, 1);
+              continue;
+            }
+            h.listed = true;
+            String[] names = dirs.get(h.path);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(body);
+            d.writeInt(names.length+2);
+            for (String n : new String[] { ".", ".." })
+              entry(d, n, attrs(0, 040755));
+            for (String n : names)
+              entry(d, n, attrs(1, 0100644));
+            reply(out, NAME, id, body.toByteArray());
+          } else {
+            status(out, id, 8);
+          }
+        }
+      } catch (Exception e) {
+        // The client hung up.
+      } finally {
+        try {
+          s.close();
+        } catch (IOException e) { }
+      }
+    }
+
+    byte[] bytes(DataInputStream in) throws IOException {
+      byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      return b;
+    }
+
+    void string(DataOutputStream out, byte[] b) throws IOException {
+      out.writeInt(b.length);
+      out.write(b);
+    }
+
+    void entry(DataOutputStream out, String name, byte[] attrs)
+    throws IOException {
+      string(out, name.getBytes("UTF-8"));
+      string(out, name.getBytes("UTF-8"));
+      out.write(attrs);
+    }
+
+    // Attributes with a size and permissions.
+    byte[] attrs(long size, int perm) throws IOException {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      out.writeInt(1 | 4);
+      out.writeLong(size);
+      out.writeInt(perm);
+      return b.toByteArray();
+    }
+
+    void status(DataOutputStream out, int id, int code) throws IOException {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream body = new DataOutputStream(b);
+      body.writeInt(code);
+      string(body, ("status "+code).getBytes("UTF-8"));
+      string(body, new byte[0]);
+      reply(out, STATUS, id, b.toByteArray());
+    }
+
+    // Send a packet with an id, or the version for VERSION.
+    void reply(DataOutputStream out, int type, int id, byte[] body)
+    throws IOException {
+      int len = 5 + ((body == null) ? 0 : body.length);
+      out.writeInt(len);
+      out.writeByte(type);
+      out.writeInt(id);
+      if (body != null)
+        out.write(body);
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import io.netty.buffer.*;
+import io.netty.channel.embedded.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.smtp.*;
+
+/** Tests for the SMTP module, against a stand-in server on localhost. */
+public class TestSMTP {
+  @Test
+  public void testEncoderCarriesAcrossBuffers() throws Exception {
+    byte[] data = randomBytes(10000, 3);
+    EmbeddedChannel ch = new EmbeddedChannel(new SMTPBase64Encoder());
+    ch.writeOutbound(SMTPBase64Encoder.BEGIN);
+
+    // Buffers which split groups and lines in every way.
+    Random random = new Random(5);
+    for (int off = 0, len; off < data.length; off += len) {
+      len = Math.min(data.length-off, 1+random.nextInt(100));
+      ch.writeOutbound(Unpooled.wrappedBuffer(data, off, len));
+    } ch.writeOutbound(SMTPBase64Encoder.END);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Object o; (o = ch.readOutbound()) != null;) {
+      ByteBuf buf = (ByteBuf) o;
+      buf.readBytes(out, buf.readableBytes());
+      buf.release();
+    }
+
+    String expected =
+      java.util.Base64.getMimeEncoder().encodeToString(data)+"\r\n";
+    assertEquals("Encoded data differs.", expected, out.toString("US-ASCII"));
+  }
+
+  @Test(timeout = 20000)
+  public void testAttachment() throws Exception {
+    final byte[] data = randomBytes((1 << 20) + 1, 9);
+    File src = File.createTempFile("smtp", ".bin");
+    src.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(src);
+    fos.write(data);
+    fos.close();
+
+    StandIn server = new StandIn();
+    server.start();
+
+    URI uri = URI.create("mailto://127.0.0.1:"+server.port()+"/");
+    Transfer t = new LocalSession(src.getPath()).root()
+      .transferTo(new SMTPModule().select(uri, null));
+    t.start();
+    t.onStop().sync();
+    server.join();
+
+    assertEquals("Message was not accepted.", "QUIT", server.last);
+    assertArrayEquals("Attachment differs.", data, server.attachment());
+  }
+
+  private static byte[] randomBytes(int n, int seed) {
+    byte[] b = new byte[n];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  // Accepts one message and keeps its body.
+  private static class StandIn extends Thread {
+    final ServerSocket socket = new ServerSocket(0, 1,
+      InetAddress.getByName("127.0.0.1"));
+    final List<String> body = new ArrayList<String>();
+    volatile String last;
+
+    StandIn() throws IOException {
+      setDaemon(true);
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    public void run() {
+      try {
+        Socket s = socket.accept();
+        BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream(), "US-ASCII"));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), "US-ASCII");
+        reply(out, "220-stand-in\r\n220 ready");
+
+        for (String line; (line = in.readLine()) != null;) {
+          last = line;
+          if (line.equals("DATA")) {
+            reply(out, "354 go ahead");
+            while (!(line = in.readLine()).equals("."))
+              body.add(line);
+            reply(out, "250 queued");
+          } else if (line.equals("QUIT")) {
+            reply(out, "221 bye");
+            break;
+          } else {
+            reply(out, "250 ok");
+          }
+        } s.close();
+        socket.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    void reply(Writer out, String reply) throws IOException {
+      out.write(reply+"\r\n");
+      out.flush();
+    }
+
+    // Decode the Base64 part of the message.
+    byte[] attachment() {
+      int i = body.indexOf("Content-Transfer-Encoding: base64");
+      while (!body.get(i).isEmpty()) i++;
+      StringBuilder sb = new StringBuilder();
+      for (i++; !body.get(i).startsWith("--separate"); i++) {
+        assertTrue("Line too long.", body.get(i).length() <= 76);
+        sb.append(body.get(i));
+      } return java.util.Base64.getDecoder().decode(sb.toString());
+    }
+  }
+}
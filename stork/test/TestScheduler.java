@@ -0,0 +1,130 @@
+package stork.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.core.*;
+import stork.feather.*;
+import stork.scheduler.*;
+
+/** Tests for the fair scheduler. */
+public class TestScheduler {
+  private final BlockingQueue<TestJob> started =
+    new LinkedBlockingQueue<TestJob>();
+
+  // A job which records when it starts and finishes when told to.
+  private class TestJob extends Job {
+    final String name;
+    final Set<String> endpoints;
+    final Bell<Job> done = new Bell<Job>();
+    Object group = this;
+
+    TestJob(String name, String owner, int priority, String... endpoints) {
+      this.name = name;
+      this.owner = owner;
+      this.options.priority = priority;
+      this.endpoints = new HashSet<String>(Arrays.asList(endpoints));
+    }
+
+    public synchronized Bell<Job> start() {
+      started.add(this);
+      return done;
+    }
+
+    public synchronized Set<String> endpoints() { return endpoints; }
+
+    public synchronized Object group() { return group; }
+
+    public String toString() { return name; }
+  }
+
+  private static FairScheduler scheduler(int maxJobs, int maxEndpointJobs) {
+    Config config = new Config();
+    config.max_jobs = maxJobs;
+    config.max_endpoint_jobs = maxEndpointJobs;
+    FairScheduler scheduler = new FairScheduler(config);
+    scheduler.start();
+    return scheduler;
+  }
+
+  // Finish each job as it starts, and return the names in start order.
+  private String runAll(int count) throws Exception {
+    StringBuilder order = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      TestJob job = started.poll(5, TimeUnit.SECONDS);
+      assertNotNull("Job was not started.", job);
+      order.append(job.name).append(" ");
+      job.done.ring(job);
+    } return order.toString().trim();
+  }
+
+  @Test
+  public void testUsersShareSlots() throws Exception {
+    FairScheduler s = scheduler(1, 0);
+    for (int i = 1; i <= 5; i++)
+      s.add(new TestJob("a"+i, "a", 0));
+    for (int i = 1; i <= 2; i++)
+      s.add(new TestJob("b"+i, "b", 0));
+    assertEquals("a1 b1 a2 b2 a3 a4 a5", runAll(7));
+  }
+
+  @Test
+  public void testWeights() throws Exception {
+    Config config = new Config();
+    config.max_jobs = 1;
+    config.user_weights = new HashMap<String,Double>();
+    config.user_weights.put("b", 2.0);
+    FairScheduler s = new FairScheduler(config);
+    s.start();
+    for (int i = 1; i <= 4; i++)
+      s.add(new TestJob("a"+i, "a", 0));
+    for (int i = 1; i <= 4; i++)
+      s.add(new TestJob("b"+i, "b", 0));
+    assertEquals("a1 b1 b2 a2 b3 b4 a3 a4", runAll(8));
+  }
+
+  @Test
+  public void testPriority() throws Exception {
+    FairScheduler s = scheduler(1, 0);
+    s.add(new TestJob("first", "a", 0));
+    s.add(new TestJob("low", "a", 0));
+    s.add(new TestJob("high", "a", 5));
+    s.add(new TestJob("mid", "a", 1));
+    assertEquals("first high mid low", runAll(4));
+  }
+
+  @Test
+  public void testEndpointLimit() throws Exception {
+    FairScheduler s = scheduler(10, 1);
+    TestJob x1 = new TestJob("x1", "a", 0, "ftp://x");
+    TestJob x2 = new TestJob("x2", "a", 0, "ftp://x");
+    TestJob y1 = new TestJob("y1", "b", 0, "ftp://y");
+    s.add(x1);
+    s.add(x2);
+    s.add(y1);
+
+    assertSame(x1, started.poll(5, TimeUnit.SECONDS));
+    assertSame("Other endpoints were held up.",
+      y1, started.poll(5, TimeUnit.SECONDS));
+    assertNull("Endpoint limit was exceeded.",
+      started.poll(200, TimeUnit.MILLISECONDS));
+
+    x1.done.ring(x1);
+    assertSame(x2, started.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testGroupsRunBackToBack() throws Exception {
+    FairScheduler s = scheduler(1, 0);
+    String[] names = { "x1", "y1", "x2", "y2", "x3" };
+    for (String name : names) {
+      TestJob job = new TestJob(name, "a", 0);
+      job.group = name.substring(0, 1);
+      s.add(job);
+    }
+    assertEquals("x1 x2 x3 y1 y2", runAll(5));
+  }
+}
@@ -0,0 +1,181 @@
+package stork.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.core.server.*;
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.ftp.*;
+
+/**
+ * Tests sharing sessions between transfers, against the FTP tests' stand-in
+ * server, made to take a while to log users in, like a real one would.
+ */
+public class TestSessionCache {
+  // How long the stand-in takes to accept a password, in milliseconds.
+  private static final int LOGIN_TIME = 50;
+  private static final int JOBS = 20;
+  private static final byte[] DATA = TestFTP.DATA;
+
+  private static TestFTP.StandIn server;
+
+  @BeforeClass
+  public static void startStandIn() throws Exception {
+    server = new TestFTP.StandIn(false);
+    server.loginTime = LOGIN_TIME;
+    server.start();
+  }
+
+  @AfterClass
+  public static void stopStandIn() throws Exception {
+    server.socket.close();
+  }
+
+  @Test(timeout = 30000)
+  public void testLeasedSessionsAreShared() throws Exception {
+    // Without a cache, every transfer logs in again.
+    int before = server.loggedIn.get();
+    long start = System.nanoTime();
+    for (int i = 0; i < JOBS; i++) {
+      Resource src = source(i);
+      download(src);
+      src.session.close();
+    }
+    long fresh = System.nanoTime() - start;
+    assertEquals(JOBS, server.loggedIn.get() - before);
+
+    // With a cache, they reuse the first session.
+    SessionCache cache = new SessionCache();
+    before = server.loggedIn.get();
+    start = System.nanoTime();
+    Session session = null;
+    for (int i = 0; i < JOBS; i++) {
+      Resource src = cache.lease(source(i));
+      download(src);
+      cache.release(src.session);
+      if (session != null)
+        assertSame("Session was not reused.", session, src.session);
+      session = src.session;
+    }
+    long leased = System.nanoTime() - start;
+    session.close();
+
+    assertEquals("Sessions were not shared.",
+                 1, server.loggedIn.get() - before);
+    assertTrue("Sharing sessions was no faster ("+leased/1000000+" ms vs "+
+               fresh/1000000+" ms).", leased < fresh);
+  }
+
+  @Test(timeout = 30000)
+  public void testConcurrentLeasesUseSeveralChannels() throws Exception {
+    // Leases taken at once share a session, but their transfers run side by
+    // side on the session's pool of control channels.
+    SessionCache cache = new SessionCache();
+    int before = server.loggedIn.get();
+    server.hold = 100;
+    server.maxActive.set(0);
+    Resource[] src = new Resource[JOBS];
+    Transfer[] t = new Transfer[JOBS];
+    File[] dst = new File[JOBS];
+    try {
+      for (int i = 0; i < JOBS; i++) {
+        Resource r = source(i);
+        r.session.connections(4);
+        src[i] = cache.lease(r);
+        dst[i] = File.createTempFile("ftp", ".dst");
+        dst[i].deleteOnExit();
+        t[i] = src[i].transferTo(new LocalSession(dst[i].getPath()).root());
+        t[i].start();
+      } for (int i = 0; i < JOBS; i++) {
+        t[i].onStop().sync();
+        assertSame("Session was not shared.", src[0].session, src[i].session);
+        assertArrayEquals("Downloaded file differs.", DATA, read(dst[i]));
+        cache.release(src[i].session);
+      }
+    } finally {
+      server.hold = 0;
+    }
+    src[0].session.close();
+
+    assertTrue("Pool was overfilled.", server.loggedIn.get() - before <= 4);
+    assertTrue("Transfers did not overlap.", server.maxActive.get() > 1);
+  }
+
+  @Test(timeout = 30000)
+  public void testDifferentSettingsAreNotShared() throws Exception {
+    SessionCache cache = new SessionCache();
+    Resource a = cache.lease(source(0));
+    Resource b = source(0);
+    b.session.parallelism(2);
+    b = cache.lease(b);
+    Resource c = cache.lease(source(1));
+    assertNotSame(a.session, b.session);
+    assertSame(a.session, c.session);
+    assertEquals(1, a.session.parallelism());
+    for (Resource r : new Resource[] { a, b, c })
+      cache.release(r.session);
+    a.session.close();
+    b.session.close();
+  }
+
+  @Test
+  public void testKeysFollowSettings() {
+    URI uri = URI.create("ftp://stork@127.0.0.1:21");
+    Object key = SessionCache.key(uri, null, 1, 1, null);
+    assertEquals(key, SessionCache.key(uri, null, 1, 1,
+                                       TCPOptions.getDefault()));
+    assertEquals(key.hashCode(),
+                 SessionCache.key(uri, null, 0, 1, null).hashCode());
+    assertFalse(key.equals(SessionCache.key(uri, null, 2, 1, null)));
+    assertFalse(key.equals(SessionCache.key(uri, null, 1, 2, null)));
+    TCPOptions tcp = new TCPOptions();
+    tcp.nodelay = true;
+    assertFalse(key.equals(SessionCache.key(uri, null, 1, 1, tcp)));
+  }
+
+  @Test(timeout = 30000)
+  public void testDifferentCredentialsAreNotShared() throws Exception {
+    SessionCache cache = new SessionCache();
+    Resource a = cache.lease(source(0, "alice"));
+    Resource b = cache.lease(source(0, "bob"));
+    Resource c = cache.lease(source(1, "alice"));
+    assertNotSame(a.session, b.session);
+    assertSame(a.session, c.session);
+    for (Resource r : new Resource[] { a, b, c })
+      cache.release(r.session);
+    a.session.close();
+    b.session.close();
+  }
+
+  private static Resource source(int i) {
+    return source(i, "stork");
+  }
+
+  private static Resource source(int i, String user) {
+    URI uri = URI.create("ftp://"+user+"@127.0.0.1:"+server.port()+"/f"+i);
+    return new FTPModule().select(uri, null);
+  }
+
+  // Download a file from the stand-in and check it.
+  private static void download(Resource src) throws Exception {
+    File dst = File.createTempFile("ftp", ".dst");
+    dst.deleteOnExit();
+    Transfer t = src.transferTo(new LocalSession(dst.getPath()).root());
+    t.start();
+    t.onStop().sync();
+    assertArrayEquals("Downloaded file differs.", DATA, read(dst));
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] got = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    in.readFully(got);
+    in.close();
+    return got;
+  }
+}
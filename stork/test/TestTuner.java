@@ -0,0 +1,153 @@
+package stork.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import stork.ad.*;
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.optimizers.*;
+import stork.util.*;
+
+/**
+ * Tests for driving optimizers from a transfer, using an optimizer which
+ * asks for a fixed series of samples and a transfer whose files and progress
+ * are made up by the test.
+ */
+public class TestTuner {
+  // How long to wait for something which should not happen.
+  private static final long QUIET = 1000;
+
+  @Test(timeout = 20000)
+  public void testWindowsStartWithNewFiles() throws Exception {
+    Script optimizer = new Script(
+      new Ad("parallelism", 2).put("size", 1000),
+      new Ad("parallelism", 4).put("size", 1000),
+      new Ad("parallelism", 3));
+    FakeTransfer transfer = new FakeTransfer(directory());
+    Recorder tuner = new Recorder(optimizer, transfer);
+    tuner.start(new Range(1, 4));
+    transfer.start().onStart().sync();
+
+    // The first sample is applied, but the file already running still uses
+    // the old parallelism, so its progress doesn't count.
+    assertEquals(2, (int) tuner.applied.take());
+    assertEquals(2, parallelism(transfer.source()));
+    transfer.progress(5000);
+    assertNull("Window started before a new file.",
+               optimizer.reports.poll(QUIET, TimeUnit.MILLISECONDS));
+
+    // The next file opens channels with it, so that starts the window.
+    transfer.file();
+    Ad report = transfer.progressUntil(optimizer.reports);
+    assertEquals(2, report.getInt("parallelism"));
+    assertTrue(report.getLong("size") >= 1000);
+    assertTrue(report.has("throughput"));
+
+    // Likewise for the second sample.
+    assertEquals(4, (int) tuner.applied.take());
+    transfer.progress(5000);
+    assertNull("Window started before a new file.",
+               optimizer.reports.poll(QUIET, TimeUnit.MILLISECONDS));
+    transfer.file();
+    report = transfer.progressUntil(optimizer.reports);
+    assertEquals(4, report.getInt("parallelism"));
+
+    // Then the final choice is applied for the rest of the transfer.
+    assertEquals(3, (int) tuner.applied.take());
+    assertEquals(3, parallelism(transfer.destination()));
+    assertFalse("Final parameters were sampled.", tuner.sampling);
+    transfer.stop();
+  }
+
+  @Test(timeout = 20000)
+  public void testSingleFileIsNotTuned() throws Exception {
+    File file = File.createTempFile("tuner", ".src");
+    file.deleteOnExit();
+    Script optimizer = new Script(new Ad("parallelism", 2).put("size", 1000));
+    FakeTransfer transfer =
+      new FakeTransfer(new LocalSession(file.getPath()).root());
+    Recorder tuner = new Recorder(optimizer, transfer);
+    tuner.start(new Range(1, 4));
+    transfer.start().onStart().sync();
+    transfer.progress(5000);
+
+    assertNull("A single-file transfer was tuned.",
+               tuner.applied.poll(QUIET, TimeUnit.MILLISECONDS));
+    assertFalse("Optimizer was initialized.", optimizer.initialized);
+    assertEquals(1, parallelism(transfer.source()));
+    transfer.stop();
+  }
+
+  private static int parallelism(Resource r) {
+    return r.session.parallelism();
+  }
+
+  private static LocalResource directory() throws IOException {
+    File dir = File.createTempFile("tuner", ".dir");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    return new LocalSession(dir.getPath()).root();
+  }
+
+  // Asks for the given samples in order, and keeps what is reported.
+  private static class Script extends Optimizer {
+    final Queue<Ad> samples;
+    final BlockingQueue<Ad> reports = new LinkedBlockingQueue<Ad>();
+    volatile boolean initialized;
+
+    Script(Ad... samples) {
+      this.samples = new ConcurrentLinkedQueue<Ad>(Arrays.asList(samples));
+    }
+
+    public void initialize(long size, Range range) {
+      initialized = true;
+    } public Ad sample() {
+      return samples.poll();
+    } public void report(Ad ad) {
+      reports.add(ad);
+    } public String name() {
+      return "script";
+    }
+  }
+
+  // Keeps the parallelism values the tuner applies.
+  private static class Recorder extends Tuner {
+    final BlockingQueue<Integer> applied = new LinkedBlockingQueue<Integer>();
+    volatile boolean sampling;
+
+    Recorder(Optimizer optimizer, Transfer transfer) {
+      super(optimizer, transfer);
+    }
+
+    protected void tuned(int parallelism, boolean sampling) {
+      this.sampling = sampling;
+      applied.add(parallelism);
+    }
+  }
+
+  // A transfer whose files and progress are reported by the test.
+  private static class FakeTransfer
+  extends Transfer<LocalResource,LocalResource> {
+    FakeTransfer(LocalResource source) {
+      super(source, new LocalSession().root());
+    }
+
+    void file() { resourceStarted(); }
+
+    void progress(long bytes) { addProgress(bytes); }
+
+    // Keep making progress until something shows up in queue.
+    <T> T progressUntil(BlockingQueue<T> queue) throws Exception {
+      T t;
+      while ((t = queue.poll(100, TimeUnit.MILLISECONDS)) == null)
+        progress(500);
+      return t;
+    }
+  }
+}
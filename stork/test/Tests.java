@@ -8,6 +8,14 @@ import org.junit.runners.Suite;
   TestAd.class,
   TestFeather.class,
   TestCred.class,
+  TestDropbox.class,
+  TestFTP.class,
+  TestHTTP.class,
+  TestSFTP.class,
+  TestSMTP.class,
+  TestScheduler.class,
+  TestSessionCache.class,
+  TestTuner.class,
 })
 
 public class Tests { }